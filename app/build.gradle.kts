@@ -15,6 +15,10 @@ android {
         versionName = "1.0"
 
         testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
+
+        // Message log backend: "journal" or "sqlite". Override per build with -PlogStore=sqlite
+        val logStore = (project.findProperty("logStore") as String?) ?: "journal"
+        buildConfigField("String", "LOG_STORE", "\"$logStore\"")
     }
 
     buildTypes {
@@ -30,9 +34,16 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    buildFeatures {
+        buildConfig = true
+    }
     kotlinOptions {
         jvmTarget = "11"
     }
+    testOptions {
+        // Lets plain JVM tests run code that logs through android.util.Log
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
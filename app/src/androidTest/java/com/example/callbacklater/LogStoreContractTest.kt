@@ -0,0 +1,262 @@
+package com.example.callbacklater
+
+import android.content.Context
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * Behaviour every [LogStore] must share. Each backend runs the same tests through a
+ * subclass below; the latency test logs timings under the "LogStoreContract" tag so the
+ * backends can be compared (`adb logcat -s LogStoreContract`).
+ */
+abstract class LogStoreContractTest {
+    protected lateinit var context: Context
+    protected lateinit var dir: File
+    private lateinit var store: LogStore
+
+    protected abstract fun open(): LogStore
+
+    protected open fun close(store: LogStore) {}
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        dir = File(context.cacheDir, "log_store_contract")
+        dir.deleteRecursively()
+        dir.mkdirs()
+        store = open()
+    }
+
+    @After
+    fun tearDown() {
+        close(store)
+        dir.deleteRecursively()
+    }
+
+    private fun addAll(vararg entries: Pair<String, Long>, channel: Byte = LogChannel.SMS_REPLY) {
+        entries.forEach { (contact, time) -> store.add(contact, time, channel, LogChannel.directionOf(channel)) }
+        store.flush().get(10, TimeUnit.SECONDS)
+    }
+
+    private fun query(contact: String?, channels: Int, start: Long?, end: Long?, newestFirst: Boolean,
+                      offset: Int, limit: Int): List<MessageLogManager.Entry> {
+        val builder = LogQuery.builder().contactContains(contact).channels(channels).since(start).until(end)
+                .offset(offset).limit(limit)
+        if (newestFirst) builder.newestFirst()
+        return store.query(builder.build()).entries
+    }
+
+    @Test
+    fun add_isCountedAndIteratedInOrder() {
+        addAll("+911" to 3_000L, "+912" to 1_000L, "+913" to 2_000L)
+
+        assertEquals(3, store.count())
+        val visited = mutableListOf<MessageLogManager.Entry>()
+        store.forEach { visited.add(it) }
+        assertEquals(listOf("+911", "+912", "+913"), visited.map { it.contact })
+        assertTrue("ids must be assigned in order", visited.zipWithNext().all { (a, b) -> a.id in 1 until b.id })
+    }
+
+    @Test
+    fun query_ordersByTimeAndPages() {
+        addAll("+911" to 3_000L, "+912" to 1_000L, "+913" to 2_000L, "+914" to 4_000L)
+
+        assertEquals(listOf(1_000L, 2_000L, 3_000L, 4_000L),
+            query(null, LogChannel.ALL, null, null, false, 0, 10).map { it.timeMillis })
+        assertEquals(listOf(3_000L, 2_000L),
+            query(null, LogChannel.ALL, null, null, true, 1, 2).map { it.timeMillis })
+        assertEquals(listOf(2_000L, 3_000L),
+            query(null, LogChannel.ALL, 2_000L, 3_000L, false, 0, 10).map { it.timeMillis })
+    }
+
+    @Test
+    fun query_pagesAfterTheLastEntryWithoutRepeats() {
+        addAll("+911" to 1_000L, "+912" to 2_000L, "+913" to 2_000L, "+914" to 2_000L, "+915" to 3_000L)
+        val newest = LogQuery.builder().newestFirst().limit(2)
+
+        val first = store.query(newest.build()).entries
+        assertEquals(listOf("+915", "+914"), first.map { it.contact })
+        // Added between pages: offset paging would show "+914" again
+        addAll("+916" to 4_000L)
+        val second = store.query(newest.after(first.last()).build()).entries
+        assertEquals(listOf("+913", "+912"), second.map { it.contact })
+        val third = store.query(newest.after(second.last()).build()).entries
+        assertEquals(listOf("+911"), third.map { it.contact })
+
+        val oldest = LogQuery.builder().oldestFirst().after(first.last()).build()
+        assertEquals(listOf("+915", "+916"), store.query(oldest).entries.map { it.contact })
+    }
+
+    @Test
+    fun query_matchesContactsIgnoringCaseAndNumberFormatting() {
+        addAll("+91 98765-43210" to 1_000L, "Alice Smith" to 3_000L, "+14155550000" to 4_000L)
+        addAll("+919876543210" to 2_000L, channel = LogChannel.WHATSAPP_MISSED_CALL)
+
+        assertEquals(2, query("98765", LogChannel.ALL, null, null, false, 0, 10).size)
+        assertEquals(2, query("987 65", LogChannel.ALL, null, null, false, 0, 10).size)
+        assertEquals(listOf("Alice Smith"), query("SMITH", LogChannel.ALL, null, null, false, 0, 10).map { it.contact })
+        assertEquals(listOf("+919876543210"), query("98765", LogChannel.ALL, 1_500L, null, false, 0, 10).map { it.contact })
+        assertTrue(query("100%", LogChannel.ALL, null, null, false, 0, 10).isEmpty())
+    }
+
+    @Test
+    fun delete_removesOnlyTheEntryWithThatId() {
+        addAll("+911" to 1_000L, "+911" to 1_000L, "+912" to 2_000L)
+        val second = query(null, LogChannel.ALL, null, null, false, 0, 10)[1]
+
+        assertTrue(store.delete(second))
+        assertFalse(store.delete(second))
+        assertEquals(2, store.count())
+        assertEquals(2, query("+911", LogChannel.ALL, null, null, false, 0, 10).size + query("+912", LogChannel.ALL, null, null, false, 0, 10).size)
+        assertFalse(query(null, LogChannel.ALL, null, null, false, 0, 10).any { it.id == second.id })
+    }
+
+    @Test
+    fun latestTimeFor_usesNormalizedNumberPerChannel() {
+        addAll("+91 98765 43210" to 1_000L, "+919876543210" to 5_000L)
+        addAll("+919876543210" to 9_000L, channel = LogChannel.WHATSAPP_MISSED_CALL)
+        addAll("+919876543210" to 7_000L, channel = LogChannel.WHATSAPP_REPLY)
+
+        assertEquals(5_000L, store.latestTimeFor("+91-98765-43210", LogChannel.SMS_REPLY))
+        // Both WhatsApp channels share one dedupe key
+        assertEquals(9_000L, store.latestTimeFor("+919876543210", LogChannel.WHATSAPP_REPLY))
+        assertEquals(-1L, store.latestTimeFor("+919876543210", LogChannel.SPAM_BLOCKED))
+        assertEquals(-1L, store.latestTimeFor("+10000000000", LogChannel.SMS_REPLY))
+    }
+
+    @Test
+    fun query_filtersByChannel() {
+        addAll("+911" to 1_000L, "+912" to 4_000L)
+        addAll("+913" to 2_000L, channel = LogChannel.WHATSAPP_MISSED_CALL)
+        addAll("+914" to 3_000L, channel = LogChannel.WHATSAPP_REPLY)
+
+        val whatsApp = query(null, LogChannel.WHATSAPP, null, null, false, 0, 10)
+        assertEquals(listOf("+913", "+914"), whatsApp.map { it.contact })
+        assertEquals(listOf(LogChannel.INCOMING, LogChannel.OUTGOING), whatsApp.map { it.direction })
+        assertEquals(listOf("+912", "+911"),
+            query("+91", LogChannel.mask(LogChannel.SMS_REPLY), null, null, true, 0, 10).map { it.contact })
+        assertEquals(listOf("+914"),
+            query(null, LogChannel.WHATSAPP, null, null, true, 0, 1).map { it.contact })
+    }
+
+    @Test
+    fun query_contactEqualsMatchesTheNormalizedNumberOnly() {
+        addAll("+91 98765-43210" to 1_000L, "+919876543210" to 2_000L, "+9198765432101" to 3_000L,
+                "+911" to 5_000L, "+912" to 6_000L)
+        addAll("+919876543210" to 4_000L, channel = LogChannel.WHATSAPP_REPLY)
+
+        val sms = LogQuery.builder().contactEquals("+91-98765-43210").channel(LogChannel.SMS_REPLY)
+        assertEquals(listOf(1_000L, 2_000L), store.query(sms.build()).entries.map { it.timeMillis })
+        assertEquals(listOf(4_000L, 2_000L, 1_000L), store.query(LogQuery.builder()
+                .contactEquals("+919876543210").newestFirst().build()).entries.map { it.timeMillis })
+        assertEquals(LogQuery.Access.CONTACT_INDEX, store.explain(sms.build()).access)
+    }
+
+    @Test
+    fun query_countOnlyAppliesOffsetAndLimit() {
+        addAll("+911" to 1_000L, "+912" to 2_000L, "+911" to 3_000L, "+913" to 4_000L)
+
+        assertEquals(4, store.query(LogQuery.builder().countOnly().build()).count)
+        assertEquals(2, store.query(LogQuery.builder().since(2_500L).countOnly().build()).count)
+        assertEquals(1, store.query(LogQuery.builder().offset(3).countOnly().build()).count)
+        val exists = LogQuery.builder().contactEquals("+911").since(2_000L).limit(1).countOnly()
+        assertEquals(1, store.query(exists.build()).count)
+        assertEquals(0, store.query(exists.since(3_500L).build()).count)
+        assertTrue(store.query(exists.build()).entries.isEmpty())
+    }
+
+    @Test
+    fun entries_surviveReopening() {
+        addAll("+911" to 1_000L, "+912" to 2_000L)
+        close(store)
+        store = open()
+
+        assertEquals(listOf("+911", "+912"), query(null, LogChannel.ALL, null, null, false, 0, 10).map { it.contact })
+    }
+
+    @Test
+    fun latency() {
+        val n = 5_000
+        var start = System.nanoTime()
+        for (i in 0 until n) {
+            store.add("+9198765" + (10_000 + i % 500), 1_700_000_000_000L + i * 1000L,
+                LogChannel.SMS_REPLY, LogChannel.OUTGOING)
+        }
+        store.flush().get(60, TimeUnit.SECONDS)
+        val addMs = (System.nanoTime() - start) / 1_000_000
+
+        start = System.nanoTime()
+        repeat(100) { query(null, LogChannel.ALL, null, null, true, 0, 200) }
+        val pageUs = (System.nanoTime() - start) / 1_000 / 100
+
+        start = System.nanoTime()
+        repeat(100) { query("98765100", LogChannel.ALL, null, null, true, 0, 200) }
+        val contactUs = (System.nanoTime() - start) / 1_000 / 100
+
+        start = System.nanoTime()
+        repeat(100) { store.latestTimeFor("+919876510042", LogChannel.SMS_REPLY) }
+        val latestUs = (System.nanoTime() - start) / 1_000 / 100
+
+        assertEquals(n, store.count())
+        Log.i("LogStoreContract", "${javaClass.simpleName}: $n adds ${addMs} ms, newest page ${pageUs} us, " +
+                "contact page ${contactUs} us, latestTimeFor ${latestUs} us")
+    }
+}
+
+@RunWith(AndroidJUnit4::class)
+class JournalLogStoreContractTest : LogStoreContractTest() {
+    override fun open(): LogStore = JournalLogStore(MessageLogJournal(File(dir, "message_log.journal")))
+}
+
+@RunWith(AndroidJUnit4::class)
+class SqliteLogStoreContractTest : LogStoreContractTest() {
+    private val name = "log_store_contract.db"
+
+    override fun open(): LogStore {
+        return SqliteLogStore(context, name)
+    }
+
+    override fun close(store: LogStore) {
+        (store as SqliteLogStore).close()
+    }
+
+    @After
+    fun deleteDatabase() {
+        context.deleteDatabase(name)
+    }
+
+    @Test
+    fun migration_copiesJournalKeepingIds() {
+        val journal = MessageLogJournal(File(dir, "migrate.journal"))
+        val entries = (1..2_500).map { MessageLogManager.Entry(it * 2L, "+91$it", it * 1_000L) }
+        journal.rewrite(entries)
+
+        context.deleteDatabase("migrated.db")
+        val target = SqliteLogStore(context, "migrated.db")
+        try {
+            assertEquals(entries.size, LogStoreMigration.journalToSqlite(journal, target))
+            val copied = mutableListOf<MessageLogManager.Entry>()
+            target.forEach { copied.add(it) }
+            assertEquals(entries.map { it.id }, copied.map { it.id })
+            assertEquals(entries.map { it.contact }, copied.map { it.contact })
+
+            val back = MessageLogJournal(File(dir, "back.journal"))
+            assertEquals(entries.size, LogStoreMigration.sqliteToJournal(target, back))
+            assertEquals(entries.map { it.id }, back.readAll().map { it.id })
+        } finally {
+            target.close()
+            context.deleteDatabase("migrated.db")
+        }
+    }
+}
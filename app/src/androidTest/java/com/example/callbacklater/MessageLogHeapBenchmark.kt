@@ -0,0 +1,73 @@
+package com.example.callbacklater
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+
+import java.io.File
+
+/**
+ * Retained heap of 100k log entries held as Entry objects (how the snapshot kept them
+ * before) and as [MessageLogColumns]. Both are loaded from the same journal, with 500
+ * distinct callers. Results are logged under the "MessageLogHeapBenchmark" tag; run
+ * with `adb logcat -s MessageLogHeapBenchmark`.
+ */
+@RunWith(AndroidJUnit4::class)
+class MessageLogHeapBenchmark {
+    private val tag = "MessageLogHeapBenchmark"
+    private val count = 100_000
+    private lateinit var journal: MessageLogJournal
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        dir = File(context.cacheDir, "heap_benchmark")
+        dir.mkdirs()
+        journal = MessageLogJournal(File(dir, "message_log.journal"))
+        journal.rewrite((0 until count).map {
+            val channel = if (it % 7 == 0) LogChannel.WHATSAPP_MISSED_CALL else LogChannel.SMS_REPLY
+            MessageLogManager.Entry(it + 1L, "+9198765" + (10_000 + it % 500), 1_700_000_000_000L + it * 1000L,
+                channel, LogChannel.directionOf(channel))
+        })
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun retainedHeapPer100k() {
+        var baseline = usedHeap()
+        var entries: List<MessageLogManager.Entry>? = journal.readAll()
+        val entriesBytes = usedHeap() - baseline
+        assertEquals(count, entries!!.size)
+        entries = null
+
+        baseline = usedHeap()
+        var columns: MessageLogColumns? = MessageLogColumns.of(journal.map(), 0)
+        val columnsBytes = usedHeap() - baseline
+        assertEquals(count, columns!!.size())
+        columns = null
+
+        Log.i(tag, "$count entries: Entry objects ${entriesBytes / 1024} KiB, " +
+                "columns ${columnsBytes / 1024} KiB")
+    }
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) {
+            System.gc()
+            System.runFinalization()
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.callbacklater
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStream
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Compares reading the message log through the old XML pipeline with the mapped journal
+ * and a compact segment at 10k, 100k and 1M entries, along with each file's size.
+ * Results are logged under the "MessageLogReadBenchmark" tag; run with
+ * `adb logcat -s MessageLogReadBenchmark`.
+ *
+ * Peak heap is sampled from a background thread while each read runs, so it is an
+ * approximation, but good enough to compare the paths against each other.
+ */
+@RunWith(AndroidJUnit4::class)
+class MessageLogReadBenchmark {
+    private val tag = "MessageLogReadBenchmark"
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        dir = File(context.cacheDir, "read_benchmark")
+        dir.mkdirs()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun compareXmlAndMappedJournal() {
+        for (count in intArrayOf(10_000, 100_000, 1_000_000)) {
+            val entries = (0 until count).map {
+                MessageLogManager.Entry(it + 1L, "+9198765" + (10_000 + it % 90_000), 1_700_000_000_000L + it * 1000L)
+            }
+            val xml = File(dir, "message_log.xml")
+            FileOutputStream(xml).use { writeXml(it, entries) }
+            val journalFile = File(dir, "message_log.journal")
+            MessageLogJournal(journalFile).rewrite(entries)
+            val segmentFile = File(dir, "message_log.segment")
+            MessageLogSegment.write(segmentFile, entries)
+
+            measure("xml", count, xml.length()) { MessageLogManager.readXml(xml).size }
+            measure("mapped, times only", count, journalFile.length()) {
+                val log = MessageLogJournal(journalFile).map()
+                var newest = 0L
+                for (i in 0 until log.size()) newest = maxOf(newest, log.timeAt(i))
+                assertEquals(entries.last().timeMillis, newest)
+                log.size()
+            }
+            measure("mapped, all entries", count, journalFile.length()) {
+                MessageLogJournal(journalFile).readAll().size
+            }
+            measure("compact segment, columns", count, segmentFile.length()) {
+                MessageLogColumns.of(MappedMessageLog.open(segmentFile), 0).size()
+            }
+            measure("compact segment, encode", count, segmentFile.length()) {
+                MessageLogSegment.write(segmentFile, entries)
+                count
+            }
+
+            xml.delete()
+            journalFile.delete()
+            segmentFile.delete()
+        }
+    }
+
+    // The old log format; the XML export writes the same document
+    private fun writeXml(out: OutputStream, entries: List<MessageLogManager.Entry>) {
+        MessageLogExporter(MessageLogExporter.Format.XML, false).writeEntries(entries, out, null)
+    }
+
+    private fun measure(path: String, count: Int, fileBytes: Long, read: () -> Int) {
+        val runtime = Runtime.getRuntime()
+        System.gc()
+        val baseline = runtime.totalMemory() - runtime.freeMemory()
+
+        val peak = AtomicLong(baseline)
+        val running = AtomicBoolean(true)
+        val sampler = Thread {
+            while (running.get()) {
+                peak.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), { a, b -> maxOf(a, b) })
+                Thread.sleep(1)
+            }
+        }
+        sampler.start()
+
+        val start = System.nanoTime()
+        val result = try {
+            read()
+        } catch (e: OutOfMemoryError) {
+            -1
+        }
+        val millis = (System.nanoTime() - start) / 1_000_000
+        running.set(false)
+        sampler.join()
+
+        if (result < 0) {
+            Log.i(tag, "$path, $count entries: out of memory")
+            return
+        }
+        assertEquals(count, result)
+        Log.i(tag, "$path, $count entries, ${fileBytes / 1024} KiB on disk: ${millis} ms, " +
+                "peak heap +${(peak.get() - baseline) / 1024} KiB")
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.callbacklater;
+
+import android.app.Application;
+
+/**
+ * Sets up what every component relies on, before any of them runs: the phone number
+ * normalizer that keys numbers, and the call log observer that replies to missed calls,
+ * which has to live as long as the process rather than any one activity.
+ */
+public class CallBackLaterApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        PhoneNumberNormalizer.init(this);
+        CallLogContentObserver.ensureRegistered(this);
+    }
+}
@@ -1,91 +1,216 @@
 package com.example.callbacklater;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.provider.CallLog;
 import android.util.Log;
 
 import androidx.core.content.ContextCompat;
-import androidx.core.content.PermissionChecker;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
 
-import com.example.callbacklater.MessageLogManager;
-
 import android.telephony.SmsManager;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
-
+/**
+ * Replies by SMS to missed calls as they appear in the call log.
+ *
+ * The call log provider notifies several times for one call (the row is inserted, then
+ * updated with the duration, caller info, and so on). Notifications are coalesced: each
+ * one restarts a short {@link #DEBOUNCE_MS} timer, and the call log is read once the
+ * burst is over. That read only asks for rows whose _ID is above a watermark kept in
+ * SharedPreferences, so every call is looked at exactly once, including two missed
+ * calls that arrive within the send window, and none is looked at again after a
+ * restart. The watermark starts at the newest row when the observer is first created,
+ * so old calls are never answered.
+ *
+ * Notifications and reads run on the observer's own thread, never the main thread.
+ * There is one observer per process, registered by {@link #ensureRegistered} when the
+ * process starts (see {@link CallBackLaterApplication}) and kept for its lifetime, so
+ * replies do not depend on any activity being alive.
+ */
 public class CallLogContentObserver extends ContentObserver {
 
-    private Context context;
     private static final String TAG = "CallLogObserver";
     private static final long SMS_SEND_WINDOW_MS = 3000; // 3 seconds
+    // Long enough to cover one call's burst of notifications, well inside the send window
+    private static final long DEBOUNCE_MS = 300;
+
+    private static final String PREFS_NAME = "call_log_observer";
+    private static final String KEY_LAST_CALL_ID = "last_call_id";
+
+    // The registered observer, once READ_CALL_LOG was granted
+    private static CallLogContentObserver registered;
+
+    private final Context context;
+    private final Handler handler;
+    private final SharedPreferences prefs;
+    private final Runnable evaluate = this::checkForNewMissedCalls;
 
-    public CallLogContentObserver(Handler handler, Context ctx) {
+    // Only used on the observer's thread
+    private int notifications;
+    private int evaluations;
+    private int callLogQueries;
+    private int messageLogQueries;
+
+    public CallLogContentObserver(Context ctx) {
+        this(ctx, startThread());
+    }
+
+    private CallLogContentObserver(Context ctx, Handler handler) {
         super(handler);
-        this.context = ctx;
+        this.context = ctx.getApplicationContext();
+        this.handler = handler;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        handler.post(this::initWatermark);
+    }
+
+    /**
+     * Register the process-wide observer on the call log, unless that was done already
+     * or READ_CALL_LOG is not granted yet. Called when the process starts and again when
+     * the permission is granted.
+     */
+    public static synchronized void ensureRegistered(Context ctx) {
+        if (registered != null) return;
+        Context app = ctx.getApplicationContext();
+        if (ContextCompat.checkSelfPermission(app, Manifest.permission.READ_CALL_LOG)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        CallLogContentObserver observer = new CallLogContentObserver(app);
+        try {
+            app.getContentResolver().registerContentObserver(CallLog.Calls.CONTENT_URI, true, observer);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot observe the call log", e);
+            observer.close();
+            return;
+        }
+        registered = observer;
+    }
+
+    private static Handler startThread() {
+        HandlerThread thread = new HandlerThread("CallLogObserver");
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
+
+    /**
+     * Stop the observer's thread. Pending evaluations are dropped.
+     */
+    private void close() {
+        handler.removeCallbacks(evaluate);
+        handler.getLooper().quitSafely();
     }
 
     @Override
     public void onChange(boolean selfChange, Uri uri) {
         super.onChange(selfChange, uri);
-        checkForRecentMissedCallAndSendSms();
+        notifications++;
+        handler.removeCallbacks(evaluate);
+        handler.postDelayed(evaluate, DEBOUNCE_MS);
+    }
+
+    /**
+     * On first use, start the watermark at the newest call so existing calls are skipped.
+     */
+    private void initWatermark() {
+        if (prefs.contains(KEY_LAST_CALL_ID) || !hasPermission(Manifest.permission.READ_CALL_LOG)) return;
+        Cursor cursor = null;
+        try {
+            callLogQueries++;
+            cursor = context.getContentResolver().query(CallLog.Calls.CONTENT_URI,
+                    new String[]{CallLog.Calls._ID}, null, null, CallLog.Calls._ID + " DESC LIMIT 1");
+            long newest = cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            prefs.edit().putLong(KEY_LAST_CALL_ID, newest).apply();
+            Log.i(TAG, "Call log watermark starts at _ID " + newest);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to read the newest call log row", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
-    private void checkForRecentMissedCallAndSendSms() {
+    private void checkForNewMissedCalls() {
         // Check permission READ_CALL_LOG
-        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CALL_LOG) != PackageManager.PERMISSION_GRANTED) {
+        if (!hasPermission(Manifest.permission.READ_CALL_LOG)) {
             Log.w(TAG, "READ_CALL_LOG permission not granted");
             return;
         }
         // Check SEND_SMS permission
-        if (ContextCompat.checkSelfPermission(context, Manifest.permission.SEND_SMS) != PackageManager.PERMISSION_GRANTED) {
+        if (!hasPermission(Manifest.permission.SEND_SMS)) {
             Log.w(TAG, "SEND_SMS permission not granted");
             return;
         }
+        if (!prefs.contains(KEY_LAST_CALL_ID)) {
+            // Permission was granted after the observer was created
+            initWatermark();
+            return;
+        }
 
+        evaluations++;
+        int callLogQueriesBefore = callLogQueries;
+        int messageLogQueriesBefore = messageLogQueries;
+        long watermark = prefs.getLong(KEY_LAST_CALL_ID, 0);
+        long saved = watermark;
         Cursor cursor = null;
         try {
-            Log.i(TAG, "Checking for recent missed calls to send SMS...");
             String[] projection = new String[]{
+                    CallLog.Calls._ID,
                     CallLog.Calls.NUMBER,
                     CallLog.Calls.TYPE,
                     CallLog.Calls.DATE
             };
-            String selection = CallLog.Calls.TYPE + " = ?";
-            String[] selectionArgs = new String[]{String.valueOf(CallLog.Calls.MISSED_TYPE)};
-            String sortOrder = CallLog.Calls.DATE + " DESC LIMIT 1";
-
-            cursor = context.getContentResolver().query(CallLog.Calls.CONTENT_URI, projection, selection, selectionArgs, sortOrder);
-
-            if (cursor != null && cursor.moveToFirst()) {
-                String number = cursor.getString(cursor.getColumnIndexOrThrow(CallLog.Calls.NUMBER));
-                long dateMillis = cursor.getLong(cursor.getColumnIndexOrThrow(CallLog.Calls.DATE));
+            String selection = CallLog.Calls._ID + " > ?";
+            String[] selectionArgs = new String[]{String.valueOf(watermark)};
+
+            callLogQueries++;
+            cursor = context.getContentResolver().query(CallLog.Calls.CONTENT_URI, projection, selection, selectionArgs,
+                    CallLog.Calls._ID + " ASC");
+            if (cursor == null) return;
+
+            int idColumn = cursor.getColumnIndexOrThrow(CallLog.Calls._ID);
+            int numberColumn = cursor.getColumnIndexOrThrow(CallLog.Calls.NUMBER);
+            int typeColumn = cursor.getColumnIndexOrThrow(CallLog.Calls.TYPE);
+            int dateColumn = cursor.getColumnIndexOrThrow(CallLog.Calls.DATE);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                watermark = Math.max(watermark, id);
+                if (cursor.getInt(typeColumn) != CallLog.Calls.MISSED_TYPE) continue;
+
+                String number = cursor.getString(numberColumn);
+                long dateMillis = cursor.getLong(dateColumn);
                 long now = System.currentTimeMillis();
+                Log.i(TAG, "New missed call _ID " + id + " from " + number + ", dateMillis: " + dateMillis + ", now: " + now);
+                if (now - dateMillis > SMS_SEND_WINDOW_MS) {
+                    Log.i(TAG, "Missed call is older than SMS send window. No SMS sent.");
+                    continue;
+                }
 
-                Log.i(TAG, "Most recent missed call number: " + number + ", dateMillis: " + dateMillis + ", now: " + now);
-
-                if (now - dateMillis <= SMS_SEND_WINDOW_MS) {
-                    // Check if already sent SMS for this number and timestamp
-                    List<MessageLogManager.Entry> sentEntries = MessageLogManager.filterEntries(context, number, dateMillis, now);
-                    if (sentEntries.isEmpty()) {
-                        Log.i(TAG, "Sending auto-reply SMS to number: " + number);
-                        sendAutoReplySms(number);
-                    } else {
-                        Log.i(TAG, "Auto-reply SMS already sent recently to: " + number);
-                    }
+                if (!ContactNumberSet.isReplyAllowed(context, number)) {
+                    Log.i(TAG, "Not a contact, no auto-reply (only contacts get replies): " + number);
+                    continue;
+                }
+
+                // EnhancedCallReceiver may have replied to the same call already
+                messageLogQueries++;
+                LogQuery replied = LogQuery.builder().contactEquals(number).channel(LogChannel.SMS_REPLY)
+                        .since(dateMillis).limit(1).countOnly().build();
+                if (MessageLogManager.query(context, replied).count == 0) {
+                    // On disk before replying: a crash mid-reply must not send the SMS twice
+                    prefs.edit().putLong(KEY_LAST_CALL_ID, watermark).commit();
+                    saved = watermark;
+                    Log.i(TAG, "Sending auto-reply SMS to number: " + number);
+                    sendAutoReplySms(number);
                 } else {
-                    Log.i(TAG, "Missed call is older than SMS send window. No SMS sent.");
+                    Log.i(TAG, "Auto-reply SMS already sent recently to: " + number);
                 }
-            } else {
-                Log.i(TAG, "No missed calls found in call log.");
             }
         } catch (Exception e) {
             Log.w(TAG, "Failed to check/send missed call SMS", e);
@@ -93,7 +218,16 @@ public class CallLogContentObserver extends ContentObserver {
             if (cursor != null) {
                 cursor.close();
             }
+            // Rows skipped since the last reply; seeing them again after a crash is harmless
+            if (watermark > saved) prefs.edit().putLong(KEY_LAST_CALL_ID, watermark).apply();
         }
+        Log.i(TAG, "Evaluation " + evaluations + " (" + notifications + " notifications so far): "
+                + (callLogQueries - callLogQueriesBefore) + " call log queries, "
+                + (messageLogQueries - messageLogQueriesBefore) + " message log queries");
+    }
+
+    private boolean hasPermission(String permission) {
+        return ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
     }
 
     private void sendAutoReplySms(String phoneNumber) {
@@ -109,7 +243,8 @@ public class CallLogContentObserver extends ContentObserver {
                 .getString("auto_reply_msg", "User is currently unavailable or sleeping. For urgent matters, please chat via What's App. Otherwise kindly return call at 4.00 pm or anytime thereafter.");
 
         try {
-            smsManager.sendTextMessage(phoneNumber, null, message, null, null);
+            smsManager.sendTextMessage(PhoneNumberNormalizer.getDefault().dialable(phoneNumber), null, message,
+                    null, null);
             MessageLogManager.addEntry(context, phoneNumber, System.currentTimeMillis());
         } catch (Exception e) {
             Log.w(TAG, "Failed to send auto-reply SMS", e);
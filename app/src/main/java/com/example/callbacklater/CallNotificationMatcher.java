@@ -0,0 +1,253 @@
+package com.example.callbacklater;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Classifies WhatsApp call notifications from their text, in any of the languages in
+ * {@link #PHRASES}:
+ *
+ *   "Missed voice call"         -> MISSED | AUDIO
+ *   "2 missed video calls"      -> MISSED | VIDEO
+ *   "Videollamada perdida"      -> MISSED | VIDEO
+ *   "Sorry I missed the meeting, can we do a video call?"  -> 0
+ *
+ * The text has to be one of WhatsApp's missed call phrases as a whole, apart from a
+ * leading count and surrounding whitespace; a chat message that merely contains the
+ * words is not a call. All phrases are compiled once into a trie held in flat arrays,
+ * so a text is walked char by char, each one lower-cased on the fly, and nothing is
+ * allocated. {@link #isCallNotification} rejects chat notifications before that, and
+ * {@link #findPhoneNumber} does the same for the caller's number. Thread safe.
+ */
+public final class CallNotificationMatcher {
+    static final int MISSED = 1;
+    static final int AUDIO = 1 << 1;
+    static final int VIDEO = 1 << 2;
+
+    // Notification.CATEGORY_CALL and CATEGORY_MISSED_CALL (API 31)
+    private static final String CATEGORY_CALL = "call";
+    private static final String CATEGORY_MISSED_CALL = "missed_call";
+
+    // Shortest run of digits, spaces and dashes read as a phone number
+    private static final int MIN_NUMBER_CHARS = 7;
+
+    /**
+     * Language, then WhatsApp's missed audio call and missed video call texts, singular
+     * and plural, separated by '|'. Matched against the whole text, ignoring case.
+     */
+    private static final String[][] PHRASES = {
+            {"en", "missed voice call|missed voice calls|missed audio call|missed audio calls",
+                    "missed video call|missed video calls"},
+            {"hi", "मिस्ड वॉइस कॉल|मिस्ड ऑडियो कॉल", "मिस्ड वीडियो कॉल"},
+            {"es", "llamada de voz perdida|llamadas de voz perdidas",
+                    "videollamada perdida|videollamadas perdidas"},
+            {"pt", "chamada de voz perdida|chamadas de voz perdidas",
+                    "chamada de vídeo perdida|chamadas de vídeo perdidas"
+                            + "|videochamada perdida|videochamadas perdidas"},
+            {"fr", "appel vocal manqué|appels vocaux manqués", "appel vidéo manqué|appels vidéo manqués"},
+            {"de", "verpasster sprachanruf|verpasste sprachanrufe",
+                    "verpasster videoanruf|verpasste videoanrufe"},
+            {"it", "chiamata vocale persa|chiamate vocali perse", "videochiamata persa|videochiamate perse"},
+            {"id", "panggilan suara tak terjawab", "panggilan video tak terjawab"},
+            {"ru", "пропущенный аудиозвонок|пропущенные аудиозвонки",
+                    "пропущенный видеозвонок|пропущенные видеозвонки"},
+    };
+
+    private static volatile CallNotificationMatcher all;
+
+    // Edges of node n are edgeChars/edgeTargets[edgeStart[n] .. edgeStart[n + 1]),
+    // sorted by char
+    private final int[] edgeStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    // Kinds of the phrase ending at the node, 0 if none does
+    private final int[] output;
+
+    /**
+     * Matcher for the phrases of `languages` (ISO 639-1, as in {@link #PHRASES}).
+     */
+    CallNotificationMatcher(String... languages) {
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<Integer> out = new ArrayList<>();
+        children.add(new HashMap<Character, Integer>());
+        out.add(0);
+        for (String[] row : PHRASES) {
+            if (!Arrays.asList(languages).contains(row[0])) continue;
+            int[] rowKinds = {MISSED | AUDIO, MISSED | VIDEO};
+            for (int k = 0; k < rowKinds.length; k++) {
+                for (String phrase : row[k + 1].split("\\|")) {
+                    String word = phrase.toLowerCase(Locale.ROOT);
+                    int node = 0;
+                    for (int i = 0; i < word.length(); i++) {
+                        Integer next = children.get(node).get(word.charAt(i));
+                        if (next == null) {
+                            next = children.size();
+                            children.get(node).put(word.charAt(i), next);
+                            children.add(new HashMap<Character, Integer>());
+                            out.add(0);
+                        }
+                        node = next;
+                    }
+                    out.set(node, out.get(node) | rowKinds[k]);
+                }
+            }
+        }
+
+        int nodes = children.size();
+        edgeStart = new int[nodes + 1];
+        int edges = 0;
+        for (int n = 0; n < nodes; n++) {
+            edgeStart[n] = edges;
+            edges += children.get(n).size();
+        }
+        edgeStart[nodes] = edges;
+        edgeChars = new char[edges];
+        edgeTargets = new int[edges];
+        output = new int[nodes];
+        for (int n = 0; n < nodes; n++) {
+            Character[] cs = children.get(n).keySet().toArray(new Character[0]);
+            Arrays.sort(cs);
+            for (int i = 0; i < cs.length; i++) {
+                edgeChars[edgeStart[n] + i] = cs[i];
+                edgeTargets[edgeStart[n] + i] = children.get(n).get(cs[i]);
+            }
+            output[n] = out.get(n);
+        }
+    }
+
+    /**
+     * The matcher for every language in {@link #PHRASES}; WhatsApp may be set to a
+     * language other than the device's.
+     */
+    public static CallNotificationMatcher get() {
+        CallNotificationMatcher m = all;
+        if (m != null) return m;
+        synchronized (CallNotificationMatcher.class) {
+            if (all == null) {
+                String[] languages = new String[PHRASES.length];
+                for (int i = 0; i < PHRASES.length; i++) languages[i] = PHRASES[i][0];
+                all = new CallNotificationMatcher(languages);
+            }
+            return all;
+        }
+    }
+
+    /**
+     * Whether a notification with this category and channel may be about a call: its
+     * category is a call one, or its channel's id mentions calls. Chat messages have
+     * neither. Without both (before Android 8) only the text can tell.
+     */
+    static boolean isCallNotification(String category, String channelId) {
+        if (category == null && channelId == null) return true;
+        if (CATEGORY_CALL.equals(category) || CATEGORY_MISSED_CALL.equals(category)) return true;
+        return channelId != null && containsIgnoreCase(channelId, "call");
+    }
+
+    /**
+     * The kind of missed call `text` reports: {@link #MISSED} with {@link #AUDIO} or
+     * {@link #VIDEO}, or 0 if it is not one of the phrases.
+     */
+    public int classify(CharSequence text) {
+        if (text == null) return 0;
+        int end = text.length();
+        while (end > 0 && isSpace(text.charAt(end - 1))) end--;
+        int i = 0;
+        while (i < end && isSpace(text.charAt(i))) i++;
+        // A leading count, as in "2 missed voice calls"
+        int afterCount = i;
+        while (afterCount < end && isDigit(text.charAt(afterCount))) afterCount++;
+        if (afterCount > i && afterCount < end && isSpace(text.charAt(afterCount))) {
+            i = afterCount;
+            while (i < end && isSpace(text.charAt(i))) i++;
+        }
+        if (i == end) return 0;
+
+        int node = 0;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\u00A0') c = ' '; // no-break space
+            node = child(node, Character.toLowerCase(c));
+            if (node < 0) return 0;
+        }
+        return output[node];
+    }
+
+    /**
+     * Whether `kinds` from {@link #classify} describe a missed audio or video call.
+     */
+    public static boolean isMissedCall(int kinds) {
+        return (kinds & MISSED) != 0 && (kinds & (AUDIO | VIDEO)) != 0;
+    }
+
+    private int child(int node, char c) {
+        int lo = edgeStart[node];
+        int hi = edgeStart[node + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char m = edgeChars[mid];
+            if (m < c) lo = mid + 1;
+            else if (m > c) hi = mid - 1;
+            else return edgeTargets[mid];
+        }
+        return -1;
+    }
+
+    /**
+     * The first phone number in `text`: an optional '+', then digits, spaces and dashes,
+     * starting and ending with a digit and at least {@link #MIN_NUMBER_CHARS} long. With
+     * `whole`, only if that is all of `text` but surrounding whitespace. Null if none.
+     */
+    static String findPhoneNumber(CharSequence text, boolean whole) {
+        if (text == null) return null;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int start = i;
+            if (text.charAt(i) == '+' && i + 1 < length && isDigit(text.charAt(i + 1))) i++;
+            if (!isDigit(text.charAt(i))) {
+                if (whole && !Character.isWhitespace(text.charAt(start))) return null;
+                i = start + 1;
+                continue;
+            }
+            int firstDigit = i;
+            int lastDigit = i;
+            for (i++; i < length; i++) {
+                char c = text.charAt(i);
+                if (isDigit(c)) lastDigit = i;
+                else if (c != '-' && !Character.isWhitespace(c)) break;
+            }
+            if (lastDigit - firstDigit + 1 >= MIN_NUMBER_CHARS) {
+                if (whole && !isBlank(text, lastDigit + 1, length)) return null;
+                return text.subSequence(start, lastDigit + 1).toString();
+            }
+            if (whole) return null;
+        }
+        return null;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == '\u00A0' || Character.isWhitespace(c);
+    }
+
+    private static boolean containsIgnoreCase(String s, String part) {
+        for (int i = 0; i + part.length() <= s.length(); i++) {
+            if (s.regionMatches(true, i, part, 0, part.length())) return true;
+        }
+        return false;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isBlank(CharSequence text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) return false;
+        }
+        return true;
+    }
+}
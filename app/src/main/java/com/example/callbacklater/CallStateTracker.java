@@ -0,0 +1,197 @@
+package com.example.callbacklater;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory state of the calls in progress, keyed by number, fed from the phone state
+ * broadcasts that {@link EnhancedCallReceiver} gets.
+ *
+ * Those broadcasts describe the phone, not a call: RINGING (with the ringing number,
+ * sometimes first without it), OFFHOOK when any call is active, IDLE when none is. So
+ * each call is tracked from its first RINGING:
+ *
+ *   RINGING --OFFHOOK--> ANSWERED --IDLE--> (ended, nothing to do)
+ *   RINGING --IDLE-----> missed
+ *
+ * A call that rings while another is already ANSWERED is a waiting call. When it stops
+ * ringing the phone goes back to OFFHOOK whether it was picked up or dismissed, and the
+ * broadcasts cannot tell which. So at IDLE a waiting call is only reported as missed if
+ * the system call log (a {@link CallLogLookup}) says so; a caller the user swapped to
+ * and talked with must not get the "unavailable" reply.
+ *
+ * The broadcasts can arrive in separate processes if this one is killed in between, so
+ * after every change the state is saved through a {@link Checkpoint} and restored from
+ * it on creation. The checkpoint is never read otherwise.
+ *
+ * Not thread safe; the receiver feeds it from one thread.
+ */
+final class CallStateTracker {
+    private static final String TAG = "CallStateTracker";
+
+    static final int RINGING = 0;
+    static final int ANSWERED = 1;
+
+    /**
+     * Where the state is saved between processes, as one string.
+     */
+    interface Checkpoint {
+        String load();
+
+        void save(String state);
+    }
+
+    static final class Call {
+        // Empty until a broadcast carries the number
+        final String number;
+        final long ringTimeMillis;
+        int state;
+        final boolean waiting;
+
+        Call(String number, long ringTimeMillis, int state, boolean waiting) {
+            this.number = number;
+            this.ringTimeMillis = ringTimeMillis;
+            this.state = state;
+            this.waiting = waiting;
+        }
+    }
+
+    /**
+     * What the system call log says became of a call.
+     */
+    interface CallLogLookup {
+        /**
+         * True if `call` was missed or rejected, false if it was answered, null if the
+         * call log does not say (yet).
+         */
+        Boolean wasMissed(Call call);
+    }
+
+    private final Checkpoint checkpoint;
+    // In ring order
+    private final Map<String, Call> calls = new LinkedHashMap<>();
+
+    CallStateTracker(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        restore(checkpoint.load());
+    }
+
+    /**
+     * A RINGING broadcast for `number` (null or empty if it did not carry one). Returns
+     * the call if this started it, or null if it was already ringing: the broadcast is
+     * often sent twice per call.
+     */
+    Call onRinging(String number, long nowMillis) {
+        String key = number == null ? "" : number.trim();
+        Call existing = calls.get(key);
+        if (existing != null && existing.state == RINGING) return null;
+        // A number cannot ring while in a call; an answered entry is left over from a lost IDLE
+        if (existing != null) calls.remove(key);
+
+        Call unknown = calls.get("");
+        if (!key.isEmpty() && unknown != null && unknown.state == RINGING) {
+            // The same ring as the earlier broadcast without a number, now with it
+            calls.remove("");
+            Call call = new Call(key, unknown.ringTimeMillis, RINGING, unknown.waiting);
+            calls.put(key, call);
+            save();
+            return call;
+        }
+        if (key.isEmpty() && hasRinging()) return null;
+
+        Call call = new Call(key, nowMillis, RINGING, hasAnswered());
+        calls.put(key, call);
+        save();
+        return call;
+    }
+
+    /**
+     * An OFFHOOK broadcast: the ringing call was picked up, or a waiting call stopped
+     * ringing (see the class comment).
+     */
+    void onOffhook() {
+        boolean changed = false;
+        for (Iterator<Call> it = calls.values().iterator(); it.hasNext(); ) {
+            Call call = it.next();
+            if (call.state != RINGING) continue;
+            if (call.waiting) {
+                // Kept as ringing; IDLE asks the call log what became of it
+                continue;
+            }
+            call.state = ANSWERED;
+            changed = true;
+        }
+        if (changed) save();
+    }
+
+    /**
+     * An IDLE broadcast: every call has ended. Returns the calls that were missed, in
+     * ring order. Waiting calls are only among them if `callLog` says they were missed.
+     */
+    List<Call> onIdle(CallLogLookup callLog) {
+        List<Call> missed = new ArrayList<>();
+        for (Call call : calls.values()) {
+            if (call.state != RINGING) continue;
+            if (call.waiting && !Boolean.TRUE.equals(callLog.wasMissed(call))) {
+                Log.i(TAG, "Waiting call not missed per call log: " + call.number);
+                continue;
+            }
+            missed.add(call);
+        }
+        if (!calls.isEmpty()) {
+            calls.clear();
+            save();
+        }
+        return missed;
+    }
+
+    int size() {
+        return calls.size();
+    }
+
+    private boolean hasRinging() {
+        for (Call call : calls.values()) {
+            if (call.state == RINGING && !call.waiting) return true;
+        }
+        return false;
+    }
+
+    private boolean hasAnswered() {
+        for (Call call : calls.values()) {
+            if (call.state == ANSWERED) return true;
+        }
+        return false;
+    }
+
+    /**
+     * One line per call: state, waiting flag, ring time, number.
+     */
+    private void save() {
+        StringBuilder sb = new StringBuilder();
+        for (Call call : calls.values()) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(call.state).append(',').append(call.waiting ? 1 : 0).append(',')
+                    .append(call.ringTimeMillis).append(',').append(call.number);
+        }
+        checkpoint.save(sb.toString());
+    }
+
+    private void restore(String saved) {
+        if (saved == null || saved.isEmpty()) return;
+        for (String line : saved.split("\n")) {
+            String[] parts = line.split(",", 4);
+            try {
+                Call call = new Call(parts[3], Long.parseLong(parts[2]), Integer.parseInt(parts[0]),
+                        "1".equals(parts[1]));
+                calls.put(call.number, call);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Dropping unreadable call state: " + line);
+            }
+        }
+    }
+}
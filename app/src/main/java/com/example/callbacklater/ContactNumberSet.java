@@ -0,0 +1,219 @@
+package com.example.callbacklater;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Every phone number in the user's contacts, held in memory as a hash set, so checking
+ * whether a caller is a contact costs no provider query.
+ *
+ * The set is loaded on its own thread the first time {@link #get} is called with
+ * READ_CONTACTS granted, and reloaded (coalesced over {@link #RELOAD_DELAY_MS}) whenever
+ * the contacts provider reports a change. Until the first load is done,
+ * {@link #isContact} falls back to a PhoneLookup query.
+ *
+ * Numbers are compared in E.164 (see {@link PhoneNumberNormalizer}), so a contact saved
+ * without its country code still matches the caller's number with it. After the default
+ * country changes, {@link #reload} re-keys the set.
+ */
+public final class ContactNumberSet {
+    private static final String TAG = "ContactNumberSet";
+
+    private static final long RELOAD_DELAY_MS = 2000;
+
+    private static final String PREFS_NAME = "call_prefs";
+    private static final String KEY_WHITELIST_ONLY = "whitelist_only";
+
+    private static volatile ContactNumberSet instance;
+
+    private final Context context;
+    private final Handler handler;
+    private final Runnable reload = this::load;
+    private final ContentObserver observer;
+    // Set on the set's thread once the observer is registered
+    private volatile boolean started;
+    // Null until the first load
+    private volatile Set<String> keys;
+
+    private ContactNumberSet(Context ctx) {
+        this.context = ctx.getApplicationContext();
+        HandlerThread thread = new HandlerThread("ContactNumbers");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+        this.observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                handler.removeCallbacks(reload);
+                handler.postDelayed(reload, RELOAD_DELAY_MS);
+            }
+        };
+    }
+
+    /**
+     * The process-wide set, starting its load if that has not happened yet.
+     */
+    public static ContactNumberSet get(Context ctx) {
+        ContactNumberSet set = instance;
+        if (set == null) {
+            synchronized (ContactNumberSet.class) {
+                if (instance == null) instance = new ContactNumberSet(ctx);
+                set = instance;
+            }
+        }
+        if (!set.started) set.handler.post(set::start);
+        return set;
+    }
+
+    /**
+     * Whether an automatic reply may go to `number`: always, unless the "Only reply to
+     * contacts" setting is on and the number is not a contact.
+     */
+    static boolean isReplyAllowed(Context ctx, String number) {
+        if (!ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getBoolean(KEY_WHITELIST_ONLY, false)) {
+            return true;
+        }
+        return get(ctx).isContact(number);
+    }
+
+    /**
+     * Key of `number` in the set: its normalized form. Empty if it is not a number.
+     */
+    static String keyFor(String number) {
+        String normalized = PhoneNumberNormalizer.getDefault().normalize(number);
+        return normalized == null ? "" : normalized;
+    }
+
+    /**
+     * Keys of all of `numbers`.
+     */
+    static Set<String> keysOf(Collection<String> numbers) {
+        Set<String> result = new HashSet<>(numbers.size() * 2);
+        for (String number : numbers) {
+            String key = keyFor(number);
+            if (!key.isEmpty()) result.add(key);
+        }
+        return result;
+    }
+
+    public boolean isLoaded() {
+        return keys != null;
+    }
+
+    /**
+     * Number of distinct keys, 0 until loaded.
+     */
+    public int size() {
+        Set<String> k = keys;
+        return k == null ? 0 : k.size();
+    }
+
+    /**
+     * Whether `number` is one of the user's contacts. Before the first load this is a
+     * provider query; after it, a hash set lookup.
+     */
+    public boolean isContact(String number) {
+        String key = keyFor(number);
+        if (key.isEmpty()) return false;
+        Set<String> k = keys;
+        if (k != null) return k.contains(key);
+        return lookup(number);
+    }
+
+    /**
+     * Replace the set's contents; for tests, and for the loader.
+     */
+    void replace(Collection<String> numbers) {
+        keys = keysOf(numbers);
+    }
+
+    /**
+     * Load the set again in the background, e.g. because the keys changed.
+     */
+    public void reload() {
+        handler.removeCallbacks(reload);
+        handler.post(reload);
+    }
+
+    private void start() {
+        if (started) return;
+        if (!hasPermission()) {
+            Log.w(TAG, "READ_CONTACTS permission not granted");
+            return;
+        }
+        try {
+            context.getContentResolver().registerContentObserver(
+                    ContactsContract.CommonDataKinds.Phone.CONTENT_URI, true, observer);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot observe contacts", e);
+            return;
+        }
+        started = true;
+        load();
+    }
+
+    private void load() {
+        if (!hasPermission()) return;
+        long start = System.nanoTime();
+        Set<String> numbers = new HashSet<>();
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                    new String[]{
+                            ContactsContract.CommonDataKinds.Phone.NUMBER,
+                            ContactsContract.CommonDataKinds.Phone.NORMALIZED_NUMBER
+                    }, null, null, null);
+            if (cursor == null) return;
+            while (cursor.moveToNext()) {
+                String number = cursor.getString(0);
+                if (number != null) numbers.add(number);
+                String normalized = cursor.getString(1);
+                if (normalized != null) numbers.add(normalized);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to load contact numbers", e);
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        replace(numbers);
+        Log.i(TAG, "Loaded " + size() + " contact numbers in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private boolean lookup(String number) {
+        Cursor cursor = null;
+        try {
+            Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+            cursor = context.getContentResolver().query(uri,
+                    new String[]{ContactsContract.PhoneLookup._ID}, null, null, null);
+            return cursor != null && cursor.getCount() > 0;
+        } catch (Exception e) {
+            Log.w(TAG, "Error checking contacts", e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private boolean hasPermission() {
+        return ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+}
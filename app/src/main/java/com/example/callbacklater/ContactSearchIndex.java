@@ -0,0 +1,351 @@
+package com.example.callbacklater;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Trigram index over the contacts in the message log, for substring search in the log
+ * viewer.
+ *
+ * Each distinct contact is indexed once under two keys: its text lowercased, and its
+ * digits alone. Every three-character slice of a key maps to a sorted list of contact
+ * numbers, and a query only checks the contacts in the shortest of its trigram lists.
+ * A query made of digits and phone number punctuation (spaces, dashes, brackets, '+')
+ * is matched against the digit keys, so "98765" finds "+91 98765-43210" however the
+ * number was written. Queries shorter than three characters check every distinct
+ * contact, which is still far fewer than the log entries.
+ *
+ * Each contact also keeps the ids of its live entries, ascending, and is filed under its
+ * normalized number ({@link ReplyDedupeIndex#keyFor(String)}) for {@link #exact}
+ * lookups. {@link JournalLogStore} compares {@link #entryCount} with the size of a time
+ * range to decide whether a query should walk the matching contacts' ids or the time
+ * index. Kept up to date as entries are added and deleted, and rebuilt when the log is
+ * reloaded from disk.
+ */
+public class ContactSearchIndex {
+    private static final int GRAM = 3;
+
+    private static class Contact {
+        final int number;
+        final String text;
+        final String digits;
+        final String contact;
+        final String key;
+        // Live log entries with this contact
+        int entries;
+        // Ids of those entries that have one, ascending
+        long[] ids = new long[2];
+        int idCount;
+
+        Contact(int number, String contact) {
+            this.number = number;
+            this.contact = contact;
+            this.text = contact.toLowerCase(Locale.ROOT);
+            this.digits = digitsOf(contact);
+            this.key = ReplyDedupeIndex.keyFor(contact);
+        }
+
+        void addId(long id) {
+            if (id <= 0) return;
+            if (idCount == ids.length) ids = Arrays.copyOf(ids, idCount * 2);
+            // Ids arrive in increasing order except when a log is replayed out of order
+            int i = idCount;
+            while (i > 0 && ids[i - 1] > id) i--;
+            System.arraycopy(ids, i, ids, i + 1, idCount - i);
+            ids[i] = id;
+            idCount++;
+        }
+
+        void removeId(long id) {
+            int i = Arrays.binarySearch(ids, 0, idCount, id);
+            if (i < 0) return;
+            System.arraycopy(ids, i + 1, ids, i, idCount - i - 1);
+            idCount--;
+        }
+
+        /**
+         * Remove the ids in `removed`, which is sorted, in one pass.
+         */
+        void removeIds(long[] removed, int count) {
+            int n = 0;
+            int r = 0;
+            for (int i = 0; i < idCount; i++) {
+                while (r < count && removed[r] < ids[i]) r++;
+                if (r < count && removed[r] == ids[i]) continue;
+                ids[n++] = ids[i];
+            }
+            idCount = n;
+        }
+    }
+
+    /**
+     * Growable sorted list of contact numbers. Numbers are handed out in increasing order,
+     * so adding is an append.
+     */
+    private static class Postings {
+        int[] numbers = new int[4];
+        int size;
+
+        void add(int number) {
+            if (size > 0 && numbers[size - 1] == number) return;
+            if (size == numbers.length) numbers = Arrays.copyOf(numbers, size * 2);
+            numbers[size++] = number;
+        }
+
+        void remove(int number) {
+            int i = Arrays.binarySearch(numbers, 0, size, number);
+            if (i < 0) return;
+            System.arraycopy(numbers, i + 1, numbers, i, size - i - 1);
+            size--;
+        }
+    }
+
+    private final Map<String, Contact> byContact = new HashMap<>();
+    private final Map<String, List<Contact>> byKey = new HashMap<>();
+    private final List<Contact> byNumber = new ArrayList<>();
+    private final Map<Long, Postings> textGrams = new HashMap<>();
+    private final Map<Long, Postings> digitGrams = new HashMap<>();
+
+    /**
+     * Replace the index contents with `entries`.
+     */
+    public synchronized void rebuild(List<MessageLogManager.Entry> entries) {
+        clear();
+        for (MessageLogManager.Entry e : entries) {
+            add(e.contact, e.id);
+        }
+    }
+
+    /**
+     * Replace the index contents with the rows of `rows`.
+     */
+    public synchronized void rebuild(MessageLogColumns rows) {
+        clear();
+        for (int i = 0; i < rows.size(); i++) {
+            add(rows.contactAt(i), rows.idAt(i));
+        }
+    }
+
+    public synchronized void add(MessageLogManager.Entry entry) {
+        add(entry.contact, entry.id);
+    }
+
+    private void clear() {
+        byContact.clear();
+        byKey.clear();
+        byNumber.clear();
+        textGrams.clear();
+        digitGrams.clear();
+    }
+
+    private void add(String contact, long id) {
+        String key = contact == null ? "" : contact;
+        Contact c = byContact.get(key);
+        if (c == null) {
+            c = new Contact(byNumber.size(), key);
+            byContact.put(key, c);
+            byNumber.add(c);
+            List<Contact> sameNumber = byKey.get(c.key);
+            if (sameNumber == null) {
+                sameNumber = new ArrayList<>(1);
+                byKey.put(c.key, sameNumber);
+            }
+            sameNumber.add(c);
+            addGrams(textGrams, c.text, c.number);
+            addGrams(digitGrams, c.digits, c.number);
+        }
+        c.entries++;
+        c.addId(id);
+    }
+
+    public synchronized void remove(MessageLogManager.Entry entry) {
+        Contact c = byContact.get(entry.contact == null ? "" : entry.contact);
+        if (c == null || c.entries == 0) return;
+        c.removeId(entry.id);
+        removeEntries(c, 1);
+    }
+
+    /**
+     * Remove every entry in `entries`, e.g. the oldest ones dropped by retention. Each
+     * contact's ids are compacted once rather than once per entry.
+     */
+    public synchronized void removeAll(List<MessageLogManager.Entry> entries) {
+        Map<Contact, long[]> removedIds = new HashMap<>();
+        Map<Contact, Integer> removedCounts = new HashMap<>();
+        for (MessageLogManager.Entry e : entries) {
+            Contact c = byContact.get(e.contact == null ? "" : e.contact);
+            if (c == null) continue;
+            Integer counted = removedCounts.get(c);
+            int count = counted == null ? 0 : counted;
+            long[] ids = removedIds.get(c);
+            if (ids == null) {
+                ids = new long[4];
+            } else if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count] = e.id;
+            removedIds.put(c, ids);
+            removedCounts.put(c, count + 1);
+        }
+        for (Map.Entry<Contact, Integer> e : removedCounts.entrySet()) {
+            Contact c = e.getKey();
+            int count = e.getValue();
+            long[] ids = removedIds.get(c);
+            Arrays.sort(ids, 0, count);
+            c.removeIds(ids, count);
+            removeEntries(c, Math.min(count, c.entries));
+        }
+    }
+
+    private void removeEntries(Contact c, int count) {
+        c.entries -= count;
+        if (c.entries > 0) return;
+        // The number is not reused, so postings stay sorted if the contact comes back
+        byContact.remove(c.contact);
+        List<Contact> sameNumber = byKey.get(c.key);
+        if (sameNumber != null) {
+            sameNumber.remove(c);
+            if (sameNumber.isEmpty()) byKey.remove(c.key);
+        }
+        removeGrams(textGrams, c.text, c.number);
+        removeGrams(digitGrams, c.digits, c.number);
+    }
+
+    /**
+     * The distinct contacts in the log with the same normalized number as `contact`
+     * (see {@link ReplyDedupeIndex#keyFor(String)}), however each was formatted.
+     */
+    public synchronized List<String> exact(String contact) {
+        List<String> out = new ArrayList<>();
+        List<Contact> sameNumber = byKey.get(ReplyDedupeIndex.keyFor(contact));
+        if (sameNumber != null) {
+            for (Contact c : sameNumber) out.add(c.contact);
+        }
+        return out;
+    }
+
+    /**
+     * Live log entries with any of `contacts`.
+     */
+    public synchronized int entryCount(Collection<String> contacts) {
+        int n = 0;
+        for (String contact : contacts) {
+            Contact c = byContact.get(contact);
+            if (c != null) n += c.entries;
+        }
+        return n;
+    }
+
+    /**
+     * Ids of the live log entries with any of `contacts`, ascending.
+     */
+    public synchronized long[] idsOf(Collection<String> contacts) {
+        int n = 0;
+        for (String contact : contacts) {
+            Contact c = byContact.get(contact);
+            if (c != null) n += c.idCount;
+        }
+        long[] out = new long[n];
+        n = 0;
+        for (String contact : contacts) {
+            Contact c = byContact.get(contact);
+            if (c == null) continue;
+            System.arraycopy(c.ids, 0, out, n, c.idCount);
+            n += c.idCount;
+        }
+        if (contacts.size() > 1) Arrays.sort(out);
+        return out;
+    }
+
+    /**
+     * The distinct contacts in the log that contain `query`, in no particular order. See
+     * the class comment for how digit-only queries are matched.
+     */
+    public synchronized List<String> search(String query) {
+        String digits = digitQuery(query);
+        String needle = digits != null ? digits : query.toLowerCase(Locale.ROOT);
+        Map<Long, Postings> grams = digits != null ? digitGrams : textGrams;
+
+        List<String> out = new ArrayList<>();
+        if (needle.length() < GRAM) {
+            for (Contact c : byNumber) {
+                if (c.entries > 0 && keyOf(c, digits != null).contains(needle)) out.add(c.contact);
+            }
+            return out;
+        }
+
+        // Candidates come from the rarest trigram in the query
+        Postings rarest = null;
+        for (int i = 0; i + GRAM <= needle.length(); i++) {
+            Postings p = grams.get(gram(needle, i));
+            if (p == null) return out;
+            if (rarest == null || p.size < rarest.size) rarest = p;
+        }
+        for (int i = 0; i < rarest.size; i++) {
+            Contact c = byNumber.get(rarest.numbers[i]);
+            if (keyOf(c, digits != null).contains(needle)) out.add(c.contact);
+        }
+        return out;
+    }
+
+    private static String keyOf(Contact c, boolean digits) {
+        return digits ? c.digits : c.text;
+    }
+
+    /**
+     * The digits of `query` if it is a phone number fragment (digits plus formatting
+     * characters), otherwise null.
+     */
+    static String digitQuery(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        for (int i = 0; i < query.length(); i++) {
+            char ch = query.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                sb.append(ch);
+            } else if (ch != ' ' && ch != '-' && ch != '+' && ch != '(' && ch != ')' && ch != '.') {
+                return null;
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static String digitsOf(String contact) {
+        StringBuilder sb = new StringBuilder(contact.length());
+        for (int i = 0; i < contact.length(); i++) {
+            char ch = contact.charAt(i);
+            if (ch >= '0' && ch <= '9') sb.append(ch);
+        }
+        return sb.toString();
+    }
+
+    private static long gram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    private static void addGrams(Map<Long, Postings> grams, String key, int number) {
+        for (int i = 0; i + GRAM <= key.length(); i++) {
+            Long g = gram(key, i);
+            Postings p = grams.get(g);
+            if (p == null) {
+                p = new Postings();
+                grams.put(g, p);
+            }
+            p.add(number);
+        }
+    }
+
+    private static void removeGrams(Map<Long, Postings> grams, String key, int number) {
+        for (int i = 0; i + GRAM <= key.length(); i++) {
+            Long g = gram(key, i);
+            Postings p = grams.get(g);
+            if (p == null) continue;
+            p.remove(number);
+            if (p.size == 0) grams.remove(g);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.example.callbacklater;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -10,28 +11,60 @@ import android.os.Build;
 import android.Manifest;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.telephony.PhoneNumberUtils;
+import android.database.Cursor;
+import android.provider.CallLog;
 import android.telephony.SmsManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
-import com.example.callbacklater.MessageLogManager;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class EnhancedCallReceiver extends BroadcastReceiver {
+    private static final String TAG = "EnhancedCallReceiver";
     private static final String[] SPAM_KEYWORDS = {"SPAM", "SCAM", "TELEMARKETING"};
     private static final String SPAM_CHANNEL_ID = "SPAM_CALL_CHANNEL";
+    static final int SPAM_NOTIFICATION_ID = 1001;
     private static final String PREFS_NAME = "call_prefs";
+    // Checkpoint of the CallStateTracker
+    private static final String KEY_CALL_STATE = "call_state";
+    // Written by versions that tracked a single call
     private static final String KEY_INCOMING = "last_incoming";
     private static final String KEY_RING_TS = "ring_ts";
     private static final String KEY_ANSWERED = "answered";
     private static final String KEY_AUTO_REPLY = "auto_reply_msg";
     private static final String KEY_WHITELIST_ONLY = "whitelist_only";
     private static final long MISSED_WINDOW_MS = 5 * 60 * 1000; // 5 minutes
-
+    // The call log row of a call is written around the time of its IDLE broadcast
+    private static final int CALL_LOG_POLLS = 6;
+    private static final long CALL_LOG_POLL_MS = 500;
+    // Call log dates are when the call started ringing, a little before our broadcast
+    private static final long CALL_LOG_DATE_SLACK_MS = 5000;
+    // Longest the broadcast is held open for log writes to reach the disk
+    private static final long LOG_FLUSH_TIMEOUT_MS = 2000;
+
+    // One thread, so broadcasts are applied to the tracker in the order they arrived
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "CallReceiver");
+        t.setDaemon(true);
+        return t;
+    });
+    // Only used on the executor
+    private static CallStateTracker tracker;
+
+    /**
+     * Hands the broadcast to a background thread and returns at once; see
+     * {@link #handle} for the work. The broadcast is held open with goAsync() until
+     * the work is done and the log entries it wrote are on disk.
+     */
     @Override
     public void onReceive(Context context, Intent intent) {
         if (intent == null) return;
@@ -41,101 +74,254 @@ public class EnhancedCallReceiver extends BroadcastReceiver {
             // In some cases state might be in "state" key, fallback
             state = intent.getStringExtra("state");
         }
+        String phoneNumber = intent.getExtras() == null ? null
+                : intent.getExtras().getString(TelephonyManager.EXTRA_INCOMING_NUMBER);
+
+        Context app = context.getApplicationContext();
+        String callState = state;
+        long receivedNanos = System.nanoTime();
+        PendingResult result = goAsync();
+        EXECUTOR.execute(() -> {
+            long startNanos = System.nanoTime();
+            try {
+                handle(app, callState, phoneNumber);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to handle " + callState, e);
+            } finally {
+                awaitLogWrites(app);
+                result.finish();
+            }
+            long doneNanos = System.nanoTime();
+            Log.i(TAG, callState + " handled in " + (doneNanos - receivedNanos) / 1_000_000 + " ms ("
+                    + (startNanos - receivedNanos) / 1_000_000 + " ms queued, "
+                    + (doneNanos - startNanos) / 1_000_000 + " ms running); broadcast budget is 10 s");
+        });
+    }
+
+    /**
+     * Wait, for at most {@link #LOG_FLUSH_TIMEOUT_MS}, until every log entry added so far
+     * is on disk: the replies an IDLE sends, and the entry {@link #handleSpamCall} adds
+     * for a RINGING call blocked as spam. The log's writer is a daemon thread that
+     * commits in batches, and once the broadcast finishes the process may be killed,
+     * losing the entries while the dedupe prefs keep them.
+     */
+    private static void awaitLogWrites(Context context) {
+        try {
+            MessageLogManager.flush(context).get(LOG_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            Log.w(TAG, "Log entries may not be on disk yet", e);
+        }
+    }
 
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    /**
+     * Apply one phone state broadcast to the call tracker and act on the result: a new
+     * ringing call from a non-contact is checked for spam, and every call an IDLE
+     * reports as missed gets the auto-reply (only contacts do with "whitelist_only" on).
+     * Runs on the executor.
+     */
+    private void handle(Context context, String state, String phoneNumber) {
+        CallStateTracker calls = getTracker(context);
 
         if (TelephonyManager.EXTRA_STATE_RINGING.equals(state)) {
-            String phoneNumber = null;
-            if (intent.getExtras() != null) {
-                phoneNumber = intent.getExtras().getString(
-                        TelephonyManager.EXTRA_INCOMING_NUMBER);
-            }
-
             if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
-                Log.w("EnhancedCallReceiver", "Incoming phone number is null or empty at RINGING state");
+                Log.w(TAG, "Incoming phone number is null or empty at RINGING state");
             } else {
-                Log.i("EnhancedCallReceiver", "Incoming phone number at RINGING: " + phoneNumber);
+                Log.i(TAG, "Incoming phone number at RINGING: " + phoneNumber);
             }
 
-            // store ringing state
-            prefs.edit()
-                    .putString(KEY_INCOMING, phoneNumber)
-                    .putLong(KEY_RING_TS, System.currentTimeMillis())
-                    .putBoolean(KEY_ANSWERED, false)
-                    .apply();
-
-            boolean isSpam = isLikelySpam(phoneNumber, context);
-
-            if (!isSpam) {
+            CallStateTracker.Call call = calls.onRinging(phoneNumber, System.currentTimeMillis());
+            if (call == null) {
+                Log.i(TAG, "Already ringing: " + phoneNumber);
+                return;
+            }
+            if (call.waiting) Log.i(TAG, "Call waiting from: " + call.number);
+
+            // Contacts are never spam
+            boolean contact = ContactNumberSet.get(context).isContact(call.number);
+            if (!contact && isLikelySpam(context, call.number)) {
+                handleSpamCall(context, call.number);
+            } else if (!contact && isWhitelistOnly(context)) {
+                Log.i(TAG, "Not a contact, not handled (only contacts get replies): " + call.number);
+            } else {
                 Intent serviceIntent = new Intent(context, CallbackService.class);
-                serviceIntent.putExtra("phoneNumber", phoneNumber);
+                serviceIntent.putExtra("phoneNumber", call.number);
                 try {
                     ContextCompat.startForegroundService(context, serviceIntent);
                 } catch (Exception e) {
-                    Log.w("EnhancedCallReceiver", "Failed to start CallbackService", e);
+                    Log.w(TAG, "Failed to start CallbackService", e);
                 }
-            } else {
-                handleSpamCall(context, phoneNumber);
             }
-
             return;
         }
 
         // Call was answered (OFFHOOK)
         if (TelephonyManager.EXTRA_STATE_OFFHOOK.equals(state)) {
-            prefs.edit().putBoolean(KEY_ANSWERED, true).apply();
-            Log.i("EnhancedCallReceiver", "Call state changed to OFFHOOK - answered");
+            calls.onOffhook();
+            Log.i(TAG, "Call state changed to OFFHOOK - answered");
             return;
         }
 
-        // Call ended / idle: check if we recently had a ringing without answer
+        // Call ended / idle: every call still ringing was missed
         if (TelephonyManager.EXTRA_STATE_IDLE.equals(state)) {
-            String lastIncoming = prefs.getString(KEY_INCOMING, null);
-            long ringTs = prefs.getLong(KEY_RING_TS, 0);
-            boolean answered = prefs.getBoolean(KEY_ANSWERED, false);
+            List<CallStateTracker.Call> missed = calls.onIdle(call -> callLogOutcome(context, call));
+            if (missed.isEmpty()) {
+                Log.i(TAG, "No missed call to process or call was answered.");
+                return;
+            }
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            String autoReply = prefs.getString(KEY_AUTO_REPLY, "User is currently unavailable or sleeping. For urgent matters, please chat via What's App. Otherwise kindly return call at 4.00 pm or anytime thereafter.");
+            boolean whitelistOnly = prefs.getBoolean(KEY_WHITELIST_ONLY, false);
+            ContactNumberSet contacts = ContactNumberSet.get(context);
+
+            for (CallStateTracker.Call call : missed) {
+                Log.i(TAG, "Missed call detected from: " + call.number
+                        + (call.waiting ? " (call waiting)" : ""));
+                if (whitelistOnly && !contacts.isContact(call.number)) {
+                    Log.i(TAG, "Not a contact, no auto-reply (only contacts get replies): " + call.number);
+                    continue;
+                }
+                sendAutoReplySms(context, call.number, autoReply);
+            }
+        }
+    }
 
-            // clear stored state
-            prefs.edit().remove(KEY_INCOMING).remove(KEY_RING_TS).remove(KEY_ANSWERED).apply();
+    /**
+     * What the call log says became of a waiting `call` (see
+     * {@link CallStateTracker.CallLogLookup}), polled for a few seconds since its row
+     * may not be written yet.
+     */
+    private static Boolean callLogOutcome(Context context, CallStateTracker.Call call) {
+        for (int attempt = 1; ; attempt++) {
+            Boolean missed = readCallLogOutcome(context, call);
+            if (missed != null || attempt == CALL_LOG_POLLS) return missed;
+            try {
+                Thread.sleep(CALL_LOG_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private static Boolean readCallLogOutcome(Context context, CallStateTracker.Call call) {
+        if (call.number.isEmpty()) return null;
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CALL_LOG)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "READ_CALL_LOG permission not granted");
+            return null;
+        }
+        PhoneNumberNormalizer normalizer = PhoneNumberNormalizer.getDefault();
+        String key = normalizer.keyOf(call.number);
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(CallLog.Calls.CONTENT_URI,
+                    new String[]{CallLog.Calls.NUMBER, CallLog.Calls.TYPE},
+                    CallLog.Calls.DATE + " >= ?",
+                    new String[]{String.valueOf(call.ringTimeMillis - CALL_LOG_DATE_SLACK_MS)},
+                    CallLog.Calls.DATE + " DESC");
+            if (cursor == null) return null;
+            while (cursor.moveToNext()) {
+                if (!key.equals(normalizer.keyOf(cursor.getString(0)))) continue;
+                int type = cursor.getInt(1);
+                if (type == CallLog.Calls.MISSED_TYPE || type == CallLog.Calls.REJECTED_TYPE) return true;
+                if (type == CallLog.Calls.INCOMING_TYPE) return false;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to read the call log", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return null;
+    }
 
-            if (lastIncoming != null && !answered) {
-                Log.i("EnhancedCallReceiver", "Missed call detected from: " + lastIncoming);
-                String autoReply = prefs.getString(KEY_AUTO_REPLY, "User is currently unavailable or sleeping. For urgent matters, please chat via What's App. Otherwise kindly return call at 4.00 pm or anytime thereafter.");
-                boolean whitelistOnly = prefs.getBoolean(KEY_WHITELIST_ONLY, false);
+    private static boolean isWhitelistOnly(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getBoolean(KEY_WHITELIST_ONLY, false);
+    }
 
-                // Send auto-reply SMS to all missed callers immediately (ignore whitelist setting)
-                sendAutoReplySms(context, lastIncoming, autoReply);
-            } else {
-                Log.i("EnhancedCallReceiver", "No missed call to process or call was answered.");
+    private static CallStateTracker getTracker(Context context) {
+        if (tracker == null) {
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            if (prefs.contains(KEY_INCOMING)) {
+                prefs.edit().remove(KEY_INCOMING).remove(KEY_RING_TS).remove(KEY_ANSWERED).apply();
             }
+            tracker = new CallStateTracker(new CallStateTracker.Checkpoint() {
+                @Override
+                public String load() {
+                    return prefs.getString(KEY_CALL_STATE, "");
+                }
+
+                @Override
+                public void save(String state) {
+                    prefs.edit().putString(KEY_CALL_STATE, state).apply();
+                }
+            });
         }
+        return tracker;
     }
 
-    private boolean isLikelySpam(String phoneNumber, Context context) {
+    /**
+     * Whether the ringing number looks like spam. A number that rang recently gets the
+     * verdict cached then; otherwise see {@link #classify} for the checks.
+     */
+    private boolean isLikelySpam(Context context, String phoneNumber) {
         if (phoneNumber == null || phoneNumber.trim().isEmpty()) return false;
+        String key = SpamVerdictCache.keyFor(phoneNumber);
+        // Without digits there is nothing to key on (and the keyword check is all there is)
+        if (key.isEmpty()) return classify(context, phoneNumber, key);
+
+        SpamVerdictCache verdicts = SpamVerdictCache.get(context);
+        long now = System.currentTimeMillis();
+        Boolean verdict = verdicts.get(key, now);
+        if (verdict == null) {
+            verdict = classify(context, phoneNumber, key);
+            verdicts.put(key, verdict, now);
+            Log.i(TAG, "Classified " + phoneNumber + " as " + (verdict ? "spam" : "not spam") + "; " + verdicts);
+        } else {
+            Log.i(TAG, "Cached verdict for " + phoneNumber + ": " + (verdict ? "spam" : "not spam") + "; " + verdicts);
+        }
+        return verdict;
+    }
 
-        String normalized = PhoneNumberUtils.normalizeNumber(phoneNumber);
-        if (normalized == null) normalized = phoneNumber;
+    private boolean classify(Context context, String phoneNumber, String key) {
+        // The user said otherwise
+        if (!key.isEmpty() && SpamOverrideReceiver.isMarkedNotSpam(context, key)) return false;
 
         // Heuristic 1: contains spam keywords
-        String upper = (phoneNumber == null) ? "" : phoneNumber.toUpperCase(Locale.ROOT);
+        String upper = phoneNumber.toUpperCase(Locale.ROOT);
         for (String kw : SPAM_KEYWORDS) {
             if (upper.contains(kw)) return true;
         }
 
         // Heuristic 2: suspicious patterns (short numbers, repeated digit sequences)
-        String digits = normalized.replaceAll("\\D+", "");
-        if (digits.length() > 0) {
-            if (digits.length() <= 4) return true; // very short numbers often are service codes
+        int digits = 0;
+        int run = 0;
+        char previous = 0;
+        int longestRun = 0;
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            if (c < '0' || c > '9') continue;
+            run = c == previous ? run + 1 : 1;
+            previous = c;
+            longestRun = Math.max(longestRun, run);
+            digits++;
+        }
+        if (digits > 0) {
+            if (digits <= 4) return true; // very short numbers often are service codes
             // repeated digits like 0000000 or 1111111
-            if (digits.matches("^(\\d)\\1{5,}$")) return true;
+            if (longestRun == digits && digits >= 6) return true;
         }
 
-        // Heuristic 3: placeholder for platform spam API — keep conservative default
-        return false;
+        // Heuristic 3: on the bundled or imported blocklist, exactly or by prefix
+        return SpamBlocklist.get(context).contains(phoneNumber);
     }
 
     private void handleSpamCall(Context context, String phoneNumber) {
         Log.d("CALL_PROTECTION", "Blocked spam call from: " + phoneNumber);
+        MessageLogManager.addEntry(context, phoneNumber, System.currentTimeMillis(), LogChannel.SPAM_BLOCKED);
 
         NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         if (nm == null) return;
@@ -156,20 +342,28 @@ public class EnhancedCallReceiver extends BroadcastReceiver {
                 .setSmallIcon(android.R.drawable.sym_call_missed)
                 .setPriority(NotificationCompat.PRIORITY_LOW)
                 .setCategory(NotificationCompat.CATEGORY_CALL);
+        if (phoneNumber != null) {
+            Intent notSpam = new Intent(context, SpamOverrideReceiver.class)
+                    .setAction(SpamOverrideReceiver.ACTION_NOT_SPAM)
+                    .putExtra(SpamOverrideReceiver.EXTRA_PHONE_NUMBER, phoneNumber);
+            PendingIntent pi = PendingIntent.getBroadcast(context, 0, notSpam,
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+            builder.addAction(0, "Not spam", pi);
+        }
 
-        nm.notify(1001, builder.build());
+        nm.notify(SPAM_NOTIFICATION_ID, builder.build());
     }
 
     private void sendWhatsAppMessage(Context context, String phoneNumber, String message) {
         if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
-            Log.w("EnhancedCallReceiver", "No phone number to send WhatsApp message");
+            Log.w(TAG, "No phone number to send WhatsApp message");
             return;
         }
 
         try {
-            // Normalize phone number to digits only removing spaces, dashes, or other chars except plus sign
-            String normalizedNumber = phoneNumber.replaceAll("[^\\d+]", "");
-            String encodedNumber = Uri.encode(normalizedNumber);
+            // wa.me wants the E.164 digits without the '+'; a name opens the chat picker
+            String waDigits = PhoneNumberNormalizer.getDefault().waDigits(phoneNumber);
+            String encodedNumber = Uri.encode(waDigits != null ? waDigits : "");
             Intent intent = new Intent(Intent.ACTION_VIEW);
             Uri uri = Uri.parse("https://wa.me/" + encodedNumber + "?text=" + Uri.encode(message));
             intent.setData(uri);
@@ -177,66 +371,56 @@ public class EnhancedCallReceiver extends BroadcastReceiver {
 
             if (intent.resolveActivity(context.getPackageManager()) != null) {
                 context.startActivity(intent);
-                Log.i("EnhancedCallReceiver", "Opened WhatsApp chat interface for number: " + encodedNumber + " with message: " + message);
+                Log.i(TAG, "Opened WhatsApp chat interface for number: " + encodedNumber + " with message: " + message);
                 // Record the sent message in the message log
                 try {
-                    MessageLogManager.addEntry(context, "W:" + phoneNumber, System.currentTimeMillis());
+                    MessageLogManager.addEntry(context, phoneNumber, System.currentTimeMillis(),
+                            LogChannel.WHATSAPP_REPLY);
                 } catch (Exception e) {
-                    Log.w("EnhancedCallReceiver", "Failed to log sent message", e);
+                    Log.w(TAG, "Failed to log sent message", e);
                 }
             } else {
-                Log.w("EnhancedCallReceiver", "WhatsApp app not installed");
+                Log.w(TAG, "WhatsApp app not installed");
             }
         } catch (Exception e) {
-            Log.w("EnhancedCallReceiver", "Failed to open WhatsApp chat interface", e);
+            Log.w(TAG, "Failed to open WhatsApp chat interface", e);
         }
     }
 
     private void sendAutoReplySms(Context context, String phoneNumber, String message) {
         if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
-            Log.w("EnhancedCallReceiver", "No phone number to send auto-reply");
+            Log.w(TAG, "No phone number to send auto-reply");
             return;
         }
 
         // Check permission
         if (ContextCompat.checkSelfPermission(context, Manifest.permission.SEND_SMS)
                 != PackageManager.PERMISSION_GRANTED) {
-            Log.w("EnhancedCallReceiver", "SEND_SMS permission not granted — cannot send auto-reply");
+            Log.w(TAG, "SEND_SMS permission not granted — cannot send auto-reply");
             // Optionally notify user or take other action here
             return;
         }
 
+        LogQuery repliedRecently = LogQuery.builder().contactEquals(phoneNumber).channel(LogChannel.SMS_REPLY)
+                .since(System.currentTimeMillis() - MISSED_WINDOW_MS).limit(1).countOnly().build();
+        if (MessageLogManager.query(context, repliedRecently).count > 0) {
+            Log.i(TAG, "Auto-reply SMS already sent recently to: " + phoneNumber);
+            return;
+        }
+
         try {
             SmsManager smsManager = SmsManager.getDefault();
-            smsManager.sendTextMessage(phoneNumber, null, message, null, null);
-            Log.i("EnhancedCallReceiver", "Sent auto-reply SMS to " + phoneNumber);
+            smsManager.sendTextMessage(PhoneNumberNormalizer.getDefault().dialable(phoneNumber), null, message,
+                    null, null);
+            Log.i(TAG, "Sent auto-reply SMS to " + phoneNumber);
             // Record the sent message in the message log
             try {
                 MessageLogManager.addEntry(context, phoneNumber, System.currentTimeMillis());
             } catch (Exception e) {
-                Log.w("EnhancedCallReceiver", "Failed to log sent message", e);
-            }
-        } catch (Exception e) {
-            Log.w("EnhancedCallReceiver", "Failed to send auto-reply SMS", e);
-        }
-    }
-
-    private boolean isNumberInContacts(Context context, String phoneNumber) {
-        if (phoneNumber == null) return false;
-        try {
-            android.net.Uri uri = android.net.Uri.withAppendedPath(
-                    android.provider.ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
-                    android.net.Uri.encode(phoneNumber));
-            String[] projection = new String[]{android.provider.ContactsContract.PhoneLookup._ID};
-            android.database.Cursor cursor = context.getContentResolver().query(uri, projection, null, null, null);
-            if (cursor != null) {
-                boolean found = cursor.getCount() > 0;
-                cursor.close();
-                return found;
+                Log.w(TAG, "Failed to log sent message", e);
             }
         } catch (Exception e) {
-            Log.w("EnhancedCallReceiver", "Error checking contacts", e);
+            Log.w(TAG, "Failed to send auto-reply SMS", e);
         }
-        return false;
     }
 }
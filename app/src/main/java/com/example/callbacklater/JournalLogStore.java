@@ -0,0 +1,416 @@
+package com.example.callbacklater;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * {@link LogStore} backed by the append-only {@link MessageLogJournal}.
+ *
+ * The whole log is held in memory as a {@link MessageLogSnapshot} (see
+ * {@link MessageLogStore}); date ranges are answered from the snapshot's time index,
+ * channel filters from its per-channel time indexes, and contact filters from a
+ * {@link ContactSearchIndex} kept in step with every add and delete. Filters walk the
+ * snapshot's columns and only create Entry objects for the page they return.
+ *
+ * A {@link LogQuery} with a contact filter is run one of two ways, whichever visits
+ * fewer rows: walk the time range and skip rows of other contacts, or look up the
+ * matching contacts' entries by id and skip those outside the range. Both sizes are
+ * known before anything is read, see {@link #plan}.
+ */
+public class JournalLogStore implements LogStore {
+    private final MessageLogStore store;
+    private final ContactSearchIndex contactIndex = new ContactSearchIndex();
+    private volatile ReloadListener reloadListener;
+    private volatile TrimListener trimListener;
+
+    public JournalLogStore(MessageLogJournal journal) {
+        store = new MessageLogStore(journal);
+        // Called with the store's write lock held, so the index always matches the snapshot.
+        // The first load also goes through here.
+        store.setReloadListener(snapshot -> {
+            contactIndex.rebuild(snapshot.getColumns());
+            ReloadListener listener = reloadListener;
+            if (listener != null) listener.onReload(snapshot.asList());
+        });
+        store.setChangeListener(new MessageLogStore.ChangeListener() {
+            @Override
+            public void onAdded(MessageLogManager.Entry entry) {
+                contactIndex.add(entry);
+            }
+
+            @Override
+            public void onDeleted(MessageLogManager.Entry entry) {
+                contactIndex.remove(entry);
+            }
+
+            @Override
+            public void onTrimmed(List<MessageLogManager.Entry> removed) {
+                contactIndex.removeAll(removed);
+                TrimListener listener = trimListener;
+                if (listener != null) listener.onTrimmed(removed);
+            }
+        });
+    }
+
+    public MessageLogStore getMessageLogStore() {
+        return store;
+    }
+
+    @Override
+    public Future<Void> add(String contact, long timeMillis, byte channel, byte direction) {
+        return store.enqueue(new MessageLogManager.Entry(0, contact, timeMillis, channel, direction));
+    }
+
+    @Override
+    public Future<Void> flush() {
+        return store.flush();
+    }
+
+    @Override
+    public boolean delete(MessageLogManager.Entry entry) throws IOException {
+        return store.delete(entry);
+    }
+
+    @Override
+    public LogQuery.Result query(LogQuery query) {
+        MessageLogSnapshot snapshot = store.snapshot();
+        Planned planned = plan(snapshot, query);
+        MessageLogColumns rows = snapshot.getColumns();
+        if (planned.plan.access == LogQuery.Access.CONTACT_INDEX) {
+            return byContact(rows, query, planned);
+        }
+
+        boolean[] wanted = planned.contacts == null ? null
+                : matchingContactIds(rows.getDictionary(), new HashSet<>(planned.contacts));
+        if (query.countOnly) {
+            // Without a contact filter the count is the size of the ranges; nothing is read
+            long total = 0;
+            for (int k = 0; k < planned.indexes.size() && total < query.needed(); k++) {
+                total += wanted == null ? planned.to[k] - planned.from[k]
+                        : countMatches(rows, planned.indexes.get(k), planned.from[k], planned.to[k], wanted,
+                                query.needed() - total);
+            }
+            return LogQuery.Result.ofCount(query.window((int) Math.min(total, Integer.MAX_VALUE)), planned.plan);
+        }
+
+        if (wanted == null && planned.indexes.size() == 1) {
+            // Straight slice of one index, only the page is touched
+            MessageLogTimeIndex index = planned.indexes.get(0);
+            int from = planned.from[0];
+            return LogQuery.Result.ofEntries(page(planned.to[0] - from, query.newestFirst, query.offset, query.limit,
+                    i -> rows.entryAt(index.positionAt(from + i))), planned.plan);
+        }
+
+        // The first offset + limit matches in query order are among the first offset +
+        // limit of each index, so no index is walked further than that
+        int[] matches = new int[0];
+        for (int k = 0; k < planned.indexes.size(); k++) {
+            matches = merge(rows, matches, select(rows, planned.indexes.get(k), planned.from[k], planned.to[k],
+                    wanted, query.needed(), query.newestFirst));
+        }
+        int[] positions = matches;
+        return LogQuery.Result.ofEntries(page(positions.length, query.newestFirst, query.offset, query.limit,
+                i -> rows.entryAt(positions[i])), planned.plan);
+    }
+
+    @Override
+    public LogQuery.Plan explain(LogQuery query) {
+        return plan(store.snapshot(), query).plan;
+    }
+
+    /**
+     * The access path for a query, with what was looked up to choose it.
+     */
+    private static class Planned {
+        LogQuery.Plan plan;
+        // The time index of every selected channel, and each one's rows in the time range
+        final List<MessageLogTimeIndex> indexes = new ArrayList<>();
+        int[] from;
+        int[] to;
+        // Contacts matching the contact filter, or null without one
+        List<String> contacts;
+    }
+
+    /**
+     * Pick the access path that visits the fewest rows. The candidates are costed without
+     * touching the log: the time range of each selected channel's index is two binary
+     * searches, and the contact index knows how many entries its matching contacts have.
+     */
+    private Planned plan(MessageLogSnapshot snapshot, LogQuery query) {
+        Planned planned = new Planned();
+        if (query.channels == LogChannel.ALL) {
+            planned.indexes.add(snapshot.getTimeIndex());
+        } else {
+            for (byte c = 0; c < LogChannel.COUNT; c++) {
+                if (LogChannel.matches(query.channels, c)) planned.indexes.add(snapshot.getChannelIndex(c));
+            }
+        }
+        int n = planned.indexes.size();
+        planned.from = new int[n];
+        planned.to = new int[n];
+        MessageLogColumns rows = snapshot.getColumns();
+        int inRange = 0;
+        for (int k = 0; k < n; k++) {
+            MessageLogTimeIndex index = planned.indexes.get(k);
+            planned.from[k] = query.startTimeMillis == null ? 0 : index.lowerBound(query.startTimeMillis);
+            planned.to[k] = Math.max(planned.from[k],
+                    query.endTimeMillis == null ? index.size() : index.upperBound(query.endTimeMillis));
+            if (query.afterTimeMillis != null) seekPastCursor(rows, index, query, planned, k);
+            inRange += planned.to[k] - planned.from[k];
+        }
+
+        int byContact = Integer.MAX_VALUE;
+        if (query.hasContact()) {
+            planned.contacts = query.exactContact ? contactIndex.exact(query.contact) : contactIndex.search(query.contact);
+            byContact = contactIndex.entryCount(planned.contacts);
+        }
+
+        // A walk of the time range stops after offset + limit matches, which with the
+        // matches spread evenly is this far in
+        int byTime = inRange;
+        if (planned.contacts != null && query.needed() < byContact) {
+            byTime = (int) Math.min(inRange, query.needed() * inRange / byContact);
+        }
+
+        String channels = query.channels == LogChannel.ALL ? "time index" : n + " channel index(es)";
+        if (byContact < byTime) {
+            planned.plan = new LogQuery.Plan(LogQuery.Access.CONTACT_INDEX, byContact,
+                    planned.contacts.size() + " contact(s), instead of " + byTime + " rows by " + channels);
+        } else if (inRange < snapshot.size()) {
+            planned.plan = new LogQuery.Plan(LogQuery.Access.TIME_INDEX, byTime, channels
+                    + (query.startTimeMillis != null || query.endTimeMillis != null ? ", time range" : ""));
+        } else {
+            planned.plan = new LogQuery.Plan(LogQuery.Access.FULL_SCAN, byTime, channels + ", every row");
+        }
+        return planned;
+    }
+
+    /**
+     * Narrow index `k`'s slice to the rows after the query's cursor: a binary search to
+     * the cursor's time, then past the rows at that time up to its id, which the index
+     * keeps in log (id) order.
+     */
+    private static void seekPastCursor(MessageLogColumns rows, MessageLogTimeIndex index, LogQuery query,
+                                       Planned planned, int k) {
+        long time = query.afterTimeMillis;
+        int from = planned.from[k];
+        int to = planned.to[k];
+        if (query.newestFirst) {
+            to = Math.max(from, Math.min(to, index.upperBound(time)));
+            while (to > from && !query.isAfterCursor(index.timeAt(to - 1), rows.idAt(index.positionAt(to - 1)))) to--;
+        } else {
+            from = Math.min(to, Math.max(from, index.lowerBound(time)));
+            while (from < to && !query.isAfterCursor(index.timeAt(from), rows.idAt(index.positionAt(from)))) from++;
+        }
+        planned.from[k] = from;
+        planned.to[k] = to;
+    }
+
+    /**
+     * Run a query through the contact index: look up the matching contacts' rows by id,
+     * then apply the channel and time filters to those rows only.
+     */
+    private LogQuery.Result byContact(MessageLogColumns rows, LogQuery query, Planned planned) {
+        long[] ids = contactIndex.idsOf(planned.contacts);
+        int[] positions = new int[ids.length];
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            // Added since the snapshot was taken if missing
+            int position = rows.positionOf(ids[i]);
+            if (position < 0 || !LogChannel.matches(query.channels, rows.channelAt(position))) continue;
+            long time = rows.timeAt(position);
+            if (query.startTimeMillis != null && time < query.startTimeMillis) continue;
+            if (query.endTimeMillis != null && time > query.endTimeMillis) continue;
+            if (!query.isAfterCursor(time, ids[i])) continue;
+            positions[n++] = position;
+            if (query.countOnly && n >= query.needed()) break;
+        }
+        if (query.countOnly) return LogQuery.Result.ofCount(query.window(n), planned.plan);
+
+        int[] matches = sortByTime(rows, positions, n);
+        return LogQuery.Result.ofEntries(page(matches.length, query.newestFirst, query.offset, query.limit,
+                i -> rows.entryAt(matches[i])), planned.plan);
+    }
+
+    private interface Slice {
+        MessageLogManager.Entry get(int i);
+    }
+
+    /**
+     * Entries [offset, offset + limit) of a time-ordered slice of `size` entries, counted
+     * from the newest end if `newestFirst`.
+     */
+    private static List<MessageLogManager.Entry> page(int size, boolean newestFirst, int offset, int limit, Slice slice) {
+        int n = Math.max(0, Math.min(limit, size - offset));
+        List<MessageLogManager.Entry> page = new ArrayList<>(n);
+        for (int k = offset; k < offset + n; k++) {
+            page.add(slice.get(newestFirst ? size - 1 - k : k));
+        }
+        return page;
+    }
+
+    /**
+     * Positions of the first `max` rows in time index slice [from, to) whose contact id
+     * is set in `wanted` (all of them if null), counting from the newest end if
+     * `fromNewest`, in time order. Compares dictionary ids only; the trigram index has
+     * already picked out the matching contacts.
+     */
+    private static int[] select(MessageLogColumns rows, MessageLogTimeIndex index, int from, int to, boolean[] wanted,
+                                long max, boolean fromNewest) {
+        int[] matches = new int[(int) Math.min(max, wanted == null ? to - from : 16)];
+        int n = 0;
+        for (int k = 0; k < to - from && n < max; k++) {
+            int position = index.positionAt(fromNewest ? to - 1 - k : from + k);
+            if (wanted != null && !wanted[rows.contactIdAt(position)]) continue;
+            if (n == matches.length) matches = Arrays.copyOf(matches, Math.max(16, n * 2));
+            matches[n++] = position;
+        }
+        if (fromNewest) {
+            for (int i = 0, j = n - 1; i < j; i++, j--) {
+                int t = matches[i];
+                matches[i] = matches[j];
+                matches[j] = t;
+            }
+        }
+        return n == matches.length ? matches : Arrays.copyOf(matches, n);
+    }
+
+    /**
+     * Number of rows in time index slice [from, to) whose contact id is set in `wanted`,
+     * counting no further than `max`.
+     */
+    private static long countMatches(MessageLogColumns rows, MessageLogTimeIndex index, int from, int to,
+                                     boolean[] wanted, long max) {
+        long n = 0;
+        for (int i = from; i < to && n < max; i++) {
+            if (wanted[rows.contactIdAt(index.positionAt(i))]) n++;
+        }
+        return n;
+    }
+
+    /**
+     * The first `n` of `positions`, ordered by time. Rows are in id order, which is
+     * nearly always time order too, so this is usually just a check.
+     */
+    private static int[] sortByTime(MessageLogColumns rows, int[] positions, int n) {
+        int[] sorted = Arrays.copyOf(positions, n);
+        boolean inOrder = true;
+        for (int i = 1; i < n && inOrder; i++) inOrder = rows.timeAt(sorted[i - 1]) <= rows.timeAt(sorted[i]);
+        if (inOrder) return sorted;
+
+        Integer[] boxed = new Integer[n];
+        for (int i = 0; i < n; i++) boxed[i] = sorted[i];
+        // Equal times keep log order, as in merge()
+        Arrays.sort(boxed, (a, b) -> {
+            int byTime = Long.compare(rows.timeAt(a), rows.timeAt(b));
+            return byTime != 0 ? byTime : Integer.compare(a, b);
+        });
+        for (int i = 0; i < n; i++) sorted[i] = boxed[i];
+        return sorted;
+    }
+
+    /**
+     * Merge two lists of positions, each in time order, into one. Equal times keep log order.
+     */
+    private static int[] merge(MessageLogColumns rows, int[] a, int[] b) {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            long ta = rows.timeAt(a[i]);
+            long tb = rows.timeAt(b[j]);
+            out[n++] = ta < tb || (ta == tb && a[i] < b[j]) ? a[i++] : b[j++];
+        }
+        while (i < a.length) out[n++] = a[i++];
+        while (j < b.length) out[n++] = b[j++];
+        return out;
+    }
+
+    /**
+     * Mask over dictionary ids, true for the contacts in `contacts`.
+     */
+    private static boolean[] matchingContactIds(MessageLogColumns.Dictionary dictionary, Set<String> contacts) {
+        boolean[] wanted = new boolean[dictionary.size()];
+        if (contacts.isEmpty()) return wanted;
+        for (int id = 0; id < wanted.length; id++) {
+            wanted[id] = contacts.contains(dictionary.get(id));
+        }
+        return wanted;
+    }
+
+    @Override
+    public int count() {
+        return store.snapshot().size();
+    }
+
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        MessageLogColumns rows = store.snapshot().getColumns();
+        for (int i = 0; i < rows.size(); i++) {
+            visitor.visit(rows.entryAt(i));
+        }
+    }
+
+    @Override
+    public long latestTimeFor(String contact, byte channel) {
+        String key = ReplyDedupeIndex.keyFor(contact);
+        String prefix = LogChannel.keyPrefix(channel);
+        MessageLogSnapshot snapshot = store.snapshot();
+        MessageLogColumns rows = snapshot.getColumns();
+        // Normalize each distinct contact once rather than once per row
+        MessageLogColumns.Dictionary dictionary = rows.getDictionary();
+        boolean[] wanted = new boolean[dictionary.size()];
+        for (int id = 0; id < wanted.length; id++) {
+            wanted[id] = key.equals(ReplyDedupeIndex.keyFor(dictionary.get(id)));
+        }
+
+        // Walk each channel with the same dedupe keys back from its newest row
+        long latest = -1;
+        for (byte c = 0; c < LogChannel.COUNT; c++) {
+            if (!prefix.equals(LogChannel.keyPrefix(c))) continue;
+            MessageLogTimeIndex index = snapshot.getChannelIndex(c);
+            for (int i = index.size() - 1; i >= 0 && index.timeAt(i) > latest; i--) {
+                if (wanted[rows.contactIdAt(index.positionAt(i))]) {
+                    latest = index.timeAt(i);
+                    break;
+                }
+            }
+        }
+        return latest;
+    }
+
+    @Override
+    public int copyTo(WritableByteChannel target) throws IOException {
+        return store.copyJournalTo(target);
+    }
+
+    @Override
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        store.setRetentionPolicy(policy);
+    }
+
+    @Override
+    public Future<Void> rekeyContacts() {
+        // The contact index keys contacts as it adds them, so a rebuild re-keys them
+        store.republish();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void setReloadListener(ReloadListener listener) {
+        reloadListener = listener;
+    }
+
+    @Override
+    public void setTrimListener(TrimListener listener) {
+        trimListener = listener;
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.callbacklater;
+
+/**
+ * What a message log entry records (its channel) and which way it went (its direction).
+ *
+ * Both are stored as bytes so they fit the log's columns (see {@link MessageLogColumns})
+ * and the journal records. Filters select channels with a bit mask built by
+ * {@link #mask}; {@link #ALL} means no channel filter.
+ *
+ * Logs written before these fields existed marked WhatsApp entries by prefixing the
+ * contact with "W:". Such entries are read as {@link #WHATSAPP_MISSED_CALL} with the
+ * prefix removed, see {@link MessageLogManager.Entry#fromLegacy}.
+ */
+public final class LogChannel {
+    public static final byte SMS_REPLY = 0;
+    public static final byte WHATSAPP_MISSED_CALL = 1;
+    public static final byte WHATSAPP_REPLY = 2;
+    public static final byte SPAM_BLOCKED = 3;
+    // Number of channels; channel values run from 0 to COUNT - 1
+    static final int COUNT = 4;
+
+    public static final byte OUTGOING = 0;
+    public static final byte INCOMING = 1;
+
+    public static final int ALL = 0;
+    public static final int WHATSAPP = mask(WHATSAPP_MISSED_CALL, WHATSAPP_REPLY);
+
+    static final String LEGACY_WHATSAPP_PREFIX = "W:";
+
+    private static final String[] NAMES = {"sms_reply", "whatsapp_missed_call", "whatsapp_reply", "spam_blocked"};
+    private static final String[] LABELS = {"SMS reply", "WhatsApp missed call", "WhatsApp reply", "Blocked as spam"};
+
+    private LogChannel() {}
+
+    /**
+     * Filter mask selecting `channels`.
+     */
+    public static int mask(byte... channels) {
+        int mask = 0;
+        for (byte c : channels) mask |= 1 << c;
+        return mask;
+    }
+
+    /**
+     * Whether `mask` (from {@link #mask}, or {@link #ALL}) selects `channel`.
+     */
+    public static boolean matches(int mask, byte channel) {
+        return mask == ALL || (mask & (1 << channel)) != 0;
+    }
+
+    public static boolean isWhatsApp(byte channel) {
+        return channel == WHATSAPP_MISSED_CALL || channel == WHATSAPP_REPLY;
+    }
+
+    /**
+     * Direction entries on `channel` have: replies go out, calls and blocked numbers come in.
+     */
+    public static byte directionOf(byte channel) {
+        return channel == SMS_REPLY || channel == WHATSAPP_REPLY ? OUTGOING : INCOMING;
+    }
+
+    /**
+     * Prefix separating one channel's dedupe keys from another's (see
+     * {@link ReplyDedupeIndex#keyFor(String, byte)}). Both WhatsApp channels share "W:",
+     * the same tag the legacy contact prefix used, so keys from older logs stay valid.
+     */
+    static String keyPrefix(byte channel) {
+        if (isWhatsApp(channel)) return LEGACY_WHATSAPP_PREFIX;
+        if (channel == SPAM_BLOCKED) return "B:";
+        return "";
+    }
+
+    /**
+     * Stable name used in exports, e.g. "whatsapp_missed_call".
+     */
+    public static String name(byte channel) {
+        return channel >= 0 && channel < COUNT ? NAMES[channel] : NAMES[SMS_REPLY];
+    }
+
+    /**
+     * Channel with export name `name`, or {@link #SMS_REPLY} if it is unknown.
+     */
+    public static byte forName(String name) {
+        for (byte c = 0; c < COUNT; c++) {
+            if (NAMES[c].equals(name)) return c;
+        }
+        return SMS_REPLY;
+    }
+
+    /**
+     * Text shown for the channel in the log lists.
+     */
+    public static String label(byte channel) {
+        return channel >= 0 && channel < COUNT ? LABELS[channel] : LABELS[SMS_REPLY];
+    }
+
+    public static String directionName(byte direction) {
+        return direction == INCOMING ? "incoming" : "outgoing";
+    }
+
+    static byte directionForName(String name) {
+        return "incoming".equals(name) ? INCOMING : OUTGOING;
+    }
+}
@@ -13,23 +13,15 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.TimeZone;
 
 public class LogEntryAdapter extends ArrayAdapter<MessageLogManager.Entry> {
-    private final SimpleDateFormat isoFormat;
-    private final SimpleDateFormat indianDateFormat;
+    private final TimeZone displayZone;
 
     public LogEntryAdapter(Context context, List<MessageLogManager.Entry> entries) {
         super(context, 0, entries);
-        isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-        isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        indianDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-        indianDateFormat.setTimeZone(TimeZone.getTimeZone("Asia/Kolkata"));
+        displayZone = TimeZone.getTimeZone("Asia/Kolkata");
     }
 
     @Override
@@ -46,32 +38,11 @@ public class LogEntryAdapter extends ArrayAdapter<MessageLogManager.Entry> {
         TextView tvTime = itemView.findViewById(R.id.tv_time);
 
         if (entry != null) {
-            String contactRaw = entry.contact != null ? entry.contact : "";
+            tvContact.setText(entry.contact != null ? entry.contact : "");
+            tvCallType.setText(LogChannel.label(entry.channel));
 
-            // Check if contact has WhatsApp tag "W:"
-            String callType;
-            String contactDisplay = contactRaw;
-            if (contactRaw.startsWith("W:")) {
-                callType = "WhatsApp Call";
-                contactDisplay = contactRaw.substring(2); // Remove "W:" prefix
-            } else {
-                callType = "Phone Call / SMS";
-            }
-
-            tvContact.setText(contactDisplay);
-            tvCallType.setText(callType);
-
-            // Parse ISO time and convert to Indian timezone display
-            String timeDisplay = entry.timeIso;
-            try {
-                Date date = isoFormat.parse(entry.timeIso);
-                if (date != null) {
-                    timeDisplay = indianDateFormat.format(date);
-                }
-            } catch (ParseException e) {
-                // fallback to original
-            }
-            tvTime.setText(timeDisplay);
+            // Show the time in Indian timezone
+            tvTime.setText(LogTimeFormat.formatDisplay(entry.timeMillis, displayZone));
         }
 
         return itemView;
@@ -79,7 +50,9 @@ public class LogEntryAdapter extends ArrayAdapter<MessageLogManager.Entry> {
 
     private void sendWhatsAppMessage(String phoneNumber) {
         try {
-            String url = "https://api.whatsapp.com/send?phone=" + phoneNumber;
+            String waDigits = PhoneNumberNormalizer.getDefault().waDigits(phoneNumber);
+            String phone = waDigits != null ? waDigits : Uri.encode(phoneNumber);
+            String url = "https://api.whatsapp.com/send?phone=" + phone;
             Intent intent = new Intent(Intent.ACTION_VIEW);
             intent.setData(Uri.parse(url));
             intent.setPackage("com.whatsapp");
@@ -92,7 +65,8 @@ public class LogEntryAdapter extends ArrayAdapter<MessageLogManager.Entry> {
     private void sendSmsMessage(String phoneNumber) {
         try {
             Intent intent = new Intent(Intent.ACTION_SENDTO);
-            intent.setData(Uri.parse("smsto:" + phoneNumber));
+            String number = PhoneNumberNormalizer.getDefault().dialable(phoneNumber);
+            intent.setData(Uri.parse("smsto:" + Uri.encode(number)));
             getContext().startActivity(intent);
         } catch (Exception e) {
             Toast.makeText(getContext(), "Unable to send SMS", Toast.LENGTH_SHORT).show();
@@ -0,0 +1,300 @@
+package com.example.callbacklater;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query over the message log, built with {@link Builder} and run by
+ * {@link MessageLogManager#query} (or a {@link LogStore} directly).
+ *
+ * Filters, each optional:
+ *   contact:  equal to a number once both are normalized (see
+ *             {@link ReplyDedupeIndex#keyFor(String)}), or containing a substring, as
+ *             for {@link ContactSearchIndex#search}
+ *   channels: a {@link LogChannel#mask}
+ *   time:     a range, both ends inclusive
+ * Matches are ordered by time, then id, oldest first unless {@link Builder#newestFirst},
+ * and paged with offset and limit, or from the last entry of the previous page with
+ * {@link Builder#after}: that page does not shift when entries are added or removed
+ * before it, and the store seeks to it rather than skipping offset rows. A count-only
+ * query returns how many entries it would have returned instead of the entries; since
+ * offset and limit still apply, {@code limit(1).countOnly()} asks whether anything
+ * matches at all, and the store may stop at the first match.
+ *
+ * The store picks an access path per query from what it can estimate cheaply and
+ * reports it as the result's {@link Plan}; {@link LogStore#explain} gives the plan
+ * without running the query.
+ */
+public final class LogQuery {
+    /**
+     * How the matching rows are found, cheapest first.
+     */
+    public enum Access {
+        // The dedupe index's latest time per number answers the query without the log
+        DEDUPE_INDEX,
+        // Only the rows of the matching contacts are visited
+        CONTACT_INDEX,
+        // Only the rows in the time range (of the selected channels) are visited
+        TIME_INDEX,
+        // Every row is visited
+        FULL_SCAN
+    }
+
+    public static final class Plan {
+        public final Access access;
+        // Rows the access path visits, or -1 if the store cannot tell in advance
+        public final int estimatedRows;
+        public final String detail;
+
+        Plan(Access access, int estimatedRows, String detail) {
+            this.access = access;
+            this.estimatedRows = estimatedRows;
+            this.detail = detail;
+        }
+
+        @Override
+        public String toString() {
+            return access + " (" + detail + (estimatedRows >= 0 ? ", ~" + estimatedRows + " rows" : "") + ")";
+        }
+    }
+
+    public static final class Result {
+        // Empty for a count-only query
+        public final List<MessageLogManager.Entry> entries;
+        public final int count;
+        public final Plan plan;
+
+        Result(List<MessageLogManager.Entry> entries, int count, Plan plan) {
+            this.entries = entries;
+            this.count = count;
+            this.plan = plan;
+        }
+
+        static Result ofEntries(List<MessageLogManager.Entry> entries, Plan plan) {
+            return new Result(entries, entries.size(), plan);
+        }
+
+        static Result ofCount(int count, Plan plan) {
+            return new Result(Collections.<MessageLogManager.Entry>emptyList(), count, plan);
+        }
+    }
+
+    // Null to match every contact
+    public final String contact;
+    public final boolean exactContact;
+    public final int channels;
+    public final Long startTimeMillis;
+    public final Long endTimeMillis;
+    public final boolean newestFirst;
+    // Position (time, id) the matches start after in query order, or null from the start
+    public final Long afterTimeMillis;
+    public final long afterId;
+    public final int offset;
+    public final int limit;
+    public final boolean countOnly;
+
+    private LogQuery(Builder b) {
+        contact = b.contact;
+        exactContact = b.exactContact;
+        channels = b.channels;
+        startTimeMillis = b.startTimeMillis;
+        endTimeMillis = b.endTimeMillis;
+        newestFirst = b.newestFirst;
+        afterTimeMillis = b.afterTimeMillis;
+        afterId = b.afterId;
+        offset = b.offset;
+        limit = b.limit;
+        countOnly = b.countOnly;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A builder starting from this query, e.g. to fetch the next page.
+     */
+    public Builder toBuilder() {
+        Builder b = new Builder();
+        b.contact = contact;
+        b.exactContact = exactContact;
+        b.channels = channels;
+        b.startTimeMillis = startTimeMillis;
+        b.endTimeMillis = endTimeMillis;
+        b.newestFirst = newestFirst;
+        b.afterTimeMillis = afterTimeMillis;
+        b.afterId = afterId;
+        b.offset = offset;
+        b.limit = limit;
+        b.countOnly = countOnly;
+        return b;
+    }
+
+    boolean hasContact() {
+        return contact != null && !contact.isEmpty();
+    }
+
+    /**
+     * Whether an entry at `timeMillis` with `id` comes after the {@link Builder#after}
+     * position in query order, so belongs in the result. True without one.
+     */
+    boolean isAfterCursor(long timeMillis, long id) {
+        if (afterTimeMillis == null) return true;
+        int order = timeMillis != afterTimeMillis ? Long.compare(timeMillis, afterTimeMillis) : Long.compare(id, afterId);
+        return newestFirst ? order < 0 : order > 0;
+    }
+
+    /**
+     * Matches counted so far after which the answer cannot change: offset + limit.
+     */
+    long needed() {
+        return (long) offset + limit;
+    }
+
+    /**
+     * The part of `total` matches this query returns, after offset and limit.
+     */
+    int window(int total) {
+        return (int) Math.max(0, Math.min((long) total - offset, limit));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(countOnly ? "COUNT" : "SELECT");
+        String sep = " WHERE ";
+        if (hasContact()) {
+            sb.append(sep).append(exactContact ? "contact = " : "contact LIKE ").append('\'').append(contact).append('\'');
+            sep = " AND ";
+        }
+        if (channels != LogChannel.ALL) {
+            sb.append(sep).append("channel IN (");
+            String comma = "";
+            for (byte c = 0; c < LogChannel.COUNT; c++) {
+                if (!LogChannel.matches(channels, c)) continue;
+                sb.append(comma).append(LogChannel.name(c));
+                comma = ", ";
+            }
+            sb.append(')');
+            sep = " AND ";
+        }
+        if (startTimeMillis != null) {
+            sb.append(sep).append("time >= ").append(startTimeMillis);
+            sep = " AND ";
+        }
+        if (endTimeMillis != null) {
+            sb.append(sep).append("time <= ").append(endTimeMillis);
+            sep = " AND ";
+        }
+        if (afterTimeMillis != null) {
+            sb.append(sep).append(newestFirst ? "(time, id) < (" : "(time, id) > (")
+                    .append(afterTimeMillis).append(", ").append(afterId).append(')');
+        }
+        sb.append(newestFirst ? " ORDER BY time DESC, id DESC" : " ORDER BY time, id");
+        if (limit != Integer.MAX_VALUE) sb.append(" LIMIT ").append(limit);
+        if (offset > 0) sb.append(" OFFSET ").append(offset);
+        return sb.toString();
+    }
+
+    public static final class Builder {
+        private String contact;
+        private boolean exactContact;
+        private int channels = LogChannel.ALL;
+        private Long startTimeMillis;
+        private Long endTimeMillis;
+        private boolean newestFirst;
+        private Long afterTimeMillis;
+        private long afterId;
+        private int offset;
+        private int limit = Integer.MAX_VALUE;
+        private boolean countOnly;
+
+        private Builder() {
+        }
+
+        /**
+         * Entries for the same number as `contact`, however either was formatted.
+         */
+        public Builder contactEquals(String contact) {
+            this.contact = contact;
+            this.exactContact = true;
+            return this;
+        }
+
+        /**
+         * Entries whose contact contains `substring`. Null or empty matches every contact.
+         */
+        public Builder contactContains(String substring) {
+            this.contact = substring;
+            this.exactContact = false;
+            return this;
+        }
+
+        /**
+         * Entries on the channels in `mask` (see {@link LogChannel#mask}).
+         */
+        public Builder channels(int mask) {
+            this.channels = mask;
+            return this;
+        }
+
+        public Builder channel(byte channel) {
+            return channels(LogChannel.mask(channel));
+        }
+
+        public Builder since(Long startTimeMillis) {
+            this.startTimeMillis = startTimeMillis;
+            return this;
+        }
+
+        public Builder until(Long endTimeMillis) {
+            this.endTimeMillis = endTimeMillis;
+            return this;
+        }
+
+        public Builder newestFirst() {
+            this.newestFirst = true;
+            return this;
+        }
+
+        public Builder oldestFirst() {
+            this.newestFirst = false;
+            return this;
+        }
+
+        /**
+         * Entries after `last` in query order (older ones if newest first), i.e. the page
+         * following one that ended with `last`. Null starts from the first match.
+         */
+        public Builder after(MessageLogManager.Entry last) {
+            if (last == null) {
+                afterTimeMillis = null;
+                afterId = 0;
+            } else {
+                afterTimeMillis = last.timeMillis;
+                afterId = last.id;
+            }
+            return this;
+        }
+
+        public Builder offset(int offset) {
+            if (offset < 0) throw new IllegalArgumentException("offset " + offset);
+            this.offset = offset;
+            return this;
+        }
+
+        public Builder limit(int limit) {
+            if (limit < 0) throw new IllegalArgumentException("limit " + limit);
+            this.limit = limit;
+            return this;
+        }
+
+        public Builder countOnly() {
+            this.countOnly = true;
+            return this;
+        }
+
+        public LogQuery build() {
+            return new LogQuery(this);
+        }
+    }
+}
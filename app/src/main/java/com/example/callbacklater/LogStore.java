@@ -0,0 +1,108 @@
+package com.example.callbacklater;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Storage backend for the message log.
+ *
+ * {@link MessageLogManager} keeps the app-facing static API and goes through this
+ * interface, so the backend can be chosen per build (see {@code BuildConfig.LOG_STORE}):
+ * {@link JournalLogStore} keeps the log in an append-only file with in-memory indexes,
+ * {@link SqliteLogStore} keeps it in an indexed SQLite table.
+ *
+ * Implementations are safe to call from any thread.
+ */
+public interface LogStore {
+    /**
+     * Notified when the store had to reload its contents because they changed outside
+     * this process, with the entries after the reload.
+     */
+    interface ReloadListener {
+        void onReload(List<MessageLogManager.Entry> entries);
+    }
+
+    /**
+     * Notified on a background thread after entries were removed to meet the
+     * {@link RetentionPolicy}, with the entries removed.
+     */
+    interface TrimListener {
+        void onTrimmed(List<MessageLogManager.Entry> removed);
+    }
+
+    interface EntryVisitor {
+        void visit(MessageLogManager.Entry entry);
+    }
+
+    /**
+     * Add an entry for `contact` at `timeMillis` on `channel` going `direction` (see
+     * {@link LogChannel}). May return before the entry is on disk; the future completes
+     * once it is.
+     */
+    Future<Void> add(String contact, long timeMillis, byte channel, byte direction);
+
+    /**
+     * Future that completes once every entry added so far is on disk.
+     */
+    Future<Void> flush();
+
+    /**
+     * Delete the entry with `entry`'s id. An entry without an id matches the first entry
+     * with the same contact and time. Returns true if an entry was removed.
+     */
+    boolean delete(MessageLogManager.Entry entry) throws IOException;
+
+    /**
+     * Run `query` (see {@link LogQuery} for its filters, order and paging). The store
+     * picks the access path and reports it in the result.
+     *
+     * A substring contact filter is case insensitive; one of only digits and phone
+     * number punctuation matches the digits of each contact, ignoring how it was
+     * formatted.
+     */
+    LogQuery.Result query(LogQuery query);
+
+    /**
+     * The plan {@link #query} would use for `query`, without running it.
+     */
+    LogQuery.Plan explain(LogQuery query);
+
+    int count();
+
+    /**
+     * Visit every entry, oldest id first.
+     */
+    void forEach(EntryVisitor visitor);
+
+    /**
+     * Time of the latest entry with the same dedupe key as `contact` on `channel` (see
+     * {@link ReplyDedupeIndex#keyFor(String, byte)}), or -1 if there is none.
+     */
+    long latestTimeFor(String contact, byte channel);
+
+    /**
+     * Recompute the dedupe key of every contact (see {@link ReplyDedupeIndex#keyFor(String)})
+     * after the way numbers are normalized changed, then notify the reload listener with
+     * all entries so indexes kept outside the store are rebuilt too. The future completes
+     * once that is done.
+     */
+    Future<Void> rekeyContacts();
+
+    /**
+     * Copy the store's backing file as-is to `target`, after committing anything queued.
+     * Returns the number of entries in the copy.
+     */
+    int copyTo(WritableByteChannel target) throws IOException;
+
+    /**
+     * Limits on the history to keep, enforced from now on by a background thread, oldest
+     * entries first. Enforcement never makes {@link #add} wait.
+     */
+    void setRetentionPolicy(RetentionPolicy policy);
+
+    void setReloadListener(ReloadListener listener);
+
+    void setTrimListener(TrimListener listener);
+}
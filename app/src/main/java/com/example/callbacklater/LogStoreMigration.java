@@ -0,0 +1,72 @@
+package com.example.callbacklater;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves the message log between backends when a build switches {@code LOG_STORE}.
+ *
+ * Entries are copied in batches of {@link #BATCH_SIZE}, keeping their ids, so only one
+ * batch of entry objects exists at a time however large the log is. The source is only
+ * removed by the caller after the whole copy succeeded; if the process dies part way,
+ * the target is cleared and the copy starts again on the next launch.
+ */
+public class LogStoreMigration {
+    private static final String TAG = "LogStoreMigration";
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * Copy every entry of `journal` (its sealed segments, then the journal file) into
+     * `target`, which must be empty. Reads through mapped views, decoding one batch of
+     * contacts at a time.
+     */
+    public static int journalToSqlite(MessageLogJournal journal, SqliteLogStore target) throws IOException {
+        List<MessageLogManager.Entry> batch = new ArrayList<>(BATCH_SIZE);
+        int count = 0;
+        for (MappedMessageLog log : journal.mapAll()) {
+            for (int i = 0; i < log.size(); i++) {
+                batch.add(log.entryAt(i));
+                if (batch.size() == BATCH_SIZE) {
+                    target.insertWithIds(batch);
+                    batch.clear();
+                }
+            }
+            count += log.size();
+        }
+        if (!batch.isEmpty()) target.insertWithIds(batch);
+        Log.i(TAG, "Copied " + count + " entries from journal to SQLite");
+        return count;
+    }
+
+    /**
+     * Write every entry of `source` into a new journal, replacing whatever `journal` held.
+     */
+    public static int sqliteToJournal(SqliteLogStore source, MessageLogJournal journal) throws IOException {
+        // Start from an empty journal without segments, then append batch by batch
+        journal.delete();
+        journal.rewrite(new ArrayList<>());
+        List<MessageLogManager.Entry> batch = new ArrayList<>(BATCH_SIZE);
+        IOException[] failure = new IOException[1];
+        int[] count = new int[1];
+        source.forEach(e -> {
+            if (failure[0] != null) return;
+            batch.add(e);
+            count[0]++;
+            if (batch.size() == BATCH_SIZE) {
+                try {
+                    journal.appendAll(batch);
+                } catch (IOException ex) {
+                    failure[0] = ex;
+                }
+                batch.clear();
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+        if (!batch.isEmpty()) journal.appendAll(batch);
+        Log.i(TAG, "Copied " + count[0] + " entries from SQLite to journal");
+        return count[0];
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.callbacklater;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formatting and parsing of message-log timestamps without SimpleDateFormat.
+ *
+ * {@link SimpleDateFormat} is not thread-safe, so the old code created a new one
+ * (plus a Date and a TimeZone lookup) for every conversion, including once per row
+ * while the log list scrolled. These helpers convert between epoch millis and the
+ * two fixed layouts the app uses with plain integer arithmetic, allocating only the
+ * resulting String. They keep no shared state and are safe to call from any thread.
+ */
+public final class LogTimeFormat {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private LogTimeFormat() {}
+
+    /**
+     * Format as "yyyy-MM-dd'T'HH:mm:ss'Z'" in UTC.
+     */
+    public static String formatIsoUtc(long millis) {
+        char[] buf = new char[20];
+        if (!write(buf, millis, 'T')) return fallbackFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", UTC, millis);
+        buf[19] = 'Z';
+        return new String(buf);
+    }
+
+    /**
+     * Format as "yyyy-MM-dd HH:mm:ss" in `zone`.
+     */
+    public static String formatDisplay(long millis, TimeZone zone) {
+        long local = millis + zone.getOffset(millis);
+        char[] buf = new char[19];
+        if (!write(buf, local, ' ')) return fallbackFormat("yyyy-MM-dd HH:mm:ss", zone, millis);
+        return new String(buf);
+    }
+
+    /**
+     * Parse "yyyy-MM-dd'T'HH:mm:ss'Z'" (UTC). Returns 0 if the string cannot be parsed.
+     */
+    public static long parseIsoUtc(String iso) {
+        if (iso == null) return 0L;
+        if (iso.length() != 20 || iso.charAt(4) != '-' || iso.charAt(7) != '-' || iso.charAt(10) != 'T'
+                || iso.charAt(13) != ':' || iso.charAt(16) != ':' || iso.charAt(19) != 'Z') {
+            return fallbackParse(iso);
+        }
+
+        int year = digits(iso, 0, 4);
+        int month = digits(iso, 5, 2);
+        int day = digits(iso, 8, 2);
+        int hour = digits(iso, 11, 2);
+        int minute = digits(iso, 14, 2);
+        int second = digits(iso, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return fallbackParse(iso);
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return days * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * 1000L;
+    }
+
+    /**
+     * Write "yyyy-MM-dd?HH:mm:ss" for `millis` (already shifted to the wanted zone) into
+     * the first 19 chars of `buf`. Returns false for years that do not fit in four digits.
+     */
+    private static boolean write(char[] buf, long millis, char separator) {
+        long days = Math.floorDiv(millis, MILLIS_PER_DAY);
+        int secOfDay = (int) (Math.floorMod(millis, MILLIS_PER_DAY) / 1000);
+
+        // civil_from_days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) return false;
+
+        put(buf, 0, (int) year, 4);
+        buf[4] = '-';
+        put(buf, 5, month, 2);
+        buf[7] = '-';
+        put(buf, 8, day, 2);
+        buf[10] = separator;
+        put(buf, 11, secOfDay / 3600, 2);
+        buf[13] = ':';
+        put(buf, 14, (secOfDay / 60) % 60, 2);
+        buf[16] = ':';
+        put(buf, 17, secOfDay % 60, 2);
+        return true;
+    }
+
+    private static long daysFromCivil(int y, int m, int d) {
+        y -= m <= 2 ? 1 : 0;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153L * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static void put(char[] buf, int at, int value, int width) {
+        for (int i = at + width - 1; i >= at; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static int digits(String s, int at, int width) {
+        int v = 0;
+        for (int i = at; i < at + width; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private static String fallbackFormat(String pattern, TimeZone zone, long millis) {
+        SimpleDateFormat sdf = new SimpleDateFormat(pattern, Locale.US);
+        sdf.setTimeZone(zone);
+        return sdf.format(new Date(millis));
+    }
+
+    private static long fallbackParse(String iso) {
+        try {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+            sdf.setTimeZone(UTC);
+            Date d = sdf.parse(iso);
+            if (d != null) return d.getTime();
+            else return 0L;
+        } catch (Exception ex) {
+            return 0L;
+        }
+    }
+}
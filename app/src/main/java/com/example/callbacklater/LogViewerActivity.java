@@ -4,12 +4,17 @@ import android.app.DatePickerDialog;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.DatePicker;
 import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
@@ -18,26 +23,40 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.FileProvider;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class LogViewerActivity extends AppCompatActivity {
     private static final String TAG = "LogViewerActivity";
+    private static final int PAGE_SIZE = 200;
 
     private EditText etFilterContact;
+    private CheckBox cbWhatsAppOnly;
     private Button btnStartDate, btnEndDate, btnApplyFilter, btnClearFilter, btnExport;
     private ListView listView;
 
     private Long filterStartDateMillis = null;
     private Long filterEndDateMillis = null;
     private String filterContact = "";
+    private int filterChannels = LogChannel.ALL;
 
     private List<MessageLogManager.Entry> currentEntries = new ArrayList<>();
     private LogEntryAdapter adapter;
+    private boolean hasMorePages = false;
+    private boolean loadingPage = false;
+    // Bumped whenever the list is reloaded, so pages of the previous list are dropped
+    private int listGeneration = 0;
+
+    // Pages are queried here, so scrolling never waits on the log
+    private final ExecutorService pageExecutor = Executors.newSingleThreadExecutor();
+    // Exports run here so a large log never blocks the UI thread
+    private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private MessageLogExporter runningExport;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -45,6 +64,7 @@ public class LogViewerActivity extends AppCompatActivity {
         setContentView(R.layout.activity_log_viewer);
 
         etFilterContact = findViewById(R.id.et_filter_contact);
+        cbWhatsAppOnly = findViewById(R.id.cb_whatsapp_only);
         btnStartDate = findViewById(R.id.btn_start_date);
         btnEndDate = findViewById(R.id.btn_end_date);
         btnApplyFilter = findViewById(R.id.btn_apply_filter);
@@ -66,15 +86,97 @@ public class LogViewerActivity extends AppCompatActivity {
             confirmDeleteEntry(position);
             return true;
         });
+
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                // Fetch the next (older) page shortly before the end of the list is reached
+                if (hasMorePages && firstVisibleItem + visibleItemCount >= totalItemCount - 20) {
+                    loadNextPage();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (runningExport != null) runningExport.cancel();
+        pageExecutor.shutdownNow();
+        exportExecutor.shutdown();
     }
 
     private void loadAllLogs() {
-        currentEntries = MessageLogManager.readAll(this);
-        updateListView(currentEntries);
+        loadFirstPage();
         btnStartDate.setText("Start Date");
         btnEndDate.setText("End Date");
     }
 
+    /**
+     * Show the newest page of entries matching the current filter. Older entries are
+     * loaded page by page as the list is scrolled.
+     */
+    private void loadFirstPage() {
+        int generation = ++listGeneration;
+        loadingPage = true;
+        hasMorePages = false;
+        loadPage(null, page -> {
+            if (generation != listGeneration) return;
+            loadingPage = false;
+            hasMorePages = page.size() == PAGE_SIZE;
+            currentEntries = page;
+            updateListView(currentEntries);
+        });
+    }
+
+    private void loadNextPage() {
+        if (loadingPage || !hasMorePages || currentEntries.isEmpty()) return;
+        int generation = listGeneration;
+        loadingPage = true;
+        loadPage(currentEntries.get(currentEntries.size() - 1), page -> {
+            if (generation != listGeneration) return;
+            loadingPage = false;
+            hasMorePages = page.size() == PAGE_SIZE;
+            if (!page.isEmpty()) {
+                // The adapter is backed by currentEntries, so this appends to both
+                adapter.addAll(page);
+            }
+        });
+    }
+
+    private interface PageCallback {
+        void onPage(List<MessageLogManager.Entry> page);
+    }
+
+    /**
+     * Query the page of entries matching the current filter that follows `last` (the
+     * newest page if null) off the main thread, then hand it to `callback` on it. Paging
+     * from the last entry shown rather than by offset means entries logged meanwhile
+     * neither repeat rows nor skip any.
+     */
+    private void loadPage(MessageLogManager.Entry last, PageCallback callback) {
+        LogQuery query = LogQuery.builder()
+                .contactContains(filterContact)
+                .channels(filterChannels)
+                .since(filterStartDateMillis)
+                .until(filterEndDateMillis)
+                .newestFirst()
+                .after(last)
+                .limit(PAGE_SIZE)
+                .build();
+        pageExecutor.execute(() -> {
+            LogQuery.Result result = MessageLogManager.query(getApplicationContext(), query);
+            Log.d(TAG, query + ": " + result.plan);
+            mainHandler.post(() -> {
+                if (!isDestroyed()) callback.onPage(result.entries);
+            });
+        });
+    }
+
     private void updateListView(List<MessageLogManager.Entry> entries) {
         adapter = new LogEntryAdapter(this, entries);
         listView.setAdapter(adapter);
@@ -100,16 +202,18 @@ public class LogViewerActivity extends AppCompatActivity {
 
     private void applyFilter() {
         filterContact = etFilterContact.getText().toString();
-        currentEntries = MessageLogManager.filterEntries(this, filterContact, filterStartDateMillis, filterEndDateMillis);
-        updateListView(currentEntries);
+        filterChannels = cbWhatsAppOnly.isChecked() ? LogChannel.WHATSAPP : LogChannel.ALL;
+        loadFirstPage();
     }
 
     private void clearFilter() {
         filterContact = "";
+        filterChannels = LogChannel.ALL;
         filterStartDateMillis = null;
         filterEndDateMillis = null;
 
         etFilterContact.setText("");
+        cbWhatsAppOnly.setChecked(false);
         btnStartDate.setText("Start Date");
         btnEndDate.setText("End Date");
 
@@ -123,36 +227,121 @@ public class LogViewerActivity extends AppCompatActivity {
 
         new AlertDialog.Builder(this)
             .setTitle("Delete log entry")
-            .setMessage("Delete selected log entry?\n" + entry.timeIso + " — " + entry.contact)
-            .setPositiveButton("Delete", (dialog, which) -> {
-                boolean deleted = MessageLogManager.deleteEntry(LogViewerActivity.this, entry);
-                if (deleted) {
-                    Toast.makeText(LogViewerActivity.this, "Entry deleted", Toast.LENGTH_SHORT).show();
-                    applyFilter(); // Refresh list
-                } else {
-                    Toast.makeText(LogViewerActivity.this, "Failed to delete entry", Toast.LENGTH_SHORT).show();
-                }
-            })
+            .setMessage("Delete selected log entry?\n" + entry.getTimeIso() + " — " + entry.contact)
+            .setPositiveButton("Delete", (dialog, which) -> pageExecutor.execute(() -> {
+                // May commit the pending batch or rewrite a sealed segment, so not on the UI thread
+                boolean deleted = MessageLogManager.deleteEntry(getApplicationContext(), entry);
+                runOnUiThread(() -> {
+                    if (isDestroyed()) return;
+                    if (deleted) {
+                        Toast.makeText(LogViewerActivity.this, "Entry deleted", Toast.LENGTH_SHORT).show();
+                        applyFilter(); // Refresh list
+                    } else {
+                        Toast.makeText(LogViewerActivity.this, "Failed to delete entry", Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }))
             .setNegativeButton("Cancel", null)
             .show();
     }
 
+    private boolean isFilterActive() {
+        return !filterContact.isEmpty() || filterChannels != LogChannel.ALL
+                || filterStartDateMillis != null || filterEndDateMillis != null;
+    }
+
+    /**
+     * Ask for a format, then export the entries matching the current filter and share them.
+     */
     private void shareLogFile() {
-        try {
-            File src = new File(getFilesDir(), "message_log.xml");
-            if (!src.exists()) {
-                Toast.makeText(this, "No log file found", Toast.LENGTH_SHORT).show();
-                return;
+        if (runningExport != null) return;
+
+        List<String> labels = new ArrayList<>();
+        List<MessageLogExporter> choices = new ArrayList<>();
+        for (MessageLogExporter.Format format : new MessageLogExporter.Format[] {
+                MessageLogExporter.Format.XML, MessageLogExporter.Format.CSV, MessageLogExporter.Format.NDJSON}) {
+            String name = format == MessageLogExporter.Format.NDJSON ? "JSON lines" : format.name();
+            labels.add(name);
+            choices.add(new MessageLogExporter(format, false));
+            labels.add(name + " (gzip)");
+            choices.add(new MessageLogExporter(format, true));
+        }
+        if (!isFilterActive()) {
+            labels.add("Full log backup");
+            choices.add(new MessageLogExporter(MessageLogExporter.Format.BACKUP, false));
+        }
+
+        new AlertDialog.Builder(this)
+            .setTitle(isFilterActive() ? "Export filtered log" : "Export log")
+            .setItems(labels.toArray(new String[0]), (dialog, which) -> startExport(choices.get(which)))
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+
+    private void startExport(MessageLogExporter exporter) {
+        ProgressBar progress = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        progress.setIndeterminate(true);
+        int padding = (int) (24 * getResources().getDisplayMetrics().density);
+        progress.setPadding(padding, padding, padding, 0);
+
+        AlertDialog progressDialog = new AlertDialog.Builder(this)
+            .setTitle("Exporting…")
+            .setView(progress)
+            .setCancelable(false)
+            .setNegativeButton("Cancel", (dialog, which) -> exporter.cancel())
+            .show();
+
+        runningExport = exporter;
+        String contact = filterContact;
+        int channels = filterChannels;
+        Long start = filterStartDateMillis;
+        Long end = filterEndDateMillis;
+        // Export to cache so we can share via FileProvider
+        File dir = new File(getCacheDir(), "exports");
+        File dst = new File(dir, exporter.getFileName());
+
+        exportExecutor.execute(() -> {
+            int count = -1;
+            Exception error = null;
+            try {
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+                count = exporter.export(getApplicationContext(), contact, channels, start, end, dst, (done, total) ->
+                        mainHandler.post(() -> {
+                            progress.setIndeterminate(false);
+                            progress.setMax(Math.max(1, total));
+                            progress.setProgress(done);
+                        }));
+            } catch (IOException | RuntimeException e) {
+                // Anything else would leave the dialog up and runningExport set for good
+                error = e;
             }
 
-            // Copy to cache so we can share via FileProvider
-            File dst = new File(getCacheDir(), "message_log.xml");
-            copyFile(src, dst);
+            int exported = count;
+            Exception failure = error;
+            mainHandler.post(() -> {
+                runningExport = null;
+                progressDialog.dismiss();
+                if (isFinishing() || isDestroyed()) return;
+                if (failure instanceof MessageLogExporter.CancelledException) {
+                    Toast.makeText(this, "Export cancelled", Toast.LENGTH_SHORT).show();
+                } else if (failure != null) {
+                    Log.w(TAG, "Failed to export log", failure);
+                    Toast.makeText(this, "Failed to share log", Toast.LENGTH_SHORT).show();
+                } else if (exported == 0) {
+                    Toast.makeText(this, "No log entries to export", Toast.LENGTH_SHORT).show();
+                } else {
+                    shareExport(dst, exporter.getMimeType());
+                }
+            });
+        });
+    }
 
-            Uri uri = FileProvider.getUriForFile(this, "com.example.callbacklater.fileprovider", dst);
+    private void shareExport(File file, String mimeType) {
+        try {
+            Uri uri = FileProvider.getUriForFile(this, "com.example.callbacklater.fileprovider", file);
 
             Intent share = new Intent(Intent.ACTION_SEND);
-            share.setType("application/xml");
+            share.setType(mimeType);
             share.putExtra(Intent.EXTRA_STREAM, uri);
             share.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
             startActivity(Intent.createChooser(share, "Share message log"));
@@ -161,19 +350,4 @@ public class LogViewerActivity extends AppCompatActivity {
             Toast.makeText(this, "Failed to share log", Toast.LENGTH_SHORT).show();
         }
     }
-
-    private void copyFile(File src, File dst) throws IOException {
-        FileInputStream in = null;
-        FileOutputStream out = null;
-        try {
-            in = new FileInputStream(src);
-            out = new FileOutputStream(dst, false);
-            byte[] buf = new byte[8192];
-            int r;
-            while ((r = in.read(buf)) > 0) out.write(buf, 0, r);
-        } finally {
-            if (in != null) try { in.close(); } catch (IOException ignored) {}
-            if (out != null) try { out.close(); } catch (IOException ignored) {}
-        }
-    }
 }
@@ -3,7 +3,6 @@ package com.example.callbacklater;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.os.Handler;
 import android.telephony.SmsManager;
 import android.util.Log;
 import android.view.View;
@@ -14,7 +13,6 @@ import android.widget.SimpleAdapter;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-import com.example.callbacklater.MessageLogManager.Entry;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -28,7 +26,6 @@ import android.widget.Toast;
 public class MainActivity extends AppCompatActivity {
     private ListView lvCallLog;
     private static final int REQ_PERMS = 101;
-    private CallLogContentObserver callLogObserver;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -55,12 +52,16 @@ public class MainActivity extends AppCompatActivity {
         lvCallLog = findViewById(R.id.lv_call_log);
         Button btnSettings = findViewById(R.id.btn_settings);
         Button btnLogs = findViewById(R.id.btn_logs);
+        Button btnStats = findViewById(R.id.btn_stats);
 
         btnSettings.setOnClickListener(v -> 
             startActivity(new Intent(MainActivity.this, SettingsActivity.class)));
             
         btnLogs.setOnClickListener(v -> 
             startActivity(new Intent(MainActivity.this, LogViewerActivity.class)));
+
+        btnStats.setOnClickListener(v ->
+            startActivity(new Intent(MainActivity.this, StatisticsActivity.class)));
     }
 
     private void checkNotificationListenerPermission() {
@@ -209,21 +210,19 @@ public class MainActivity extends AppCompatActivity {
                 } while (cursor.moveToNext());
             }
 
-            // Load WhatsApp calls from MessageLogManager
-            List<MessageLogManager.Entry> whatsappEntries = MessageLogManager.readAll(this);
+            // Load WhatsApp missed calls from MessageLogManager
+            List<MessageLogManager.Entry> whatsappEntries = MessageLogManager.query(this,
+                    LogQuery.builder().channel(LogChannel.WHATSAPP_MISSED_CALL).build()).entries;
             for (MessageLogManager.Entry entry : whatsappEntries) {
-                if (entry.contact.startsWith("W:")) {
-                    String contact = entry.contact.substring(2); // Remove "W:" prefix
-                    long timestamp = MessageLogManager.parseIsoToMillis(entry.timeIso);
-                    String time = sdfOutput.format(new Date(timestamp));
-
-                    HashMap<String, String> map = new HashMap<>();
-                    map.put("contact", contact);
-                    map.put("call_type", "WhatsApp Missed");
-                    map.put("time", time);
-                    map.put("timestamp", String.valueOf(timestamp));
-                    data.add(map);
-                }
+                long timestamp = entry.timeMillis;
+                String time = sdfOutput.format(new Date(timestamp));
+
+                HashMap<String, String> map = new HashMap<>();
+                map.put("contact", entry.contact);
+                map.put("call_type", "WhatsApp Missed");
+                map.put("time", time);
+                map.put("timestamp", String.valueOf(timestamp));
+                data.add(map);
             }
 
             // Sort the combined list by timestamp descending
@@ -257,11 +256,10 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void registerCallLogObserver() {
-        callLogObserver = new CallLogContentObserver(new Handler(), this);
-        getContentResolver().registerContentObserver(
-            android.provider.CallLog.Calls.CONTENT_URI, 
-            true, 
-            callLogObserver);
+        // Load contacts now, so the first call does not wait on a provider query
+        ContactNumberSet.get(this);
+        // The application registers it at process start if the permission was granted then
+        CallLogContentObserver.ensureRegistered(this);
     }
 
     private void sendAutoReplyIfNotSent(String phoneNumber) {
@@ -270,14 +268,15 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        long now = System.currentTimeMillis();
-        List<Entry> sentEntries = MessageLogManager.filterEntries(
-            this, 
-            phoneNumber, 
-            now - 5*60*1000, 
-            now);
+        if (!ContactNumberSet.isReplyAllowed(this, phoneNumber)) {
+            Log.i("MainActivity", "Not a contact, no auto-reply: " + phoneNumber);
+            return;
+        }
 
-        if (!sentEntries.isEmpty()) {
+        long now = System.currentTimeMillis();
+        LogQuery repliedRecently = LogQuery.builder().contactEquals(phoneNumber).channel(LogChannel.SMS_REPLY)
+                .since(now - 5*60*1000).limit(1).countOnly().build();
+        if (MessageLogManager.query(this, repliedRecently).count > 0) {
             Log.i("MainActivity", "Auto-reply SMS already sent recently to: " + phoneNumber);
             return;
         }
@@ -287,7 +286,7 @@ public class MainActivity extends AppCompatActivity {
             .getString("auto_reply_msg", "User is currently unavailable or sleeping. For urgent matters, please chat via What's App. Otherwise kindly return call at 4.00 pm or anytime thereafter.");
 
         try {
-            smsManager.sendTextMessage(phoneNumber, null, message, null, null);
+            smsManager.sendTextMessage(PhoneNumberNormalizer.getDefault().dialable(phoneNumber), null, message, null, null);
             MessageLogManager.addEntry(this, phoneNumber, now);
             Log.i("MainActivity", "Sent auto-reply SMS to: " + phoneNumber);
         } catch (Exception e) {
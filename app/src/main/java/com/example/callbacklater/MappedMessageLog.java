@@ -0,0 +1,358 @@
+package com.example.callbacklater;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only, memory-mapped view of a {@link MessageLogJournal} file or sealed segment.
+ *
+ * Opening the view walks the records once, straight out of the mapped file, and keeps
+ * only a few small arrays per live entry: id, time, channel flags and the offset of its
+ * contact in the file. Deleted entries are dropped while scanning. Times and ids can then be
+ * read without creating any {@link MessageLogManager.Entry} objects, and a contact
+ * string is only decoded when {@link #contactAt} is called for that row.
+ *
+ * Add records written before channels were recorded (types 1 to 3) are migrated as
+ * they are read: a "W:" contact prefix becomes the WhatsApp missed call channel, as in
+ * {@link MessageLogManager.Entry#fromLegacy}, and is left out of the decoded contact.
+ *
+ * Segments in the compact format (see {@link MessageLogSegment}) are decoded in full
+ * when opened, into the same arrays plus the segment's contact dictionary, so
+ * {@link #contactAt} returns the dictionary's copy rather than decoding.
+ *
+ * The view does not change when the journal is appended to; open a new one to see
+ * later records.
+ */
+public final class MappedMessageLog {
+    static final int MAGIC = 0x43424C4A; // "CBLJ"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    static final byte TYPE_ADD_ISO = 1;
+    static final byte TYPE_ADD_MILLIS = 2;
+    static final byte TYPE_ADD = 3;
+    static final byte TYPE_DELETE = 4;
+    static final byte TYPE_ADD_CHANNEL = 5;
+
+    // Flags per row: channel in the low bits, as in MessageLogColumns, plus a marker for
+    // legacy rows whose contact starts with the "W:" tag
+    static final int CHANNEL_MASK = 0x0F;
+    static final int INCOMING = 0x10;
+    private static final int LEGACY_TAG = 0x20;
+
+    private final ByteBuffer buffer;
+    private final long[] ids;
+    private final long[] times;
+    // File offset of each row's contact, or its index into contacts for a compact segment
+    private final int[] contactOffsets;
+    private final byte[] flags;
+    private final String[] contacts;
+    private final int size;
+    private final int tombstones;
+    private final int legacyRecords;
+    private final long maxId;
+    private final long validLength;
+
+    private MappedMessageLog(ByteBuffer buffer, long[] ids, long[] times, int[] contactOffsets, byte[] flags,
+                             String[] contacts, int size, int tombstones, int legacyRecords, long maxId,
+                             long validLength) {
+        this.buffer = buffer;
+        this.ids = ids;
+        this.times = times;
+        this.contactOffsets = contactOffsets;
+        this.flags = flags;
+        this.contacts = contacts;
+        this.size = size;
+        this.tombstones = tombstones;
+        this.legacyRecords = legacyRecords;
+        this.maxId = maxId;
+        this.validLength = validLength;
+    }
+
+    /**
+     * Map `file` and index its records. A missing or empty file gives an empty view.
+     * Throws if the file has an unknown header.
+     */
+    public static MappedMessageLog open(File file) throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return new MappedMessageLog(ByteBuffer.allocate(0), new long[0], new long[0], new int[0], new byte[0],
+                    null, 0, 0, 0, 0, 0);
+        }
+
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (buffer.getInt(0) == MessageLogSegment.MAGIC) {
+            return MessageLogSegment.decode(buffer, file);
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unrecognized journal header in " + file);
+        }
+        return scan(buffer);
+    }
+
+    private static MappedMessageLog scan(ByteBuffer buf) {
+        int limit = buf.limit();
+        // Only a capacity hint, sized for typical records; the arrays grow as needed below
+        int capacity = Math.max(16, Math.min(limit / 24, 1 << 16));
+        long[] ids = new long[capacity];
+        long[] times = new long[capacity];
+        int[] contactOffsets = new int[capacity];
+        byte[] flags = new byte[capacity];
+        boolean[] live = new boolean[capacity];
+        int rows = 0;
+        int deleted = 0;
+        int tombstones = 0;
+        int legacyRecords = 0;
+        long maxId = 0;
+        boolean idsAscending = true;
+
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[256];
+        int offset = HEADER_SIZE;
+        while (offset + 8 <= limit) {
+            int length = buf.getInt(offset);
+            if (length <= 0 || length > MAX_RECORD_SIZE || offset + 8 + length > limit) break;
+            int checksum = buf.getInt(offset + 4);
+            int payload = offset + 8;
+
+            if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+            buf.position(payload);
+            buf.get(scratch, 0, length);
+            crc.reset();
+            crc.update(scratch, 0, length);
+            if ((int) crc.getValue() != checksum) break;
+
+            byte type = buf.get(payload);
+            if (type == TYPE_DELETE) {
+                tombstones++;
+                int row = findRow(ids, rows, buf.getLong(payload + 1), idsAscending);
+                if (row >= 0 && live[row]) {
+                    live[row] = false;
+                    deleted++;
+                }
+            } else if (type == TYPE_ADD_CHANNEL || type == TYPE_ADD || type == TYPE_ADD_MILLIS || type == TYPE_ADD_ISO) {
+                if (rows == ids.length) {
+                    int grown = ids.length * 2;
+                    ids = Arrays.copyOf(ids, grown);
+                    times = Arrays.copyOf(times, grown);
+                    contactOffsets = Arrays.copyOf(contactOffsets, grown);
+                    flags = Arrays.copyOf(flags, grown);
+                    live = Arrays.copyOf(live, grown);
+                }
+                long id;
+                int contactAt;
+                int rowFlags;
+                if (type == TYPE_ADD_CHANNEL) {
+                    id = buf.getLong(payload + 1);
+                    int channel = buf.get(payload + 9);
+                    if (channel < 0 || channel >= LogChannel.COUNT) channel = LogChannel.SMS_REPLY;
+                    rowFlags = channel | (buf.get(payload + 10) == LogChannel.INCOMING ? INCOMING : 0);
+                    contactAt = payload + 11;
+                } else if (type == TYPE_ADD) {
+                    id = buf.getLong(payload + 1);
+                    contactAt = payload + 9;
+                    rowFlags = legacyFlags(buf, contactAt);
+                    legacyRecords++;
+                } else {
+                    // Older records have no id; number them in file order
+                    id = 0;
+                    contactAt = payload + 1;
+                    rowFlags = legacyFlags(buf, contactAt);
+                    legacyRecords++;
+                }
+                if (id <= 0) id = maxId + 1;
+                int timeAt = contactAt + 2 + (buf.getShort(contactAt) & 0xFFFF);
+
+                if (rows > 0 && id <= ids[rows - 1]) idsAscending = false;
+                ids[rows] = id;
+                times[rows] = type == TYPE_ADD_ISO
+                        ? LogTimeFormat.parseIsoUtc(decodeUtf(buf, timeAt))
+                        : buf.getLong(timeAt);
+                contactOffsets[rows] = contactAt;
+                flags[rows] = (byte) rowFlags;
+                live[rows] = true;
+                rows++;
+                if (id > maxId) maxId = id;
+            }
+            // Unknown record types come from a newer version; skip them
+
+            offset = payload + length;
+        }
+
+        if (deleted > 0) {
+            int n = 0;
+            for (int i = 0; i < rows; i++) {
+                if (!live[i]) continue;
+                ids[n] = ids[i];
+                times[n] = times[i];
+                contactOffsets[n] = contactOffsets[i];
+                flags[n] = flags[i];
+                n++;
+            }
+            rows = n;
+        }
+        return new MappedMessageLog(buf, ids, times, contactOffsets, flags, null, rows, tombstones, legacyRecords,
+                maxId, offset);
+    }
+
+    /**
+     * View of a decoded compact segment: `contactIds` index into `contacts`.
+     */
+    static MappedMessageLog ofSegment(long[] ids, long[] times, int[] contactIds, byte[] flags, int size,
+                                      String[] contacts, long maxId, long validLength) {
+        return new MappedMessageLog(null, ids, times, contactIds, flags, contacts, size, 0, 0, maxId, validLength);
+    }
+
+    /**
+     * Flags for a legacy add record with its contact at `contactAt`: a WhatsApp missed call
+     * if the contact starts with "W:", otherwise an SMS reply.
+     */
+    private static int legacyFlags(ByteBuffer buf, int contactAt) {
+        int length = buf.getShort(contactAt) & 0xFFFF;
+        if (length >= 2 && buf.get(contactAt + 2) == 'W' && buf.get(contactAt + 3) == ':') {
+            return LogChannel.WHATSAPP_MISSED_CALL | INCOMING | LEGACY_TAG;
+        }
+        return LogChannel.SMS_REPLY;
+    }
+
+    /**
+     * Row holding `id`, or -1. Ids are normally assigned in file order, so binary search
+     * works; a journal written some other way falls back to a linear scan.
+     */
+    private static int findRow(long[] ids, int rows, long id, boolean ascending) {
+        if (ascending) {
+            int i = Arrays.binarySearch(ids, 0, rows, id);
+            return i >= 0 ? i : -1;
+        }
+        for (int i = rows - 1; i >= 0; i--) {
+            if (ids[i] == id) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Decode the modified UTF-8 string (length-prefixed, as written by
+     * {@link java.io.DataOutputStream#writeUTF}) at `offset`. Phone numbers are ASCII,
+     * which is decoded directly from the buffer.
+     */
+    private static String decodeUtf(ByteBuffer buf, int offset) {
+        int length = buf.getShort(offset) & 0xFFFF;
+        int start = offset + 2;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            byte b = buf.get(start + i);
+            if (b < 0) return decodeUtfSlow(buf, offset, length);
+            chars[i] = (char) b;
+        }
+        return new String(chars);
+    }
+
+    private static String decodeUtfSlow(ByteBuffer buf, int offset, int length) {
+        byte[] bytes = new byte[length + 2];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(offset + i);
+        try {
+            return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+        } catch (IOException e) {
+            // Covered by the record checksum, so only a bug in the writer gets here
+            return "";
+        }
+    }
+
+    /**
+     * Number of live entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long idAt(int i) {
+        checkIndex(i);
+        return ids[i];
+    }
+
+    public long timeAt(int i) {
+        checkIndex(i);
+        return times[i];
+    }
+
+    /**
+     * Contact of row `i`, decoded from the mapped file on each call (or taken from the
+     * dictionary of a compact segment).
+     */
+    public String contactAt(int i) {
+        checkIndex(i);
+        if (contacts != null) return contacts[contactOffsets[i]];
+        String contact = decodeUtf(buffer, contactOffsets[i]);
+        if ((flags[i] & LEGACY_TAG) != 0) {
+            return contact.substring(LogChannel.LEGACY_WHATSAPP_PREFIX.length());
+        }
+        return contact;
+    }
+
+    public byte channelAt(int i) {
+        checkIndex(i);
+        return (byte) (flags[i] & CHANNEL_MASK);
+    }
+
+    public byte directionAt(int i) {
+        checkIndex(i);
+        return (flags[i] & INCOMING) != 0 ? LogChannel.INCOMING : LogChannel.OUTGOING;
+    }
+
+    public MessageLogManager.Entry entryAt(int i) {
+        return new MessageLogManager.Entry(idAt(i), contactAt(i), times[i], channelAt(i), directionAt(i));
+    }
+
+    /**
+     * Tombstone records in the file, live or not.
+     */
+    public int getTombstoneCount() {
+        return tombstones;
+    }
+
+    /**
+     * Add records in the older formats without a channel, live or not. Rewriting the
+     * journal stores them in the current format.
+     */
+    public int getLegacyRecordCount() {
+        return legacyRecords;
+    }
+
+    /**
+     * Whether this is a segment in the compact format rather than a journal.
+     */
+    public boolean isCompact() {
+        return contacts != null;
+    }
+
+    public long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Byte offset just past the last valid record; anything after it is a torn tail.
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.callbacklater;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide in-memory copy of the parsed message log.
+ *
+ * Holds the current {@link MessageLogSnapshot}. The snapshot remembers the length and
+ * modification time of the log file it was loaded from. If either changes without
+ * going through {@link MessageLogStore} (another process, a restored backup, ...) the
+ * next lookup is a miss and the log is reloaded from disk. Writes made through the
+ * store publish a new snapshot so the cache stays valid.
+ *
+ * Lookups never block; publishing is done by the store under its write lock.
+ */
+public class MessageLogCache {
+    private volatile MessageLogSnapshot current;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the cached snapshot if it still matches `file`, or null (counted as a miss).
+     * With `fileBeingWritten` set, the file is known to be changing because of a write from
+     * this process, and the cached snapshot is returned without comparing file state.
+     */
+    public MessageLogSnapshot lookup(File file, boolean fileBeingWritten) {
+        MessageLogSnapshot s = current;
+        if (s != null && (fileBeingWritten || s.matches(file))) {
+            hits.incrementAndGet();
+            return s;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * The cached snapshot, fresh or not, or null. Does not touch the hit/miss counters.
+     */
+    MessageLogSnapshot peek() {
+        return current;
+    }
+
+    void publish(MessageLogSnapshot snapshot) {
+        current = snapshot;
+    }
+
+    public void invalidate() {
+        current = null;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
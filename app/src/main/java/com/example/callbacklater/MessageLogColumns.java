@@ -0,0 +1,303 @@
+package com.example.callbacklater;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-wise, read-only view of the cached message log.
+ *
+ * Instead of one {@link MessageLogManager.Entry} object (plus its contact String) per
+ * row, the log is held as parallel primitive arrays: ids and times as long[], the
+ * contact as an int[] of ids into a shared {@link Dictionary}, and the channel and
+ * direction (see {@link LogChannel}) packed into a byte[] of flags. The same few
+ * callers make up most of the log, so each distinct contact String is kept once.
+ * Filters and adapters read rows through the accessors below without allocating;
+ * {@link #entryAt} builds an Entry only when one is needed.
+ *
+ * Like {@link MessageLogSnapshot}, a columns object never changes once published.
+ * {@link #withAppended} shares the arrays with the previous version and only writes
+ * past its size.
+ */
+public final class MessageLogColumns {
+    // Flags: channel in the low four bits, direction in the next one
+    private static final int CHANNEL_MASK = 0x0F;
+    private static final int DIRECTION_SHIFT = 4;
+
+    static final MessageLogColumns EMPTY = new MessageLogColumns(new long[0], new long[0], new int[0], new byte[0],
+            new Dictionary(), 0);
+
+    /**
+     * Append-only table of distinct contacts, shared by every version derived from one
+     * load. Writers intern under the store's write lock; {@link #get} needs no lock since
+     * a row only refers to ids that existed when its columns were published.
+     */
+    public static final class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private volatile String[] contacts = new String[16];
+        private volatile int size;
+
+        synchronized int intern(String contact) {
+            Integer id = ids.get(contact);
+            if (id != null) return id;
+            String[] array = contacts;
+            if (size == array.length) {
+                array = Arrays.copyOf(array, size * 2);
+            }
+            array[size] = contact;
+            contacts = array;
+            ids.put(contact, size);
+            return size++;
+        }
+
+        public String get(int id) {
+            return contacts[id];
+        }
+
+        /**
+         * Number of contacts interned so far. Ids run from 0 to size() - 1.
+         */
+        public int size() {
+            return size;
+        }
+    }
+
+    private final long[] ids;
+    private final long[] times;
+    private final int[] contactIds;
+    private final byte[] channels;
+    private final Dictionary dictionary;
+    private final int size;
+    // Whether ids[0, size) ascend, worked out on the first lookup that misses
+    private volatile Boolean idsAscending;
+
+    private MessageLogColumns(long[] ids, long[] times, int[] contactIds, byte[] channels,
+                              Dictionary dictionary, int size) {
+        this.ids = ids;
+        this.times = times;
+        this.contactIds = contactIds;
+        this.channels = channels;
+        this.dictionary = dictionary;
+        this.size = size;
+    }
+
+    static MessageLogColumns of(List<MessageLogManager.Entry> entries) {
+        Builder b = new Builder(entries.size());
+        for (MessageLogManager.Entry e : entries) {
+            b.add(e.id, e.contact, e.timeMillis, e.channel, e.direction);
+        }
+        return b.build();
+    }
+
+    /**
+     * Columns for the live entries of a mapped journal. Contacts are decoded one row at a
+     * time and only the first copy of each is kept.
+     */
+    static MessageLogColumns of(MappedMessageLog log, int extraCapacity) {
+        return of(Collections.singletonList(log), extraCapacity);
+    }
+
+    /**
+     * Columns for the live entries of several mapped journals (sealed segments and the
+     * journal), one after the other.
+     */
+    static MessageLogColumns of(List<MappedMessageLog> logs, int extraCapacity) {
+        int size = 0;
+        for (MappedMessageLog log : logs) size += log.size();
+        Builder b = new Builder(size + extraCapacity);
+        for (MappedMessageLog log : logs) {
+            for (int i = 0; i < log.size(); i++) {
+                b.add(log.idAt(i), log.contactAt(i), log.timeAt(i), log.channelAt(i), log.directionAt(i));
+            }
+        }
+        return b.build();
+    }
+
+    /**
+     * Columns with one row appended. Must only be called on the newest version, with the
+     * store's write lock held.
+     */
+    MessageLogColumns withAppended(MessageLogManager.Entry entry) {
+        long[] newIds = ids;
+        long[] newTimes = times;
+        int[] newContactIds = contactIds;
+        byte[] newChannels = channels;
+        if (size == ids.length) {
+            int capacity = Math.max(16, size * 2);
+            newIds = Arrays.copyOf(ids, capacity);
+            newTimes = Arrays.copyOf(times, capacity);
+            newContactIds = Arrays.copyOf(contactIds, capacity);
+            newChannels = Arrays.copyOf(channels, capacity);
+        }
+        newIds[size] = entry.id;
+        newTimes[size] = entry.timeMillis;
+        newContactIds[size] = dictionary.intern(entry.contact == null ? "" : entry.contact);
+        newChannels[size] = flags(entry.channel, entry.direction);
+        return new MessageLogColumns(newIds, newTimes, newContactIds, newChannels, dictionary, size + 1);
+    }
+
+    /**
+     * Copy without the row at `position`. The dictionary is shared; a contact whose last
+     * row is removed stays in it until the log is next loaded.
+     */
+    MessageLogColumns without(int position) {
+        int capacity = Math.max(16, size);
+        long[] newIds = new long[capacity];
+        long[] newTimes = new long[capacity];
+        int[] newContactIds = new int[capacity];
+        byte[] newChannels = new byte[capacity];
+        int tail = size - position - 1;
+        System.arraycopy(ids, 0, newIds, 0, position);
+        System.arraycopy(ids, position + 1, newIds, position, tail);
+        System.arraycopy(times, 0, newTimes, 0, position);
+        System.arraycopy(times, position + 1, newTimes, position, tail);
+        System.arraycopy(contactIds, 0, newContactIds, 0, position);
+        System.arraycopy(contactIds, position + 1, newContactIds, position, tail);
+        System.arraycopy(channels, 0, newChannels, 0, position);
+        System.arraycopy(channels, position + 1, newChannels, position, tail);
+        return new MessageLogColumns(newIds, newTimes, newContactIds, newChannels, dictionary, size - 1);
+    }
+
+    /**
+     * Copy without the first `count` rows, for dropping the oldest entries. The
+     * dictionary is shared, as for {@link #without}.
+     */
+    MessageLogColumns withoutFirst(int count) {
+        int n = size - count;
+        int capacity = Math.max(16, n);
+        long[] newIds = new long[capacity];
+        long[] newTimes = new long[capacity];
+        int[] newContactIds = new int[capacity];
+        byte[] newChannels = new byte[capacity];
+        System.arraycopy(ids, count, newIds, 0, n);
+        System.arraycopy(times, count, newTimes, 0, n);
+        System.arraycopy(contactIds, count, newContactIds, 0, n);
+        System.arraycopy(channels, count, newChannels, 0, n);
+        return new MessageLogColumns(newIds, newTimes, newContactIds, newChannels, dictionary, n);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long idAt(int i) {
+        check(i);
+        return ids[i];
+    }
+
+    public long timeAt(int i) {
+        check(i);
+        return times[i];
+    }
+
+    /**
+     * Dictionary id of the row's contact, see {@link #getDictionary()}.
+     */
+    public int contactIdAt(int i) {
+        check(i);
+        return contactIds[i];
+    }
+
+    /**
+     * The row's contact. Returns the dictionary's copy, so this does not allocate.
+     */
+    public String contactAt(int i) {
+        check(i);
+        return dictionary.get(contactIds[i]);
+    }
+
+    /**
+     * The row's {@link LogChannel} channel.
+     */
+    public byte channelAt(int i) {
+        check(i);
+        return (byte) (channels[i] & CHANNEL_MASK);
+    }
+
+    /**
+     * The row's {@link LogChannel} direction.
+     */
+    public byte directionAt(int i) {
+        check(i);
+        return (byte) (channels[i] >> DIRECTION_SHIFT);
+    }
+
+    public Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Position of the row with id `id`, or -1. Rows are appended in id order, so this is
+     * a binary search; a log written out of order by an old version falls back to a scan.
+     */
+    public int positionOf(long id) {
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        if (i >= 0) return i;
+        Boolean ascending = idsAscending;
+        if (ascending == null) {
+            ascending = true;
+            for (int k = 1; k < size && ascending; k++) ascending = ids[k] > ids[k - 1];
+            idsAscending = ascending;
+        }
+        if (ascending) return -1;
+        for (int j = 0; j < size; j++) {
+            if (ids[j] == id) return j;
+        }
+        return -1;
+    }
+
+    /**
+     * The row as an Entry object. Allocates; prefer the accessors above in loops.
+     */
+    public MessageLogManager.Entry entryAt(int i) {
+        check(i);
+        return new MessageLogManager.Entry(ids[i], dictionary.get(contactIds[i]), times[i],
+                channelAt(i), directionAt(i));
+    }
+
+    /**
+     * The times column itself, for building the time index. Must not be modified.
+     */
+    long[] times() {
+        return times;
+    }
+
+    private static byte flags(byte channel, byte direction) {
+        return (byte) ((channel & CHANNEL_MASK) | (direction << DIRECTION_SHIFT));
+    }
+
+    private void check(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+    }
+
+    private static final class Builder {
+        final long[] ids;
+        final long[] times;
+        final int[] contactIds;
+        final byte[] channels;
+        final Dictionary dictionary = new Dictionary();
+        int size;
+
+        Builder(int capacity) {
+            capacity = Math.max(16, capacity);
+            ids = new long[capacity];
+            times = new long[capacity];
+            contactIds = new int[capacity];
+            channels = new byte[capacity];
+        }
+
+        void add(long id, String contact, long timeMillis, byte channel, byte direction) {
+            ids[size] = id;
+            times[size] = timeMillis;
+            contactIds[size] = dictionary.intern(contact == null ? "" : contact);
+            channels[size] = flags(channel, direction);
+            size++;
+        }
+
+        MessageLogColumns build() {
+            return new MessageLogColumns(ids, times, contactIds, channels, dictionary, size);
+        }
+    }
+}
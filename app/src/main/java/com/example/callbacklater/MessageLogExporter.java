@@ -0,0 +1,393 @@
+package com.example.callbacklater;
+
+import android.content.Context;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the message log, or the part of it matching the log viewer's filter, to a file
+ * for sharing.
+ *
+ * Entries are read from the log store a page of {@link #PAGE_SIZE} at a time and
+ * streamed into the output, optionally gzipped, so neither the entries nor the document
+ * are ever all in memory. {@link Format#BACKUP}
+ * copies the log store's file itself with {@code FileChannel.transferTo}, which avoids
+ * copying the data through the Java heap; it is only offered for unfiltered exports.
+ *
+ * An export is meant to run on a background thread. It reports progress to a
+ * {@link ProgressListener} and stops with {@link CancelledException} soon after
+ * {@link #cancel()} is called; a backup is stopped by closing the file it is copied to.
+ */
+public class MessageLogExporter {
+    // How often progress is reported and cancellation checked
+    private static final int PROGRESS_STEP = 500;
+    // Entries read from the log per query
+    static final int PAGE_SIZE = 1000;
+
+    public enum Format {
+        XML("xml", "application/xml"),
+        CSV("csv", "text/csv"),
+        NDJSON("ndjson", "application/x-ndjson"),
+        BACKUP("backup", "application/octet-stream");
+
+        public final String extension;
+        public final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+    }
+
+    /**
+     * Called on the exporting thread.
+     */
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    public static class CancelledException extends IOException {
+        public CancelledException() {
+            super("Export cancelled");
+        }
+    }
+
+    /**
+     * The entries to write, a page at a time.
+     */
+    interface EntryPages {
+        // Number of entries in all pages, for progress
+        int total();
+
+        // The next page, empty after the last
+        List<MessageLogManager.Entry> next() throws IOException;
+    }
+
+    private final Format format;
+    private final boolean gzip;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    // File a backup is being copied to; closing it stops the copy
+    private volatile Closeable backupTarget;
+
+    public MessageLogExporter(Format format, boolean gzip) {
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    public void cancel() {
+        cancelled.set(true);
+        Closeable target = backupTarget;
+        if (target != null) {
+            try { target.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public String getFileName() {
+        return "message_log." + format.extension + (gzip ? ".gz" : "");
+    }
+
+    public String getMimeType() {
+        return gzip ? "application/gzip" : format.mimeType;
+    }
+
+    /**
+     * Export the entries matching the filter (null, empty or {@link LogChannel#ALL} skips
+     * each part, as for {@link MessageLogManager#filterEntries}) into `dst`. Returns the
+     * number of entries exported. A partly written file is removed if the export fails or
+     * is cancelled.
+     */
+    public int export(Context ctx, String contactFilter, int channels, Long startTimeMillis, Long endTimeMillis,
+                      File dst, ProgressListener listener) throws IOException {
+        boolean filtered = (contactFilter != null && !contactFilter.isEmpty()) || channels != LogChannel.ALL
+                || startTimeMillis != null || endTimeMillis != null;
+        if (format == Format.BACKUP && filtered) {
+            throw new IllegalArgumentException("A backup can only be exported unfiltered");
+        }
+
+        boolean done = false;
+        FileOutputStream fos = new FileOutputStream(dst, false);
+        try {
+            int count;
+            if (format == Format.BACKUP) {
+                count = copyBackup(ctx, fos);
+            } else {
+                OutputStream out = new BufferedOutputStream(fos, 64 * 1024);
+                if (gzip) out = new GZIPOutputStream(out, 64 * 1024);
+                LogQuery filter = LogQuery.builder().contactContains(contactFilter).channels(channels)
+                        .since(startTimeMillis).until(endTimeMillis).build();
+                count = writeEntries(new QueryPages(ctx, filter), out, listener);
+                out.close();
+            }
+            if (listener != null) listener.onProgress(count, count);
+            done = true;
+            return count;
+        } finally {
+            try { fos.close(); } catch (IOException ignored) {}
+            if (!done) dst.delete();
+        }
+    }
+
+    /**
+     * Copy the log store's file into `fos`, gzipped if asked. {@link #cancel} closes `fos`
+     * to stop the copy, which leaves the zero-copy path for the plain file intact.
+     */
+    private int copyBackup(Context ctx, FileOutputStream fos) throws IOException {
+        backupTarget = fos;
+        try {
+            if (cancelled.get()) throw new CancelledException();
+            int count;
+            if (!gzip) {
+                // Straight file-to-file copy
+                count = MessageLogManager.copyRawLog(ctx, fos.getChannel());
+            } else {
+                OutputStream out = new GZIPOutputStream(new BufferedOutputStream(fos, 64 * 1024), 64 * 1024);
+                count = MessageLogManager.copyRawLog(ctx, Channels.newChannel(out));
+                out.close();
+            }
+            if (cancelled.get()) throw new CancelledException();
+            return count;
+        } catch (IOException e) {
+            // Whatever failed once the file was closed under the copy
+            if (cancelled.get() && !(e instanceof CancelledException)) throw new CancelledException();
+            throw e;
+        } finally {
+            backupTarget = null;
+        }
+    }
+
+    /**
+     * Write `entries` to `out` in this exporter's format (not gzipped, and not
+     * {@link Format#BACKUP}). Does not close `out`.
+     */
+    public void writeEntries(List<MessageLogManager.Entry> entries, OutputStream out,
+                             ProgressListener listener) throws IOException {
+        writeEntries(new EntryPages() {
+            private boolean read;
+
+            @Override
+            public int total() {
+                return entries.size();
+            }
+
+            @Override
+            public List<MessageLogManager.Entry> next() {
+                if (read) return Collections.emptyList();
+                read = true;
+                return entries;
+            }
+        }, out, listener);
+    }
+
+    /**
+     * Write every page of `pages` to `out` as {@link #writeEntries(List, OutputStream,
+     * ProgressListener)} does. Returns the number of entries written.
+     */
+    int writeEntries(EntryPages pages, OutputStream out, ProgressListener listener) throws IOException {
+        switch (format) {
+            case XML:
+                return writeXml(pages, out, listener);
+            case CSV:
+            case NDJSON:
+                Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+                int count = format == Format.CSV ? writeCsv(pages, w, listener) : writeNdjson(pages, w, listener);
+                w.flush();
+                return count;
+            default:
+                throw new IllegalArgumentException("Cannot write entries as " + format);
+        }
+    }
+
+    /**
+     * Same format the log was stored in before the journal, see {@link MessageLogManager},
+     * with each entry's channel and direction added.
+     */
+    private int writeXml(EntryPages pages, OutputStream out, ProgressListener listener) throws IOException {
+        XmlSerializer s = Xml.newSerializer();
+        s.setOutput(out, "utf-8");
+        s.startDocument("utf-8", true);
+        s.startTag(null, "messages");
+
+        int total = pages.total();
+        int done = 0;
+        for (List<MessageLogManager.Entry> page = pages.next(); !page.isEmpty(); page = pages.next()) {
+            for (MessageLogManager.Entry e : page) {
+                step(done++, total, listener);
+                writeXmlEntry(s, e);
+            }
+        }
+
+        s.endTag(null, "messages");
+        s.endDocument();
+        s.flush();
+        return done;
+    }
+
+    private static void writeXmlEntry(XmlSerializer s, MessageLogManager.Entry e) throws IOException {
+        s.startTag(null, "message");
+
+        s.startTag(null, "contact");
+        s.text(e.contact == null ? "" : e.contact);
+        s.endTag(null, "contact");
+
+        s.startTag(null, "time");
+        s.text(e.getTimeIso());
+        s.endTag(null, "time");
+
+        s.startTag(null, "channel");
+        s.text(LogChannel.name(e.channel));
+        s.endTag(null, "channel");
+
+        s.startTag(null, "direction");
+        s.text(LogChannel.directionName(e.direction));
+        s.endTag(null, "direction");
+
+        s.endTag(null, "message");
+    }
+
+    private int writeCsv(EntryPages pages, Writer w, ProgressListener listener) throws IOException {
+        w.write("time,contact,channel,direction\n");
+        int total = pages.total();
+        int done = 0;
+        for (List<MessageLogManager.Entry> page = pages.next(); !page.isEmpty(); page = pages.next()) {
+            for (MessageLogManager.Entry e : page) {
+                step(done++, total, listener);
+                writeCsvEntry(w, e);
+            }
+        }
+        return done;
+    }
+
+    private static void writeCsvEntry(Writer w, MessageLogManager.Entry e) throws IOException {
+        w.write(e.getTimeIso());
+        w.write(',');
+        writeCsvField(w, e.contact == null ? "" : e.contact);
+        w.write(',');
+        w.write(LogChannel.name(e.channel));
+        w.write(',');
+        w.write(LogChannel.directionName(e.direction));
+        w.write('\n');
+    }
+
+    private int writeNdjson(EntryPages pages, Writer w, ProgressListener listener) throws IOException {
+        int total = pages.total();
+        int done = 0;
+        for (List<MessageLogManager.Entry> page = pages.next(); !page.isEmpty(); page = pages.next()) {
+            for (MessageLogManager.Entry e : page) {
+                step(done++, total, listener);
+                writeNdjsonEntry(w, e);
+            }
+        }
+        return done;
+    }
+
+    private static void writeNdjsonEntry(Writer w, MessageLogManager.Entry e) throws IOException {
+        w.write("{\"contact\":");
+        writeJsonString(w, e.contact == null ? "" : e.contact);
+        w.write(",\"time\":\"");
+        w.write(e.getTimeIso());
+        w.write("\",\"timeMillis\":");
+        w.write(Long.toString(e.timeMillis));
+        w.write(",\"channel\":\"");
+        w.write(LogChannel.name(e.channel));
+        w.write("\",\"direction\":\"");
+        w.write(LogChannel.directionName(e.direction));
+        w.write("\"}\n");
+    }
+
+    private void step(int done, int total, ProgressListener listener) throws CancelledException {
+        if (done % PROGRESS_STEP != 0) return;
+        if (cancelled.get()) throw new CancelledException();
+        if (listener != null) listener.onProgress(done, total);
+    }
+
+    private static void writeCsvField(Writer w, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            w.write(value);
+            return;
+        }
+        w.write('"');
+        w.write(value.replace("\"", "\"\""));
+        w.write('"');
+    }
+
+    private static void writeJsonString(Writer w, String value) throws IOException {
+        w.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"': w.write("\\\""); break;
+                case '\\': w.write("\\\\"); break;
+                case '\n': w.write("\\n"); break;
+                case '\r': w.write("\\r"); break;
+                case '\t': w.write("\\t"); break;
+                default:
+                    if (ch < 0x20) {
+                        w.write(String.format("\\u%04x", (int) ch));
+                    } else {
+                        w.write(ch);
+                    }
+            }
+        }
+        w.write('"');
+    }
+
+    /**
+     * The entries matching `filter`, oldest first, read from the log a page at a time,
+     * each page starting after the last entry of the one before (see
+     * {@link LogQuery.Builder#after}), so entries removed meanwhile do not shift it.
+     * Stops at the number that matched when it was created, so entries added during
+     * the export do not keep it going.
+     */
+    static final class QueryPages implements EntryPages {
+        private final Context ctx;
+        private final LogQuery filter;
+        private final int total;
+        private int done;
+        private MessageLogManager.Entry last;
+
+        QueryPages(Context ctx, LogQuery filter) {
+            this.ctx = ctx;
+            this.filter = filter;
+            this.total = MessageLogManager.query(ctx, filter.toBuilder().countOnly().build()).count;
+        }
+
+        @Override
+        public int total() {
+            return total;
+        }
+
+        @Override
+        public List<MessageLogManager.Entry> next() {
+            if (done >= total) return Collections.emptyList();
+            int wanted = Math.min(PAGE_SIZE, total - done);
+            List<MessageLogManager.Entry> page = MessageLogManager.query(ctx,
+                    filter.toBuilder().oldestFirst().after(last).limit(wanted).build()).entries;
+            // Fewer than asked for: entries were removed meanwhile, so this page is the last
+            done = page.size() < wanted ? total : done + page.size();
+            if (!page.isEmpty()) last = page.get(page.size() - 1);
+            return page;
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package com.example.callbacklater;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record journal backing {@link MessageLogManager}.
+ *
+ * Adding an entry appends a single record to the end of the file instead of
+ * rewriting the whole log, so the cost of an append no longer depends on how
+ * much history is stored. Deleting an entry appends a tombstone naming the
+ * entry's id; the space is reclaimed later by {@link #rewrite}.
+ *
+ * File: /data/data/<package>/files/message_log.journal
+ * Format:
+ *   header:  int magic ("CBLJ"), int version
+ *   records: int payloadLength, int crc32(payload), payload
+ *   payload: byte type (5 = add), long id, byte channel, byte direction,
+ *                UTF contact, long timeMillis
+ *            byte type (4 = delete), long id
+ *
+ * Older journals contain add records without a channel: type 3 with an id, and
+ * before that type 1 with a UTF ISO 8601 time, or type 2 with epoch millis. Entries
+ * without an id get ids in file order when read, continuing from the highest id
+ * seen so far. Their channel comes from the legacy "W:" contact prefix, see
+ * {@link MappedMessageLog}; the next {@link #rewrite} stores them as type 5.
+ *
+ * A record whose length or checksum does not match (for example one that was
+ * only partly written when the process died) marks the end of the valid log;
+ * it and everything after it is dropped the next time the journal is opened.
+ *
+ * Reads go through {@link MappedMessageLog}, which scans the records in place in a
+ * memory-mapped copy of the file.
+ *
+ * Segments: once the journal grows past a size set by the {@link RetentionPolicy},
+ * {@link #seal} renames it into the segment directory next to it
+ * (message_log.journal.segments/) and the next append starts a fresh journal. A sealed
+ * segment is named after the highest id it holds, so segments sort oldest first and
+ * every id in the journal is higher. Segments are never appended to, so
+ * {@link #encodeSegment} then rewrites each one in the compact format of
+ * {@link MessageLogSegment} (".segment" instead of ".journal"); segments from before
+ * that format are encoded the same way. Retention drops or archives segments whole
+ * (message_log.journal.archive/), and a delete rewrites the one segment holding the
+ * entry. The log is the segments followed by the journal.
+ *
+ * Not thread-safe; {@link MessageLogStore} serializes all access.
+ */
+public class MessageLogJournal {
+    private static final String TAG = "MessageLogJournal";
+
+    private static final int MAGIC = MappedMessageLog.MAGIC;
+    private static final int VERSION = MappedMessageLog.VERSION;
+    private static final int HEADER_SIZE = MappedMessageLog.HEADER_SIZE;
+
+    private static final byte TYPE_ADD = MappedMessageLog.TYPE_ADD_CHANNEL;
+    private static final byte TYPE_DELETE = MappedMessageLog.TYPE_DELETE;
+
+    // Sealed segments still in the journal format, and compact ones
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String COMPACT_SUFFIX = ".segment";
+
+    /**
+     * Result of reading the journal: the live entries in file order, plus what is needed
+     * to decide on compaction and to continue numbering entries.
+     */
+    public static class Contents {
+        public final List<MessageLogManager.Entry> entries;
+        public final int tombstones;
+        public final long maxId;
+
+        Contents(List<MessageLogManager.Entry> entries, int tombstones, long maxId) {
+            this.entries = entries;
+            this.tombstones = tombstones;
+            this.maxId = maxId;
+        }
+    }
+
+    private final File file;
+    private boolean recovered = false;
+
+    public MessageLogJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Whether there is a journal file or any sealed segment.
+     */
+    public boolean exists() {
+        return file.exists() || !listSegments().isEmpty();
+    }
+
+    public File getSegmentDir() {
+        return new File(file.getParentFile(), file.getName() + ".segments");
+    }
+
+    public File getArchiveDir() {
+        return new File(file.getParentFile(), file.getName() + ".archive");
+    }
+
+    /**
+     * Sealed segment files, oldest first. A journal-format segment left behind by an
+     * interrupted {@link #encodeSegment} is removed; its compact copy is complete.
+     */
+    public List<File> listSegments() {
+        List<File> segments = new ArrayList<>();
+        File[] files = getSegmentDir().listFiles();
+        if (files == null) return segments;
+        Map<Long, File> byMaxId = new HashMap<>();
+        for (File f : files) {
+            long maxId = segmentMaxId(f);
+            if (maxId <= 0) continue;
+            File other = byMaxId.get(maxId);
+            if (other != null) {
+                File stale = isCompact(f) ? other : f;
+                if (!stale.delete()) Log.w(TAG, "Failed to remove " + stale);
+                if (stale == other) byMaxId.put(maxId, f);
+            } else {
+                byMaxId.put(maxId, f);
+            }
+        }
+        segments.addAll(byMaxId.values());
+        Collections.sort(segments, (a, b) -> Long.compare(segmentMaxId(a), segmentMaxId(b)));
+        return segments;
+    }
+
+    /**
+     * Highest id `segment` was sealed with, or -1 if it is not a segment file.
+     */
+    static long segmentMaxId(File segment) {
+        String name = segment.getName();
+        String suffix = name.endsWith(COMPACT_SUFFIX) ? COMPACT_SUFFIX : SEGMENT_SUFFIX;
+        if (!name.endsWith(suffix)) return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Whether `segment` is in the compact format rather than the journal format.
+     */
+    static boolean isCompact(File segment) {
+        return segment.getName().endsWith(COMPACT_SUFFIX);
+    }
+
+    private File segmentFile(long maxId, String suffix) {
+        return new File(getSegmentDir(), String.format(Locale.US, "%019d", maxId) + suffix);
+    }
+
+    /**
+     * Move the journal file into the segment directory as a segment holding ids up to
+     * `maxId`. The next append starts a new, empty journal. Returns the segment.
+     */
+    public File seal(long maxId) throws IOException {
+        File dir = getSegmentDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File segment = segmentFile(maxId, SEGMENT_SUFFIX);
+        if (!file.renameTo(segment)) throw new IOException("Failed to seal " + file + " as " + segment);
+        recovered = false;
+        return segment;
+    }
+
+    /**
+     * Rewrite a journal-format segment in the compact format, keeping its entries and
+     * name apart from the suffix. Returns the compact segment; one that already is
+     * compact is returned as it is.
+     */
+    public File encodeSegment(File segment) throws IOException {
+        if (isCompact(segment)) return segment;
+        File compact = segmentFile(segmentMaxId(segment), COMPACT_SUFFIX);
+        MessageLogSegment.write(compact, new MessageLogJournal(segment).readFile());
+        // Until this succeeds both exist; listSegments() keeps the compact one
+        if (!segment.delete()) Log.w(TAG, "Failed to remove encoded segment " + segment);
+        return compact;
+    }
+
+    /**
+     * Store `entries`, which must have ids below any already in the log, as a new compact
+     * segment. Used to import a whole log at once. Returns the segment.
+     */
+    public File writeSegment(List<MessageLogManager.Entry> entries) throws IOException {
+        long maxId = 0;
+        for (MessageLogManager.Entry e : entries) maxId = Math.max(maxId, e.id);
+        File dir = getSegmentDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File segment = segmentFile(maxId, COMPACT_SUFFIX);
+        MessageLogSegment.write(segment, entries);
+        return segment;
+    }
+
+    /**
+     * Remove a sealed segment, moving it to the archive directory if `archive` is set.
+     */
+    public void dropSegment(File segment, boolean archive) throws IOException {
+        if (archive) {
+            File dir = getArchiveDir();
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            if (!segment.renameTo(new File(dir, segment.getName()))) {
+                throw new IOException("Failed to archive " + segment);
+            }
+        } else if (!segment.delete()) {
+            throw new IOException("Failed to delete " + segment);
+        }
+    }
+
+    /**
+     * Rewrite `segment` without the entry with `id`. Returns false if it has no such entry.
+     */
+    static boolean deleteFromSegment(File segment, long id) throws IOException {
+        MessageLogJournal journal = new MessageLogJournal(segment);
+        List<MessageLogManager.Entry> entries = journal.readFile();
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).id == id) {
+                entries.remove(i);
+                if (isCompact(segment)) MessageLogSegment.write(segment, entries);
+                else journal.rewrite(entries);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delete the journal file and all sealed segments. Archived segments are kept.
+     */
+    public void delete() throws IOException {
+        for (File segment : listSegments()) {
+            if (!segment.delete()) throw new IOException("Failed to delete " + segment);
+        }
+        if (file.exists() && !file.delete()) throw new IOException("Failed to delete " + file);
+        recovered = false;
+    }
+
+    /**
+     * Append one entry to the end of the journal. Creates the file if needed.
+     */
+    public void append(MessageLogManager.Entry entry) throws IOException {
+        appendAll(Collections.singletonList(entry));
+    }
+
+    /**
+     * Append `entries` with a single write and a single fsync, so a batch costs one
+     * commit no matter how many entries it holds. Creates the file if needed.
+     */
+    public void appendAll(List<MessageLogManager.Entry> entries) throws IOException {
+        if (entries.isEmpty()) return;
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(entries.size() * 64);
+        for (MessageLogManager.Entry e : entries) {
+            batch.write(encodeAdd(e));
+        }
+        appendRecords(batch);
+    }
+
+    /**
+     * Append a tombstone for the entry with `id`.
+     */
+    public void appendDelete(long id) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(24);
+        record.write(encodeDelete(id));
+        appendRecords(record);
+    }
+
+    /**
+     * Read every valid entry of the sealed segments and the journal, in order, with
+     * deleted entries removed. Stops at the first torn or corrupt record of each file.
+     */
+    public List<MessageLogManager.Entry> readAll() throws IOException {
+        return read().entries;
+    }
+
+    public Contents read() throws IOException {
+        List<MappedMessageLog> logs = mapAll();
+        int size = 0;
+        for (MappedMessageLog log : logs) size += log.size();
+        List<MessageLogManager.Entry> entries = new ArrayList<>(size);
+        int tombstones = 0;
+        long maxId = 0;
+        for (MappedMessageLog log : logs) {
+            for (int i = 0; i < log.size(); i++) {
+                entries.add(log.entryAt(i));
+            }
+            tombstones += log.getTombstoneCount();
+            maxId = Math.max(maxId, log.getMaxId());
+        }
+        return new Contents(entries, tombstones, maxId);
+    }
+
+    /**
+     * Memory-mapped view of the journal file (without the sealed segments) as it is
+     * now, for reading times and ids without creating an entry object per record.
+     */
+    public MappedMessageLog map() throws IOException {
+        return MappedMessageLog.open(file);
+    }
+
+    /**
+     * Mapped views of every sealed segment, oldest first, followed by the journal file.
+     */
+    public List<MappedMessageLog> mapAll() throws IOException {
+        List<MappedMessageLog> logs = new ArrayList<>();
+        for (File segment : listSegments()) {
+            logs.add(MappedMessageLog.open(segment));
+        }
+        logs.add(map());
+        return logs;
+    }
+
+    private List<MessageLogManager.Entry> readFile() throws IOException {
+        MappedMessageLog log = map();
+        List<MessageLogManager.Entry> entries = new ArrayList<>(log.size());
+        for (int i = 0; i < log.size(); i++) {
+            entries.add(log.entryAt(i));
+        }
+        return entries;
+    }
+
+    /**
+     * Replace the journal file's contents with `entries`, dropping all tombstones. Sealed
+     * segments are left alone. The new journal is written to a temporary file, synced,
+     * and renamed over the old one, so a crash at any point leaves either the old or the
+     * new journal intact.
+     */
+    public void rewrite(List<MessageLogManager.Entry> entries) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp, false);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeHeader(out);
+            for (MessageLogManager.Entry e : entries) {
+                out.write(encodeAdd(e));
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+        recovered = true;
+    }
+
+    /**
+     * Copy the sealed segments and the journal file to `target` as one journal: a header,
+     * then each file's records. Journal-format files are copied as they are with
+     * {@link FileChannel#transferTo}, so when `target` is another file the copy can be
+     * done by the kernel; compact segments are decoded and written out as add records.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        List<File> files = listSegments();
+        if (file.exists()) files.add(file);
+        if (files.isEmpty()) return 0;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+        writeHeader(new DataOutputStream(header));
+        long copied = write(header, target);
+        for (File f : files) {
+            if (isCompact(f)) {
+                List<MessageLogManager.Entry> entries = new MessageLogJournal(f).readFile();
+                ByteArrayOutputStream records = new ByteArrayOutputStream(entries.size() * 40);
+                for (MessageLogManager.Entry e : entries) {
+                    records.write(encodeAdd(e));
+                }
+                copied += write(records, target);
+            } else {
+                copied += transfer(f, HEADER_SIZE, target);
+            }
+        }
+        return copied;
+    }
+
+    private static long write(ByteArrayOutputStream bytes, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) target.write(buffer);
+        return bytes.size();
+    }
+
+    private static long transfer(File f, long from, WritableByteChannel target) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long position = Math.min(from, size);
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            return size - Math.min(from, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void appendRecords(ByteArrayOutputStream records) throws IOException {
+        recoverIfNeeded();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            records.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Make sure the file has a header and no torn tail, so appends land after the
+     * last valid record. Only done once per instance.
+     */
+    private void recoverIfNeeded() throws IOException {
+        if (recovered) return;
+
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            FileOutputStream fos = new FileOutputStream(file, false);
+            try {
+                DataOutputStream out = new DataOutputStream(fos);
+                writeHeader(out);
+                out.flush();
+            } finally {
+                fos.close();
+            }
+            recovered = true;
+            return;
+        }
+
+        long validLength = map().getValidLength();
+        if (validLength < file.length()) {
+            Log.w(TAG, "Dropping torn journal tail: " + (file.length() - validLength) + " bytes");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        recovered = true;
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    private static byte[] encodeAdd(MessageLogManager.Entry entry) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeByte(TYPE_ADD);
+        payload.writeLong(entry.id);
+        payload.writeByte(entry.channel);
+        payload.writeByte(entry.direction);
+        payload.writeUTF(entry.contact == null ? "" : entry.contact);
+        payload.writeLong(entry.timeMillis);
+        payload.flush();
+        return frame(payloadBytes.toByteArray());
+    }
+
+    private static byte[] encodeDelete(long id) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(9);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeByte(TYPE_DELETE);
+        payload.writeLong(id);
+        payload.flush();
+        return frame(payloadBytes.toByteArray());
+    }
+
+    private static byte[] frame(byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(body.length + 8);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(body.length);
+        record.writeInt((int) crc.getValue());
+        record.write(body);
+        record.flush();
+        return recordBytes.toByteArray();
+    }
+}
@@ -6,24 +6,33 @@ import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.text.SimpleDateFormat;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
- * Helper to persist message-sent records as an XML file in internal storage.
+ * Helper to persist message-sent records in internal storage.
  *
+ * Entries are kept by a {@link LogStore} chosen per build through
+ * {@code BuildConfig.LOG_STORE}:
+ *   "journal": append-only journal (see {@link MessageLogJournal})
+ *              File: /data/data/<package>/files/message_log.journal
+ *   "sqlite":  SQLite table (see {@link SqliteLogStore})
+ *              File: /data/data/<package>/databases/message_log.db
+ * When a build with the other backend finds the log in the old one, it moves it
+ * across (see {@link LogStoreMigration}). The store keeps the log within the
+ * {@link RetentionPolicy} from the settings.
+ *
+ * Older installs kept the log as an XML file, which is migrated into a compact
+ * journal segment the first time the log is accessed and then removed:
  * File: /data/data/<package>/files/message_log.xml
  * Format:
  * <messages>
@@ -32,41 +41,366 @@ import java.util.TimeZone;
  *     <time>2025-11-24T17:00:00Z</time>
  *   </message>
  * </messages>
+ *
+ * The same XML format is still one of the formats {@link MessageLogExporter} offers
+ * when sharing the log.
  */
 public class MessageLogManager {
     private static final String TAG = "MessageLogManager";
-    private static final String FILENAME = "message_log.xml";
+    private static final String LEGACY_XML_FILENAME = "message_log.xml";
+    private static final String JOURNAL_FILENAME = "message_log.journal";
+    private static final String DATABASE_NAME = "message_log.db";
+    static final String BACKEND_SQLITE = "sqlite";
+    // Settings file holding the retention policy, see SettingsActivity
+    static final String SETTINGS_PREFS = "call_prefs";
+
+    // Serializes writers so the store and the dedupe index change together.
+    // Readers never take it.
+    private static final Object WRITE_LOCK = new Object();
+
+    private static volatile LogStore store;
+    private static volatile ReplyDedupeIndex dedupeIndex;
+    private static volatile MessageLogStats stats;
 
     public static class Entry {
+        public final long id;          // stable for the life of the entry; 0 until stored
         public final String contact;
-        public final String timeIso; // ISO 8601 string in UTC
+        public final long timeMillis; // epoch millis, UTC
+        public final byte channel;    // LogChannel.SMS_REPLY, WHATSAPP_MISSED_CALL, ...
+        public final byte direction;  // LogChannel.OUTGOING or INCOMING
+
+        /**
+         * An SMS reply to `contact`.
+         */
+        public Entry(String contact, long timeMillis) {
+            this(0, contact, timeMillis);
+        }
+
+        public Entry(long id, String contact, long timeMillis) {
+            this(id, contact, timeMillis, LogChannel.SMS_REPLY, LogChannel.OUTGOING);
+        }
 
-        public Entry(String contact, String timeIso) {
+        public Entry(long id, String contact, long timeMillis, byte channel, byte direction) {
+            this.id = id;
             this.contact = contact;
-            this.timeIso = timeIso;
+            this.timeMillis = timeMillis;
+            this.channel = channel;
+            this.direction = direction;
         }
+
+        /**
+         * Entry from a log written before channels were recorded, where WhatsApp entries
+         * had their contact prefixed with "W:". Those become WhatsApp missed calls, which
+         * is how the app listed them.
+         */
+        public static Entry fromLegacy(long id, String contact, long timeMillis) {
+            if (contact != null && contact.startsWith(LogChannel.LEGACY_WHATSAPP_PREFIX)) {
+                return new Entry(id, contact.substring(LogChannel.LEGACY_WHATSAPP_PREFIX.length()), timeMillis,
+                        LogChannel.WHATSAPP_MISSED_CALL, LogChannel.INCOMING);
+            }
+            return new Entry(id, contact, timeMillis);
+        }
+
+        /**
+         * ISO 8601 string in UTC, formatted on demand for display and export.
+         */
+        public String getTimeIso() {
+            return LogTimeFormat.formatIsoUtc(timeMillis);
+        }
+    }
+
+    /**
+     * Add a log entry for an SMS sent to `contact` at `timestampMillis`.
+     */
+    public static Future<Void> addEntry(Context ctx, String contact, long timestampMillis) {
+        return addEntry(ctx, contact, timestampMillis, LogChannel.SMS_REPLY);
     }
 
     /**
-     * Add a log entry for a message sent to `contact` at `timestampMillis`.
+     * Add a log entry on `channel` (see {@link LogChannel}) for `contact` at
+     * `timestampMillis`. The direction follows from the channel.
+     *
+     * Returns without waiting for disk I/O: the entry is visible to the dedupe index
+     * immediately, and is written by a background thread. Wait on the returned future
+     * (or {@link #flush}) if the entry must be on disk before continuing.
      */
-    public static synchronized void addEntry(Context ctx, String contact, long timestampMillis) {
+    public static Future<Void> addEntry(Context ctx, String contact, long timestampMillis, byte channel) {
         if (contact == null) contact = "";
+        byte direction = LogChannel.directionOf(channel);
+
+        LogStore s = getStore(ctx);
+        ReplyDedupeIndex index = getDedupeIndex(ctx);
+        MessageLogStats totals = getStats(ctx);
+        synchronized (WRITE_LOCK) {
+            Future<Void> committed = s.add(contact, timestampMillis, channel, direction);
+            index.record(contact, channel, timestampMillis);
+            totals.record(contact, channel, timestampMillis);
+            return committed;
+        }
+    }
+
+    /**
+     * Keep the log within `policy` from now on. Entries beyond it are removed in the
+     * background; the caller saves the policy to the settings.
+     */
+    public static void setRetentionPolicy(Context ctx, RetentionPolicy policy) {
+        getStore(ctx).setRetentionPolicy(policy);
+    }
+
+    /**
+     * Read numbers without a country code as numbers from `regionCode` from now on (see
+     * {@link PhoneNumberNormalizer}). Every key derived from a contact changes with it, so
+     * the store, the dedupe index and the statistics are re-keyed before this returns;
+     * the caller saves the setting.
+     */
+    public static void setDefaultCountry(Context ctx, String regionCode) {
+        if (PhoneNumberNormalizer.getDefault().getRegion().equalsIgnoreCase(regionCode.trim())) return;
+        LogStore s = getStore(ctx);
+        ReplyDedupeIndex index = getDedupeIndex(ctx);
+        MessageLogStats totals = getStats(ctx);
+        Future<Void> rekeyed;
+        synchronized (WRITE_LOCK) {
+            PhoneNumberNormalizer.setDefault(regionCode);
+            // Rebuilds the dedupe index and statistics through the reload listener
+            rekeyed = s.rekeyContacts();
+        }
+        try {
+            rekeyed.get();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to re-key the message log; rebuilding indexes from it", e);
+            List<Entry> all = readAll(ctx);
+            index.rebuild(all);
+            totals.rebuild(all);
+        }
+    }
+
+    /**
+     * Future that completes once every entry added so far has been written to disk. The
+     * statistics are written out before this returns.
+     */
+    public static Future<Void> flush(Context ctx) {
+        Future<Void> flushed = getStore(ctx).flush();
+        MessageLogStats totals = stats;
+        if (totals != null) totals.persist();
+        return flushed;
+    }
+
+    /**
+     * Run `query` against the log. An existence check on one number and channel family
+     * since some time, the shape of every "did we already reply?" check, such as
+     *
+     *   LogQuery.builder().contactEquals(number).channel(LogChannel.SMS_REPLY)
+     *           .since(t).limit(1).countOnly().build()
+     *
+     * is answered from the dedupe index without touching the store.
+     */
+    public static LogQuery.Result query(Context ctx, LogQuery query) {
+        if (isDedupeLookup(query)) {
+            long latest = getDedupeIndex(ctx).lastTime(query.contact, firstChannel(query.channels));
+            boolean found = latest >= 0 && (query.startTimeMillis == null || latest >= query.startTimeMillis);
+            return LogQuery.Result.ofCount(found ? 1 : 0, dedupePlan(query));
+        }
+        return getStore(ctx).query(query);
+    }
+
+    /**
+     * The plan {@link #query} would use for `query`, without running it.
+     */
+    public static LogQuery.Plan explain(Context ctx, LogQuery query) {
+        return isDedupeLookup(query) ? dedupePlan(query) : getStore(ctx).explain(query);
+    }
+
+    /**
+     * Whether `query` only asks if one number has any entry in one channel family (see
+     * {@link LogChannel#keyPrefix}) since a time, which the dedupe index knows.
+     */
+    private static boolean isDedupeLookup(LogQuery query) {
+        if (!query.countOnly || !query.exactContact || !query.hasContact()) return false;
+        if (query.endTimeMillis != null || query.afterTimeMillis != null || query.offset != 0 || query.limit != 1) {
+            return false;
+        }
+        if (query.channels == LogChannel.ALL) return false;
+        String prefix = LogChannel.keyPrefix(firstChannel(query.channels));
+        int family = 0;
+        for (byte c = 0; c < LogChannel.COUNT; c++) {
+            if (prefix.equals(LogChannel.keyPrefix(c))) family |= LogChannel.mask(c);
+        }
+        return query.channels == family;
+    }
+
+    private static byte firstChannel(int channels) {
+        for (byte c = 0; c < LogChannel.COUNT; c++) {
+            if (LogChannel.matches(channels, c)) return c;
+        }
+        return LogChannel.SMS_REPLY;
+    }
+
+    private static LogQuery.Plan dedupePlan(LogQuery query) {
+        return new LogQuery.Plan(LogQuery.Access.DEDUPE_INDEX, 1,
+                "latest time for " + ReplyDedupeIndex.keyFor(query.contact, firstChannel(query.channels)));
+    }
+
+    /**
+     * Read all entries from the log. Returns empty list if none or on error.
+     */
+    public static List<Entry> readAll(Context ctx) {
+        List<Entry> all = new ArrayList<>();
+        getStore(ctx).forEach(all::add);
+        return all;
+    }
+
+    /**
+     * Copy the store's backing file to `target` as a backup, after committing anything
+     * queued. Returns the number of entries copied.
+     */
+    static int copyRawLog(Context ctx, WritableByteChannel target) throws IOException {
+        return getStore(ctx).copyTo(target);
+    }
+
+    /**
+     * Per-contact, per-channel, per-hour and per-day totals, kept up to date on every add
+     * and delete so they can be shown without reading the log.
+     */
+    public static MessageLogStats.Summary getStatistics(Context ctx) {
+        return getStats(ctx).summary();
+    }
+
+    static MessageLogStats getStats(Context ctx) {
+        MessageLogStats s = stats;
+        if (s != null) return s;
+
+        synchronized (WRITE_LOCK) {
+            if (stats == null) {
+                s = new MessageLogStats(ctx);
+                // A count that does not match the log's lost changes with the process
+                if (!s.isBuilt() || s.total() != getStore(ctx).count()) s.rebuild(readAll(ctx));
+                stats = s;
+            }
+            return stats;
+        }
+    }
+
+    private static ReplyDedupeIndex getDedupeIndex(Context ctx) {
+        ReplyDedupeIndex index = dedupeIndex;
+        if (index != null) return index;
+
+        synchronized (WRITE_LOCK) {
+            if (dedupeIndex == null) {
+                index = new ReplyDedupeIndex(ctx);
+                if (!index.isBuilt()) index.rebuild(readAll(ctx));
+                dedupeIndex = index;
+            }
+            return dedupeIndex;
+        }
+    }
+
+    private static LogStore getStore(Context ctx) {
+        LogStore s = store;
+        if (s != null) return s;
+
+        synchronized (WRITE_LOCK) {
+            if (store == null) {
+                s = openStore(ctx, BuildConfig.LOG_STORE);
+                // The log changed underneath us, so the dedupe index may be stale too.
+                s.setReloadListener(entries -> {
+                    ReplyDedupeIndex index = dedupeIndex;
+                    if (index != null) index.rebuild(entries);
+                    MessageLogStats totals = stats;
+                    if (totals != null) totals.rebuild(entries);
+                });
+                // Runs on the store's background thread, possibly under its I/O lock, so
+                // it must not take WRITE_LOCK: deleteEntry holds that while deleting.
+                LogStore opened = s;
+                s.setTrimListener(removed -> {
+                    ReplyDedupeIndex index = dedupeIndex;
+                    if (index != null) {
+                        Set<String> keys = new HashSet<>();
+                        for (Entry e : removed) {
+                            if (keys.add(ReplyDedupeIndex.keyFor(e.contact, e.channel))) {
+                                index.removed(e.contact, e.channel, opened.latestTimeFor(e.contact, e.channel));
+                            }
+                        }
+                    }
+                    MessageLogStats totals = stats;
+                    if (totals != null) totals.removedAll(removed);
+                });
+                s.setRetentionPolicy(RetentionPolicy.load(
+                        ctx.getSharedPreferences(SETTINGS_PREFS, Context.MODE_PRIVATE)));
+                store = s;
+            }
+            return store;
+        }
+    }
 
-        List<Entry> entries = readAll(ctx);
-        String iso = toIsoUtc(timestampMillis);
-        entries.add(new Entry(contact, iso));
+    /**
+     * Open the store for `backend`, first moving the log over from the other backend if
+     * a previous build left it there. If that fails, the old store is used for now and
+     * the move is retried on the next launch.
+     */
+    private static LogStore openStore(Context ctx, String backend) {
+        File dir = ctx.getFilesDir();
+        MessageLogJournal journal = new MessageLogJournal(new File(dir, JOURNAL_FILENAME));
+        migrateLegacyXml(new File(dir, LEGACY_XML_FILENAME), journal);
+
+        if (BACKEND_SQLITE.equals(backend)) {
+            if (journal.exists()) {
+                // Anything in the database is from an earlier attempt that did not finish
+                ctx.deleteDatabase(DATABASE_NAME);
+                SqliteLogStore sqlite = new SqliteLogStore(ctx, DATABASE_NAME);
+                try {
+                    LogStoreMigration.journalToSqlite(journal, sqlite);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Failed to move message log to SQLite", e);
+                    sqlite.close();
+                    return new JournalLogStore(journal);
+                }
+                try {
+                    journal.delete();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to remove migrated journal", e);
+                }
+                return sqlite;
+            }
+            return new SqliteLogStore(ctx, DATABASE_NAME);
+        }
 
-        writeAll(ctx, entries);
+        if (ctx.getDatabasePath(DATABASE_NAME).exists()) {
+            SqliteLogStore sqlite = new SqliteLogStore(ctx, DATABASE_NAME);
+            try {
+                LogStoreMigration.sqliteToJournal(sqlite, journal);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to move message log to the journal", e);
+                return sqlite;
+            }
+            sqlite.close();
+            ctx.deleteDatabase(DATABASE_NAME);
+        }
+        return new JournalLogStore(journal);
     }
 
     /**
-     * Read all entries from the XML file. Returns empty list if none or on error.
+     * One-time import of the old XML log, straight into a sealed segment in the compact
+     * format. The XML file is only removed after the segment has been written and synced.
      */
-    public static synchronized List<Entry> readAll(Context ctx) {
-        File f = new File(ctx.getFilesDir(), FILENAME);
-        if (!f.exists()) return new ArrayList<>();
+    private static void migrateLegacyXml(File xml, MessageLogJournal target) {
+        if (!xml.exists()) return;
+        if (target.exists()) {
+            // Journal already written by an earlier, interrupted migration.
+            if (!xml.delete()) Log.w(TAG, "Failed to remove migrated XML log");
+            return;
+        }
+
+        try {
+            List<Entry> entries = readXml(xml);
+            if (!entries.isEmpty()) target.writeSegment(entries);
+            if (!xml.delete()) Log.w(TAG, "Failed to remove migrated XML log");
+            Log.i(TAG, "Migrated " + entries.size() + " entries from XML log");
+        } catch (XmlPullParserException | IOException e) {
+            Log.w(TAG, "Failed to migrate XML message log", e);
+        }
+    }
 
+    static List<Entry> readXml(File f) throws XmlPullParserException, IOException {
         InputStream in = null;
         List<Entry> out = new ArrayList<>();
         try {
@@ -78,31 +412,38 @@ public class MessageLogManager {
             String curTag = null;
             String contact = null;
             String time = null;
+            String channel = null;
+            String direction = null;
 
             while (event != XmlPullParser.END_DOCUMENT) {
                 if (event == XmlPullParser.START_TAG) {
                     curTag = parser.getName();
                     if ("message".equals(curTag)) {
-                        contact = null; time = null;
+                        contact = null; time = null; channel = null; direction = null;
                     }
                 } else if (event == XmlPullParser.TEXT) {
                     String text = parser.getText();
                     if ("contact".equals(curTag)) contact = text;
                     else if ("time".equals(curTag)) time = text;
+                    else if ("channel".equals(curTag)) channel = text;
+                    else if ("direction".equals(curTag)) direction = text;
                 } else if (event == XmlPullParser.END_TAG) {
                     String name = parser.getName();
                     if ("message".equals(name)) {
                         if (contact == null) contact = "";
-                        if (time == null) time = "";
-                        out.add(new Entry(contact, time));
+                        long id = out.size() + 1;
+                        if (channel == null) {
+                            // Written before channels were recorded
+                            out.add(Entry.fromLegacy(id, contact, parseIsoToMillis(time)));
+                        } else {
+                            out.add(new Entry(id, contact, parseIsoToMillis(time), LogChannel.forName(channel),
+                                    LogChannel.directionForName(direction)));
+                        }
                     }
                     curTag = null;
                 }
                 event = parser.next();
             }
-        } catch (XmlPullParserException | IOException e) {
-            Log.w(TAG, "Failed to read message log", e);
-            return new ArrayList<>();
         } finally {
             if (in != null) try { in.close(); } catch (IOException ignored) {}
         }
@@ -110,95 +451,49 @@ public class MessageLogManager {
         return out;
     }
 
-    private static synchronized void writeAll(Context ctx, List<Entry> entries) {
-        File f = new File(ctx.getFilesDir(), FILENAME);
-        OutputStream out = null;
-        try {
-            out = new FileOutputStream(f, false);
-            XmlSerializer s = Xml.newSerializer();
-            s.setOutput(out, "utf-8");
-            s.startDocument("utf-8", true);
-            s.startTag(null, "messages");
-
-            for (Entry e : entries) {
-                s.startTag(null, "message");
-
-                s.startTag(null, "contact");
-                s.text(e.contact == null ? "" : e.contact);
-                s.endTag(null, "contact");
-
-                s.startTag(null, "time");
-                s.text(e.timeIso == null ? "" : e.timeIso);
-                s.endTag(null, "time");
-
-                s.endTag(null, "message");
-            }
-
-            s.endTag(null, "messages");
-            s.endDocument();
-            s.flush();
-        } catch (IOException ex) {
-            Log.w(TAG, "Failed to write message log", ex);
-        } finally {
-            if (out != null) try { out.close(); } catch (IOException ignored) {}
-        }
-    }
-
-    private static String toIsoUtc(long millis) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return sdf.format(new Date(millis));
+    /**
+     * Filter entries by optional contact substring and optional date range. Use null to
+     * skip each filter. Results are in time order.
+     *
+     * The contact filter is case insensitive; a query of only digits and phone number
+     * punctuation matches the digits of each contact, ignoring how it was formatted.
+     */
+    public static List<Entry> filterEntries(Context ctx, String contactSubstr, Long startTimeMillis, Long endTimeMillis) {
+        return filterEntries(ctx, contactSubstr, LogChannel.ALL, startTimeMillis, endTimeMillis);
     }
 
     /**
-     * Filter entries by optional contact substring (case insensitive) and optional date range.
-     * Use null to skip each filter.
+     * Like {@link #filterEntries(Context, String, Long, Long)}, limited to the channels in
+     * `channels` (a {@link LogChannel#mask}, or {@link LogChannel#ALL}).
      */
-    public static synchronized List<Entry> filterEntries(Context ctx, String contactSubstr, Long startTimeMillis, Long endTimeMillis) {
-        List<Entry> all = readAll(ctx);
-        List<Entry> filtered = new ArrayList<>();
-        for (Entry e : all) {
-            boolean matches = true;
-            if (contactSubstr != null && !contactSubstr.isEmpty()) {
-                if (e.contact == null || !e.contact.toLowerCase().contains(contactSubstr.toLowerCase())) {
-                    matches = false;
-                }
-            }
-            if (startTimeMillis != null) {
-                long entryTime = parseIsoToMillis(e.timeIso);
-                if (entryTime < startTimeMillis) matches = false;
-            }
-            if (endTimeMillis != null) {
-                long entryTime = parseIsoToMillis(e.timeIso);
-                if (entryTime > endTimeMillis) matches = false;
-            }
-            if (matches) filtered.add(e);
-        }
-        return filtered;
+    public static List<Entry> filterEntries(Context ctx, String contactSubstr, int channels,
+                                            Long startTimeMillis, Long endTimeMillis) {
+        return query(ctx, LogQuery.builder().contactContains(contactSubstr).channels(channels)
+                .since(startTimeMillis).until(endTimeMillis).build()).entries;
     }
 
     /**
-     * Delete an entry from the log matching both contact and timeIso.
-     * Returns true if an entry was deleted.
+     * Delete `toDelete` from the log. Only that entry is removed, even if another entry
+     * has the same contact and time. Returns true if an entry was deleted.
      */
-    public static synchronized boolean deleteEntry(Context ctx, Entry toDelete) {
-        List<Entry> entries = readAll(ctx);
-        boolean removed = entries.removeIf(e -> e.contact.equals(toDelete.contact) && e.timeIso.equals(toDelete.timeIso));
-        if (removed) {
-            writeAll(ctx, entries);
+    public static boolean deleteEntry(Context ctx, Entry toDelete) {
+        LogStore s = getStore(ctx);
+        ReplyDedupeIndex index = getDedupeIndex(ctx);
+        MessageLogStats totals = getStats(ctx);
+        synchronized (WRITE_LOCK) {
+            try {
+                if (!s.delete(toDelete)) return false;
+                index.removed(toDelete.contact, toDelete.channel, s.latestTimeFor(toDelete.contact, toDelete.channel));
+                totals.removed(toDelete.contact, toDelete.channel, toDelete.timeMillis);
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write message log", e);
+                return false;
+            }
         }
-        return removed;
     }
 
     public static long parseIsoToMillis(String iso) {
-        try {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-            Date d = sdf.parse(iso);
-            if (d != null) return d.getTime();
-            else return 0L;
-        } catch (Exception ex) {
-            return 0L;
-        }
+        return LogTimeFormat.parseIsoUtc(iso);
     }
 }
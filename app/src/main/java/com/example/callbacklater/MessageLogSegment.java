@@ -0,0 +1,351 @@
+package com.example.callbacklater;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact encoding for sealed segments of the {@link MessageLogJournal}.
+ *
+ * A journal record spends about 40 bytes on an entry: framing, a fixed-width id and
+ * time, and the contact spelled out in full. A sealed segment never changes, so it is
+ * worth encoding once, more tightly:
+ *
+ * Format:
+ *   header:  int magic ("CBLS"), int version
+ *   blocks:  int payloadLength, int crc32(payload), payload
+ *   payload: byte type (1 = contacts), varint firstIndex, varint count,
+ *                count x (varint length, UTF-8 bytes)
+ *            byte type (2 = entries), varint count,
+ *                count x (zigzag varint id delta, zigzag varint time delta,
+ *                         varint contact index, byte flags)
+ *
+ * The contacts blocks come first and together are the segment's dictionary: each
+ * distinct contact once, in order of first use. Ids and times are deltas from the
+ * previous row of the same block, so consecutive entries usually take a byte for the
+ * id and two or three for the time. Flags hold the channel and direction, as in
+ * {@link MessageLogColumns}. A typical entry takes 5 to 6 bytes.
+ *
+ * Every block carries its own checksum and can be decoded on its own. A block that
+ * fails its checksum is skipped, losing at most {@link #BLOCK_ENTRIES} entries (or the
+ * rows whose contact was in a lost contacts block) rather than the rest of the segment.
+ *
+ * Segments are written to a temporary file, synced and renamed into place, and read
+ * through {@link MappedMessageLog#open}, which recognizes the header.
+ */
+public final class MessageLogSegment {
+    private static final String TAG = "MessageLogSegment";
+
+    static final int MAGIC = 0x43424C53; // "CBLS"
+    static final int VERSION = 1;
+
+    static final byte TYPE_CONTACTS = 1;
+    static final byte TYPE_ENTRIES = 2;
+
+    // Rows per block: bounds what one bad block can take with it
+    static final int BLOCK_ENTRIES = 1024;
+    static final int BLOCK_CONTACTS = 256;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    private MessageLogSegment() {
+    }
+
+    /**
+     * Write `entries` to `target` in the compact format, replacing it atomically.
+     */
+    static void write(File target, List<MessageLogManager.Entry> entries) throws IOException {
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp, false);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            encode(entries, out);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + target);
+        }
+    }
+
+    private static void encode(List<MessageLogManager.Entry> entries, DataOutputStream out) throws IOException {
+        Map<String, Integer> index = new HashMap<>();
+        List<String> contacts = new ArrayList<>();
+        int[] contactIds = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            String contact = entries.get(i).contact == null ? "" : entries.get(i).contact;
+            Integer id = index.get(contact);
+            if (id == null) {
+                id = contacts.size();
+                index.put(contact, id);
+                contacts.add(contact);
+            }
+            contactIds[i] = id;
+        }
+
+        BlockWriter block = new BlockWriter();
+        for (int first = 0; first < contacts.size(); first += BLOCK_CONTACTS) {
+            int count = Math.min(BLOCK_CONTACTS, contacts.size() - first);
+            block.start(TYPE_CONTACTS);
+            block.writeVarint(first);
+            block.writeVarint(count);
+            for (int i = first; i < first + count; i++) {
+                byte[] bytes = contacts.get(i).getBytes(StandardCharsets.UTF_8);
+                block.writeVarint(bytes.length);
+                block.write(bytes, 0, bytes.length);
+            }
+            block.finish(out);
+        }
+        for (int first = 0; first < entries.size(); first += BLOCK_ENTRIES) {
+            int count = Math.min(BLOCK_ENTRIES, entries.size() - first);
+            block.start(TYPE_ENTRIES);
+            block.writeVarint(count);
+            long prevId = 0;
+            long prevTime = 0;
+            for (int i = first; i < first + count; i++) {
+                MessageLogManager.Entry e = entries.get(i);
+                block.writeVarint(zigzag(e.id - prevId));
+                block.writeVarint(zigzag(e.timeMillis - prevTime));
+                block.writeVarint(contactIds[i]);
+                block.write((e.channel & MappedMessageLog.CHANNEL_MASK)
+                        | (e.direction == LogChannel.INCOMING ? MappedMessageLog.INCOMING : 0));
+                prevId = e.id;
+                prevTime = e.timeMillis;
+            }
+            block.finish(out);
+        }
+    }
+
+    /**
+     * Decode a mapped segment file. `buf` starts with the header.
+     */
+    static MappedMessageLog decode(ByteBuffer buf, File file) throws IOException {
+        if (buf.getInt(4) != VERSION) throw new IOException("Unsupported segment version in " + file);
+        int limit = buf.limit();
+        // Entries take at least 4 bytes, but are usually 5 or 6
+        int capacity = Math.max(16, Math.min(limit / 5, 1 << 16));
+        long[] ids = new long[capacity];
+        long[] times = new long[capacity];
+        int[] contactIds = new int[capacity];
+        byte[] flags = new byte[capacity];
+        String[] contacts = new String[16];
+        int rows = 0;
+        int corrupt = 0;
+        long maxId = 0;
+
+        CRC32 crc = new CRC32();
+        Reader in = new Reader();
+        int offset = MappedMessageLog.HEADER_SIZE;
+        while (offset + 8 <= limit) {
+            int length = buf.getInt(offset);
+            if (length <= 0 || length > MAX_BLOCK_SIZE || offset + 8 + length > limit) {
+                // Without a length the next block cannot be found
+                corrupt++;
+                break;
+            }
+            int checksum = buf.getInt(offset + 4);
+            in.load(buf, offset + 8, length);
+            offset += 8 + length;
+            crc.reset();
+            crc.update(in.bytes, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                corrupt++;
+                continue;
+            }
+
+            int type = in.readByte();
+            if (type == TYPE_CONTACTS) {
+                int first = in.readVarint();
+                int count = in.readVarint();
+                // Every contact takes at least a byte, so neither can exceed the file size
+                if (first < 0 || count < 0 || count > length || first > limit) {
+                    corrupt++;
+                    continue;
+                }
+                if (first + count > contacts.length) {
+                    contacts = Arrays.copyOf(contacts, Math.max(first + count, contacts.length * 2));
+                }
+                for (int i = first; i < first + count && in.ok(); i++) {
+                    contacts[i] = in.readString(in.readVarint());
+                }
+                if (!in.ok()) corrupt++;
+            } else if (type == TYPE_ENTRIES) {
+                int count = in.readVarint();
+                if (count < 0 || count > length) {
+                    corrupt++;
+                    continue;
+                }
+                if (rows + count > ids.length) {
+                    int grown = Math.max(rows + count, ids.length * 2);
+                    ids = Arrays.copyOf(ids, grown);
+                    times = Arrays.copyOf(times, grown);
+                    contactIds = Arrays.copyOf(contactIds, grown);
+                    flags = Arrays.copyOf(flags, grown);
+                }
+                long id = 0;
+                long time = 0;
+                int start = rows;
+                for (int i = 0; i < count; i++) {
+                    id += unzigzag(in.readVarlong());
+                    time += unzigzag(in.readVarlong());
+                    ids[rows] = id;
+                    times[rows] = time;
+                    contactIds[rows] = in.readVarint();
+                    int rowFlags = in.readByte();
+                    if ((rowFlags & MappedMessageLog.CHANNEL_MASK) >= LogChannel.COUNT) {
+                        rowFlags = (rowFlags & MappedMessageLog.INCOMING) | LogChannel.SMS_REPLY;
+                    }
+                    flags[rows] = (byte) rowFlags;
+                    rows++;
+                }
+                if (!in.ok()) {
+                    // Passed the checksum but does not parse: a writer bug, drop the block
+                    rows = start;
+                    corrupt++;
+                    continue;
+                }
+                for (int i = start; i < rows; i++) maxId = Math.max(maxId, ids[i]);
+            }
+            // Unknown block types come from a newer version; skip them
+        }
+
+        // Rows whose contact was in a lost block cannot be shown; drop them
+        int n = 0;
+        for (int i = 0; i < rows; i++) {
+            int c = contactIds[i];
+            if (c < 0 || c >= contacts.length || contacts[c] == null) continue;
+            ids[n] = ids[i];
+            times[n] = times[i];
+            contactIds[n] = c;
+            flags[n] = flags[i];
+            n++;
+        }
+        if (corrupt > 0 || n < rows) {
+            Log.w(TAG, file + ": skipped " + corrupt + " corrupt blocks, " + (rows - n) + " entries lost");
+        }
+        return MappedMessageLog.ofSegment(ids, times, contactIds, flags, n, contacts, maxId, offset);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Collects one block's payload, then frames it with its length and checksum.
+     */
+    private static final class BlockWriter extends ByteArrayOutputStream {
+        private final CRC32 crc = new CRC32();
+
+        BlockWriter() {
+            super(16 * 1024);
+        }
+
+        void start(byte type) {
+            reset();
+            write(type);
+        }
+
+        void writeVarint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        void finish(DataOutputStream out) throws IOException {
+            crc.reset();
+            crc.update(buf, 0, count);
+            out.writeInt(count);
+            out.writeInt((int) crc.getValue());
+            out.write(buf, 0, count);
+        }
+    }
+
+    /**
+     * Reads one block's payload, copied out of the mapped file. Reading past the end
+     * does not throw; it marks the block as malformed, see {@link #ok}.
+     */
+    private static final class Reader {
+        byte[] bytes = new byte[16 * 1024];
+        private int pos;
+        private int end;
+        private boolean overrun;
+
+        void load(ByteBuffer buf, int offset, int length) {
+            if (bytes.length < length) bytes = new byte[Math.max(length, bytes.length * 2)];
+            buf.position(offset);
+            buf.get(bytes, 0, length);
+            pos = 0;
+            end = length;
+            overrun = false;
+        }
+
+        boolean ok() {
+            return !overrun;
+        }
+
+        int readByte() {
+            if (pos >= end) {
+                overrun = true;
+                return 0;
+            }
+            return bytes[pos++] & 0xFF;
+        }
+
+        long readVarlong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            overrun = true;
+            return 0;
+        }
+
+        int readVarint() {
+            long v = readVarlong();
+            if (v > Integer.MAX_VALUE) {
+                overrun = true;
+                return 0;
+            }
+            return (int) v;
+        }
+
+        String readString(int length) {
+            if (length > end - pos) {
+                overrun = true;
+                return "";
+            }
+            int start = pos;
+            pos += length;
+            // Phone numbers are ASCII, which needs no decoding
+            for (int i = start; i < pos; i++) {
+                if (bytes[i] < 0) return new String(bytes, start, length, StandardCharsets.UTF_8);
+            }
+            return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
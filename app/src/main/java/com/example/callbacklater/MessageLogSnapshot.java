@@ -0,0 +1,182 @@
+package com.example.callbacklater;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Immutable view of the message log at one point in time.
+ *
+ * Readers take the current snapshot and traverse it without any locking. A writer
+ * never modifies a published snapshot; it derives a new one and publishes that.
+ * Appends share the column arrays with the previous snapshot and only fill slots past
+ * its size, so appending stays O(1) amortized instead of copying the whole log.
+ *
+ * Rows are stored column-wise, see {@link MessageLogColumns}. Loops over the log should
+ * read them through {@link #getColumns()}; {@link #get} and {@link #asList} create an
+ * Entry object per call.
+ *
+ * Besides the time index over all rows, each {@link LogChannel} has its own time index
+ * over just its rows, so a channel filter goes straight to the matching rows.
+ *
+ * Also records the length and modification time of the journal it reflects, so
+ * stale snapshots can be detected when the file changes outside this process.
+ */
+public final class MessageLogSnapshot {
+    static final MessageLogSnapshot EMPTY = new MessageLogSnapshot(
+            MessageLogColumns.EMPTY, MessageLogTimeIndex.EMPTY, emptyChannelIndexes(), -1, -1);
+
+    private final MessageLogColumns columns;
+    private final MessageLogTimeIndex timeIndex;
+    private final MessageLogTimeIndex[] channelIndexes;
+    private final long fileLength;
+    private final long fileModified;
+
+    private MessageLogSnapshot(MessageLogColumns columns, MessageLogTimeIndex timeIndex,
+                               MessageLogTimeIndex[] channelIndexes, long fileLength, long fileModified) {
+        this.columns = columns;
+        this.timeIndex = timeIndex;
+        this.channelIndexes = channelIndexes;
+        this.fileLength = fileLength;
+        this.fileModified = fileModified;
+    }
+
+    /**
+     * Snapshot of `entries`, which are the current contents of `file`.
+     */
+    static MessageLogSnapshot of(List<MessageLogManager.Entry> entries, File file) {
+        return of(MessageLogColumns.of(entries), file);
+    }
+
+    /**
+     * Snapshot of `columns`, which are the current contents of `file`.
+     */
+    static MessageLogSnapshot of(MessageLogColumns columns, File file) {
+        return new MessageLogSnapshot(columns, MessageLogTimeIndex.build(columns.times(), columns.size()),
+                buildChannelIndexes(columns), file.length(), file.lastModified());
+    }
+
+    private static MessageLogTimeIndex[] buildChannelIndexes(MessageLogColumns columns) {
+        int[] counts = new int[LogChannel.COUNT];
+        for (int i = 0; i < columns.size(); i++) counts[columns.channelAt(i)]++;
+
+        int[][] positions = new int[LogChannel.COUNT][];
+        for (int c = 0; c < LogChannel.COUNT; c++) positions[c] = new int[Math.max(16, counts[c])];
+        int[] filled = new int[LogChannel.COUNT];
+        for (int i = 0; i < columns.size(); i++) {
+            byte c = columns.channelAt(i);
+            positions[c][filled[c]++] = i;
+        }
+
+        MessageLogTimeIndex[] indexes = new MessageLogTimeIndex[LogChannel.COUNT];
+        for (int c = 0; c < LogChannel.COUNT; c++) {
+            indexes[c] = MessageLogTimeIndex.build(columns.times(), positions[c], counts[c]);
+        }
+        return indexes;
+    }
+
+    private static MessageLogTimeIndex[] emptyChannelIndexes() {
+        MessageLogTimeIndex[] indexes = new MessageLogTimeIndex[LogChannel.COUNT];
+        for (int c = 0; c < LogChannel.COUNT; c++) indexes[c] = MessageLogTimeIndex.EMPTY;
+        return indexes;
+    }
+
+    /**
+     * Snapshot with `entry` appended. The recorded file state is unchanged: the entry
+     * may not have reached the file yet, see {@link #withFileState}.
+     *
+     * Must only be called on the newest snapshot, with the write lock held.
+     */
+    MessageLogSnapshot withAppended(MessageLogManager.Entry entry) {
+        int position = columns.size();
+        MessageLogTimeIndex[] byChannel = channelIndexes.clone();
+        byChannel[entry.channel] = byChannel[entry.channel].withAdded(entry.timeMillis, position);
+        return new MessageLogSnapshot(columns.withAppended(entry), timeIndex.withAdded(entry.timeMillis, position),
+                byChannel, fileLength, fileModified);
+    }
+
+    /**
+     * Snapshot without the row at `position`, recording `file`'s current state. Used
+     * after this process appended the row's tombstone.
+     */
+    MessageLogSnapshot withRemoved(int position, File file) {
+        return of(columns.without(position), file);
+    }
+
+    /**
+     * Snapshot without its first `count` rows, recording `file`'s current state. Used
+     * after the sealed segments holding them were dropped.
+     */
+    MessageLogSnapshot withoutFirst(int count, File file) {
+        return of(columns.withoutFirst(count), file);
+    }
+
+    /**
+     * Position of the row with id `id`, or -1.
+     */
+    int positionOf(long id) {
+        return columns.positionOf(id);
+    }
+
+    /**
+     * Same contents, recording `file`'s current length and modification time. Used after
+     * this process wrote to the file itself.
+     */
+    MessageLogSnapshot withFileState(File file) {
+        return new MessageLogSnapshot(columns, timeIndex, channelIndexes, file.length(), file.lastModified());
+    }
+
+    /**
+     * Whether this snapshot reflects `file` as it is on disk right now.
+     */
+    boolean matches(File file) {
+        return file.length() == fileLength && file.lastModified() == fileModified;
+    }
+
+    public int size() {
+        return columns.size();
+    }
+
+    /**
+     * The row at `i` as a new Entry object.
+     */
+    public MessageLogManager.Entry get(int i) {
+        return columns.entryAt(i);
+    }
+
+    /**
+     * Read-only, allocation-free view of the rows.
+     */
+    public MessageLogColumns getColumns() {
+        return columns;
+    }
+
+    public MessageLogTimeIndex getTimeIndex() {
+        return timeIndex;
+    }
+
+    /**
+     * Time index over just the rows on `channel`; positions refer to the whole snapshot.
+     */
+    public MessageLogTimeIndex getChannelIndex(byte channel) {
+        return channelIndexes[channel];
+    }
+
+    /**
+     * Read-only list view of the snapshot, in log order. Does not copy the log, but
+     * creates an Entry for each element read.
+     */
+    public List<MessageLogManager.Entry> asList() {
+        return new AbstractList<MessageLogManager.Entry>() {
+            @Override
+            public MessageLogManager.Entry get(int index) {
+                return MessageLogSnapshot.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return columns.size();
+            }
+        };
+    }
+}
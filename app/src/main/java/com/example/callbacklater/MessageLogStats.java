@@ -0,0 +1,290 @@
+package com.example.callbacklater;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running totals over the message log, so the statistics screen never has to scan it.
+ *
+ * Tracks entries per contact (by {@link ReplyDedupeIndex#keyFor(String)} key, whatever
+ * the channel), per {@link LogChannel}, per hour of the day and per calendar day, in the
+ * device time zone. Days more than {@link #DAYS_KEPT} before the latest one are rolled
+ * up into a single count. {@link MessageLogManager} updates the totals on every add and
+ * delete.
+ *
+ * The totals are mirrored into their own SharedPreferences file, which is written as a
+ * whole, so changes are batched and written at most every {@link #PERSIST_DELAY_MS}
+ * (or on {@link #persist}). The file is rebuilt from the log when it is missing, its
+ * total does not match the log's (changes lost with the process), or the time zone or
+ * the default country changed.
+ */
+public class MessageLogStats {
+    // Days counted one by one, up to and including the latest day with an entry
+    static final int DAYS_KEPT = 90;
+    // How long changes wait to be written out, so a burst of entries costs one write
+    static final long PERSIST_DELAY_MS = 2000;
+
+    private static final String PREFS_NAME = "message_log_stats";
+    private static final String KEY_BUILT = "__built";
+    private static final String KEY_ZONE = "__zone";
+    // Key format the contact totals were built with, see PhoneNumberNormalizer#keyFormat
+    private static final String KEY_FORMAT = "__key_format";
+    // Bumped when the layout of this file changes, so older files are rebuilt
+    private static final String KEY_VERSION = "__version";
+    private static final int VERSION = 2;
+    private static final String KEY_FIRST_DAY = "__first_day";
+    private static final String KEY_EARLIER_DAYS = "__earlier_days";
+    private static final String CONTACT = "contact:";
+    private static final String HOUR = "hour:";
+    private static final String DAY = "day:";
+    private static final String CHANNEL = "channel:";
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long HOUR_MS = 60L * 60 * 1000;
+
+    private static final ScheduledExecutorService PERSISTER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "MessageLogStats");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Immutable copy of the totals at one point in time.
+     */
+    public static class Summary {
+        public final int total;
+        // Entries per channel, indexed by LogChannel value
+        public final int[] perChannel;
+        public final int[] perHour;
+        // Epoch day (in the device time zone) -> entries, oldest first; the last DAYS_KEPT days
+        public final SortedMap<Long, Integer> perDay;
+        // Entries on days before those in perDay
+        public final int earlierDays;
+        // Contacts by number of entries, most first
+        public final List<Map.Entry<String, Integer>> perContact;
+
+        Summary(int[] perChannel, int[] perHour, SortedMap<Long, Integer> perDay, int earlierDays,
+                List<Map.Entry<String, Integer>> perContact) {
+            int sum = 0;
+            for (int count : perChannel) sum += count;
+            this.total = sum;
+            this.perChannel = perChannel;
+            this.perHour = perHour;
+            this.perDay = perDay;
+            this.earlierDays = earlierDays;
+            this.perContact = perContact;
+        }
+
+        public int count(byte channel) {
+            return channel >= 0 && channel < perChannel.length ? perChannel[channel] : 0;
+        }
+
+        /**
+         * Replies sent, on any channel: entries going out (see {@link LogChannel#directionOf}).
+         */
+        public int sent() {
+            int sent = 0;
+            for (byte c = 0; c < perChannel.length; c++) {
+                if (LogChannel.directionOf(c) == LogChannel.OUTGOING) sent += perChannel[c];
+            }
+            return sent;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final TimeZone zone = TimeZone.getDefault();
+    private final Map<String, Integer> perContact = new HashMap<>();
+    private final int[] perChannel = new int[LogChannel.COUNT];
+    private final int[] perHour = new int[24];
+    private final TreeMap<Long, Integer> perDay = new TreeMap<>();
+    // First day in perDay; entries before it only count towards earlierDays
+    private long firstDay = Long.MIN_VALUE;
+    private int earlierDays;
+    private boolean dirty;
+    private boolean persistScheduled;
+
+    public MessageLogStats(Context ctx) {
+        prefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            if (!(e.getValue() instanceof Integer)) continue;
+            String key = e.getKey();
+            int value = (Integer) e.getValue();
+            if (key.startsWith(CONTACT)) {
+                perContact.put(key.substring(CONTACT.length()), value);
+            } else if (key.startsWith(HOUR)) {
+                int hour = parseInt(key.substring(HOUR.length()));
+                if (hour >= 0 && hour < 24) perHour[hour] = value;
+            } else if (key.startsWith(DAY)) {
+                int day = parseInt(key.substring(DAY.length()));
+                if (day >= 0) perDay.put((long) day, value);
+            } else if (key.startsWith(CHANNEL)) {
+                String name = key.substring(CHANNEL.length());
+                for (byte c = 0; c < LogChannel.COUNT; c++) {
+                    if (LogChannel.name(c).equals(name)) perChannel[c] = value;
+                }
+            }
+        }
+        firstDay = prefs.getLong(KEY_FIRST_DAY, Long.MIN_VALUE);
+        earlierDays = prefs.getInt(KEY_EARLIER_DAYS, 0);
+    }
+
+    /**
+     * Whether the totals were loaded from disk and match the current time zone and number
+     * key format. If not, {@link #rebuild} should be called.
+     */
+    public boolean isBuilt() {
+        return prefs.getBoolean(KEY_BUILT, false) && prefs.getInt(KEY_VERSION, 0) == VERSION
+                && zone.getID().equals(prefs.getString(KEY_ZONE, null))
+                && PhoneNumberNormalizer.getDefault().keyFormat().equals(prefs.getString(KEY_FORMAT, null));
+    }
+
+    /**
+     * Number of entries counted, to compare with the log's.
+     */
+    public synchronized int total() {
+        int sum = 0;
+        for (int count : perChannel) sum += count;
+        return sum;
+    }
+
+    public void rebuild(List<MessageLogManager.Entry> entries) {
+        synchronized (this) {
+            perContact.clear();
+            perDay.clear();
+            for (int h = 0; h < 24; h++) perHour[h] = 0;
+            for (int c = 0; c < perChannel.length; c++) perChannel[c] = 0;
+            firstDay = Long.MIN_VALUE;
+            earlierDays = 0;
+            for (MessageLogManager.Entry e : entries) {
+                apply(ReplyDedupeIndex.keyFor(e.contact), e.channel, dayOf(e.timeMillis), hourOf(e.timeMillis), 1);
+            }
+            dirty = true;
+        }
+        persist();
+    }
+
+    public synchronized void record(String contact, byte channel, long timeMillis) {
+        update(contact, channel, timeMillis, 1);
+    }
+
+    public synchronized void removed(String contact, byte channel, long timeMillis) {
+        update(contact, channel, timeMillis, -1);
+    }
+
+    /**
+     * Take `entries` out of the totals. Used when retention drops a batch of old entries.
+     */
+    public synchronized void removedAll(List<MessageLogManager.Entry> entries) {
+        for (MessageLogManager.Entry e : entries) {
+            apply(ReplyDedupeIndex.keyFor(e.contact), e.channel, dayOf(e.timeMillis), hourOf(e.timeMillis), -1);
+        }
+        changed();
+    }
+
+    /**
+     * Write the totals out now, if they changed since they last were.
+     */
+    public void persist() {
+        SharedPreferences.Editor edit;
+        synchronized (this) {
+            persistScheduled = false;
+            if (!dirty) return;
+            dirty = false;
+            edit = prefs.edit().clear();
+            for (Map.Entry<String, Integer> e : perContact.entrySet()) edit.putInt(CONTACT + e.getKey(), e.getValue());
+            for (int h = 0; h < 24; h++) {
+                if (perHour[h] != 0) edit.putInt(HOUR + h, perHour[h]);
+            }
+            for (Map.Entry<Long, Integer> e : perDay.entrySet()) edit.putInt(DAY + e.getKey(), e.getValue());
+            for (byte c = 0; c < LogChannel.COUNT; c++) {
+                if (perChannel[c] != 0) edit.putInt(CHANNEL + LogChannel.name(c), perChannel[c]);
+            }
+            edit.putLong(KEY_FIRST_DAY, firstDay)
+                .putInt(KEY_EARLIER_DAYS, earlierDays)
+                .putInt(KEY_VERSION, VERSION)
+                .putString(KEY_ZONE, zone.getID())
+                .putString(KEY_FORMAT, PhoneNumberNormalizer.getDefault().keyFormat())
+                .putBoolean(KEY_BUILT, true);
+        }
+        edit.commit();
+    }
+
+    public synchronized Summary summary() {
+        List<Map.Entry<String, Integer>> contacts = new ArrayList<>(perContact.entrySet().size());
+        for (Map.Entry<String, Integer> e : perContact.entrySet()) {
+            contacts.add(new HashMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+        }
+        Collections.sort(contacts, (a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        return new Summary(perChannel.clone(), perHour.clone(),
+                Collections.unmodifiableSortedMap(new TreeMap<>(perDay)), earlierDays,
+                Collections.unmodifiableList(contacts));
+    }
+
+    private void update(String contact, byte channel, long timeMillis, int delta) {
+        apply(ReplyDedupeIndex.keyFor(contact), channel, dayOf(timeMillis), hourOf(timeMillis), delta);
+        changed();
+    }
+
+    private void changed() {
+        dirty = true;
+        if (persistScheduled) return;
+        persistScheduled = true;
+        PERSISTER.schedule(this::persist, PERSIST_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void apply(String key, byte channel, long day, int hour, int delta) {
+        adjust(perContact, key, delta);
+        if (day < firstDay) {
+            earlierDays = Math.max(0, earlierDays + delta);
+        } else {
+            adjust(perDay, day, delta);
+            if (delta > 0) rollUpBefore(day - DAYS_KEPT + 1);
+        }
+        perHour[hour] = Math.max(0, perHour[hour] + delta);
+        if (channel >= 0 && channel < perChannel.length) perChannel[channel] = Math.max(0, perChannel[channel] + delta);
+    }
+
+    // Fold the days before `first` into earlierDays
+    private void rollUpBefore(long first) {
+        if (first <= firstDay) return;
+        firstDay = first;
+        SortedMap<Long, Integer> older = perDay.headMap(first);
+        for (int count : older.values()) earlierDays += count;
+        older.clear();
+    }
+
+    private long dayOf(long timeMillis) {
+        return Math.floorDiv(timeMillis + zone.getOffset(timeMillis), DAY_MS);
+    }
+
+    private int hourOf(long timeMillis) {
+        return (int) (Math.floorMod(timeMillis + zone.getOffset(timeMillis), DAY_MS) / HOUR_MS);
+    }
+
+    private static <K> void adjust(Map<K, Integer> counts, K key, int delta) {
+        Integer prev = counts.get(key);
+        int next = (prev == null ? 0 : prev) + delta;
+        if (next > 0) counts.put(key, next);
+        else counts.remove(key);
+    }
+
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,717 @@
+package com.example.callbacklater;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency layer between {@link MessageLogManager} and the on-disk journal.
+ *
+ * Readers call {@link #snapshot()} and get an immutable {@link MessageLogSnapshot}
+ * without taking any lock, so a long read (e.g. the log viewer) never holds up an
+ * append from a receiver or the notification listener, and readers never wait for
+ * each other.
+ *
+ * Writes go through {@link #enqueue}: the entry is published to readers at once and
+ * queued for a single background writer thread, which collects everything queued
+ * within {@link #COMMIT_DELAY_MS} into one journal write and one fsync. A burst of
+ * missed calls therefore costs one commit rather than one per call. Callers that need
+ * the entry on disk wait on the returned future or on {@link #flush()}.
+ *
+ * Every entry gets an id when it is enqueued, continuing from the highest id in the
+ * journal. Deleting appends a tombstone for that id instead of rewriting the journal;
+ * once dead records make up more than a quarter of the file, the writer thread
+ * compacts it by writing the live entries to a new file and renaming it into place.
+ * A journal loaded with records in an older format is compacted the same way, which
+ * migrates them to the current one.
+ *
+ * The writer thread also enforces the {@link RetentionPolicy}. When the journal file
+ * outgrows the policy's segment size it is sealed into a segment (a rename, see
+ * {@link MessageLogJournal}) and the segment is rewritten in the compact format of
+ * {@link MessageLogSegment}, as are segments left in the journal format by older
+ * versions. Sealed segments past a limit are then dropped or archived whole, and the
+ * oldest rows removed from the snapshot. The journal file itself is never trimmed. This
+ * runs after commits, at most once per {@link #RETENTION_INTERVAL_MS} unless a segment
+ * was just sealed or the policy changed, and the trimmed snapshot is built before
+ * taking `writeLock`, so enqueueing is not held up by it either.
+ *
+ * Two locks are used, always in this order: `ioLock` covers journal I/O, `writeLock`
+ * covers the pending queue and publishing snapshots. Enqueueing only needs `writeLock`,
+ * so it never waits for a commit in progress.
+ *
+ * The store has no Android dependencies beyond logging, so it can be exercised
+ * directly in unit tests.
+ */
+public class MessageLogStore {
+    private static final String TAG = "MessageLogStore";
+
+    // How long the writer waits after the first queued entry for more to arrive
+    static final long COMMIT_DELAY_MS = 100;
+
+    // Don't bother compacting a journal with fewer dead records than this
+    static final int COMPACT_MIN_DEAD_RECORDS = 64;
+
+    // How often the writer checks the retention limits when nothing else asks it to
+    static final long RETENTION_INTERVAL_MS = 60L * 60 * 1000;
+
+    /**
+     * Notified (with the write lock held) when the log had to be reloaded from disk.
+     */
+    public interface ReloadListener {
+        void onReload(MessageLogSnapshot snapshot);
+    }
+
+    /**
+     * Notified (with the write lock held) of each entry added or deleted through the store,
+     * after ids are assigned, so secondary indexes can be kept in step with the snapshot.
+     *
+     * {@link #onTrimmed} is called on the writer thread after retention removed the
+     * oldest entries and the trimmed snapshot was published. It runs without the write
+     * lock, so a large trim does not hold up enqueueing.
+     */
+    public interface ChangeListener {
+        void onAdded(MessageLogManager.Entry entry);
+
+        void onDeleted(MessageLogManager.Entry entry);
+
+        void onTrimmed(List<MessageLogManager.Entry> removed);
+    }
+
+    /**
+     * A sealed segment and what the store knows about its contents.
+     */
+    private static final class Segment {
+        File file;
+        final long maxId;
+        int entries;
+        final long newestTime;
+
+        Segment(File file, long maxId, int entries, long newestTime) {
+            this.file = file;
+            this.maxId = maxId;
+            this.entries = entries;
+            this.newestTime = newestTime;
+        }
+    }
+
+    private final MessageLogJournal journal;
+    private final MessageLogCache cache = new MessageLogCache();
+    private final Object ioLock = new Object();
+    private final Object writeLock = new Object();
+    private volatile boolean writing = false;
+    private volatile boolean loaded = false;
+    private volatile boolean compactRequested = false;
+    private volatile boolean retentionRequested = false;
+    private volatile RetentionPolicy retention = RetentionPolicy.UNLIMITED;
+    private volatile ReloadListener reloadListener;
+    private volatile ChangeListener changeListener;
+
+    // Guarded by writeLock
+    private List<MessageLogManager.Entry> pending = new ArrayList<>();
+    private CompletableFuture<Void> pendingCommit;
+    private CompletableFuture<Void> inFlightCommit;
+    private Thread writerThread;
+    private long lastId = 0;
+    // Deleted add records plus their tombstones, still taking up space in the journal
+    private int deadRecords = 0;
+
+    // Guarded by ioLock. The snapshot holds the segments' rows first, then the journal
+    // file's, then the pending entries.
+    private final List<Segment> segments = new ArrayList<>();
+    private int sealedEntries = 0;
+    private int journalEntries = 0;
+    private long journalOldestTime = Long.MAX_VALUE;
+    private long committedMaxId = 0;
+    private long lastRetentionRun = 0;
+
+    private final AtomicLong commits = new AtomicLong();
+
+    public MessageLogStore(MessageLogJournal journal) {
+        this.journal = journal;
+    }
+
+    public MessageLogJournal getJournal() {
+        return journal;
+    }
+
+    public MessageLogCache getCache() {
+        return cache;
+    }
+
+    public void setReloadListener(ReloadListener listener) {
+        reloadListener = listener;
+    }
+
+    public void setChangeListener(ChangeListener listener) {
+        changeListener = listener;
+    }
+
+    /**
+     * Hand the current snapshot to the reload listener again, as if it had just been
+     * loaded, so indexes derived from it are rebuilt.
+     */
+    public void republish() {
+        snapshot();
+        synchronized (writeLock) {
+            ReloadListener listener = reloadListener;
+            MessageLogSnapshot current = cache.peek();
+            if (listener != null && current != null) listener.onReload(current);
+        }
+    }
+
+    /**
+     * Limits the writer thread enforces from now on. Also asks for them to be checked
+     * right away.
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        retention = policy;
+        synchronized (writeLock) {
+            retentionRequested = true;
+            startWriterLocked();
+            writeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Commit anything queued, then seal and trim segments as the retention policy asks,
+     * before returning. Normally left to the writer thread.
+     */
+    public void enforceRetention() throws IOException {
+        if (!loaded) snapshot();
+        synchronized (ioLock) {
+            commitPendingLocked();
+            retentionRequested = true;
+            maintainSegmentsLocked();
+        }
+    }
+
+    /**
+     * Number of sealed segments.
+     */
+    public int getSegmentCount() {
+        synchronized (ioLock) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * Number of journal commits (write + fsync) done so far.
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * Current contents of the log, including entries still waiting to be committed.
+     * Lock-free unless the log has to be (re)loaded from disk.
+     */
+    public MessageLogSnapshot snapshot() {
+        // While our own write is changing the file, the current snapshot is still the last
+        // consistent state, so use it rather than waiting for the writer.
+        MessageLogSnapshot s = cache.lookup(journal.getFile(), writing);
+        if (s != null) return s;
+
+        synchronized (ioLock) {
+            synchronized (writeLock) {
+                // Another thread may have reloaded while we waited for the lock
+                s = cache.peek();
+                if (s != null && s.matches(journal.getFile())) return s;
+                return reloadLocked();
+            }
+        }
+    }
+
+    /**
+     * Publish `entry` to readers and queue it for the background writer. Returns at once;
+     * the future completes when the entry has been committed to the journal.
+     */
+    public Future<Void> enqueue(MessageLogManager.Entry entry) {
+        // Ids continue from the highest one in the journal, so it has to be read first
+        if (!loaded) snapshot();
+
+        synchronized (writeLock) {
+            if (entry.id <= 0) {
+                entry = new MessageLogManager.Entry(++lastId, entry.contact, entry.timeMillis,
+                        entry.channel, entry.direction);
+            }
+            MessageLogSnapshot current = cache.peek();
+            if (current != null) cache.publish(current.withAppended(entry));
+
+            pending.add(entry);
+            ChangeListener listener = changeListener;
+            if (listener != null) listener.onAdded(entry);
+            if (pendingCommit == null) pendingCommit = new CompletableFuture<>();
+            CompletableFuture<Void> commit = pendingCommit;
+
+            startWriterLocked();
+            writeLock.notifyAll();
+            return commit;
+        }
+    }
+
+    /**
+     * Append `entry` and commit it before returning.
+     */
+    public void add(MessageLogManager.Entry entry) throws IOException {
+        enqueue(entry);
+        synchronized (ioLock) {
+            commitPendingLocked();
+        }
+    }
+
+    /**
+     * Future that completes once everything enqueued so far has been committed.
+     */
+    public Future<Void> flush() {
+        synchronized (writeLock) {
+            // A queued batch is always committed after the one being written
+            if (pendingCommit != null) return pendingCommit;
+            if (inFlightCommit != null) return inFlightCommit;
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Remove the entry with `toDelete`'s id by appending a tombstone to the journal. An
+     * entry without an id matches the first entry with the same contact and time.
+     * Returns true if an entry was removed.
+     */
+    public boolean delete(MessageLogManager.Entry toDelete) throws IOException {
+        synchronized (ioLock) {
+            // The entry's add record has to be on disk before its tombstone
+            commitPendingLocked();
+
+            MessageLogSnapshot s = snapshot();
+            int position = find(s.getColumns(), toDelete);
+            if (position < 0) return false;
+            MessageLogManager.Entry target = s.get(position);
+            // Only appends can happen while we hold ioLock, so the position stays valid
+            Segment segment = segmentAt(position);
+            boolean queued = false;
+            synchronized (writeLock) {
+                for (MessageLogManager.Entry e : pending) {
+                    if (e.id == target.id) queued = true;
+                }
+            }
+            if (queued) commitPendingLocked();
+
+            writing = true;
+            try {
+                if (segment != null) {
+                    // Segments hold no tombstones; rewrite the (bounded) segment instead
+                    MessageLogJournal.deleteFromSegment(segment.file, target.id);
+                    segment.entries--;
+                    sealedEntries--;
+                } else {
+                    journal.appendDelete(target.id);
+                    journalEntries--;
+                    deadRecords += 2;
+                }
+                synchronized (writeLock) {
+                    // Entries enqueued meanwhile are in the latest snapshot, keep them
+                    MessageLogSnapshot current = cache.peek();
+                    MessageLogSnapshot remaining = current.withRemoved(current.positionOf(target.id), journal.getFile());
+                    cache.publish(remaining);
+                    ChangeListener listener = changeListener;
+                    if (listener != null) listener.onDeleted(target);
+
+                    if (deadRecords >= COMPACT_MIN_DEAD_RECORDS && deadRecords * 4 > journalEntries + deadRecords) {
+                        compactRequested = true;
+                        startWriterLocked();
+                        writeLock.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                cache.invalidate();
+                throw e;
+            } finally {
+                writing = false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Commit anything queued, then copy the segments and the journal file to `target` as
+     * one journal. Returns the number of entries in the copy.
+     */
+    public int copyJournalTo(WritableByteChannel target) throws IOException {
+        synchronized (ioLock) {
+            commitPendingLocked();
+            int count;
+            synchronized (writeLock) {
+                count = snapshot().size() - pending.size();
+            }
+            if (journal.exists()) journal.transferTo(target);
+            return count;
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the live entries, dropping tombstones and the records
+     * they delete. Normally done by the writer thread after enough deletes.
+     */
+    public void compact() throws IOException {
+        synchronized (ioLock) {
+            commitPendingLocked();
+            compactLocked();
+        }
+    }
+
+    /**
+     * Position of the row `toDelete` refers to, or -1.
+     */
+    private static int find(MessageLogColumns rows, MessageLogManager.Entry toDelete) {
+        String contact = toDelete.contact == null ? "" : toDelete.contact;
+        for (int i = 0; i < rows.size(); i++) {
+            if (toDelete.id > 0) {
+                if (rows.idAt(i) == toDelete.id) return i;
+            } else if (rows.timeAt(i) == toDelete.timeMillis && rows.contactAt(i).equals(contact)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The sealed segment holding the snapshot row at `position`, or null if the row is in
+     * the journal file (or not committed yet). Must hold ioLock.
+     */
+    private Segment segmentAt(int position) {
+        int end = 0;
+        for (Segment segment : segments) {
+            end += segment.entries;
+            if (position < end) return segment;
+        }
+        return null;
+    }
+
+    /**
+     * Write the journal file's live entries to a new journal file. Must hold ioLock.
+     */
+    private void compactLocked() throws IOException {
+        List<MessageLogManager.Entry> live;
+        synchronized (writeLock) {
+            compactRequested = false;
+            MessageLogSnapshot current = cache.peek();
+            // Changed outside this process: the next read reloads and recounts dead records
+            if (current == null || !current.matches(journal.getFile())) return;
+            // Rows before sealedEntries live in segments. Entries queued since the last commit
+            // are the tail of the snapshot; they are appended to the new journal by the next commit
+            live = new ArrayList<>(current.asList().subList(sealedEntries, current.size() - pending.size()));
+        }
+
+        writing = true;
+        try {
+            journal.rewrite(live);
+            synchronized (writeLock) {
+                deadRecords = 0;
+                MessageLogSnapshot current = cache.peek();
+                if (current != null) cache.publish(current.withFileState(journal.getFile()));
+            }
+            Log.d(TAG, "Compacted message log to " + live.size() + " entries");
+        } finally {
+            writing = false;
+        }
+    }
+
+    /**
+     * Write everything in the pending queue with one journal commit. Must hold ioLock.
+     */
+    private void commitPendingLocked() throws IOException {
+        List<MessageLogManager.Entry> batch;
+        CompletableFuture<Void> commit;
+        MessageLogSnapshot before;
+        synchronized (writeLock) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            commit = pendingCommit;
+            pending = new ArrayList<>();
+            pendingCommit = null;
+            inFlightCommit = commit;
+            before = cache.peek();
+        }
+
+        // If the snapshot no longer matches the file, someone else changed it and the
+        // next read reloads anyway; don't claim the new file state for a stale snapshot.
+        boolean wasFresh = before != null && before.matches(journal.getFile());
+        writing = true;
+        try {
+            journal.appendAll(batch);
+            commits.incrementAndGet();
+            journalEntries += batch.size();
+            for (MessageLogManager.Entry e : batch) {
+                journalOldestTime = Math.min(journalOldestTime, e.timeMillis);
+                committedMaxId = Math.max(committedMaxId, e.id);
+            }
+            synchronized (writeLock) {
+                MessageLogSnapshot current = cache.peek();
+                if (wasFresh && current != null) {
+                    cache.publish(current.withFileState(journal.getFile()));
+                } else {
+                    cache.invalidate();
+                }
+            }
+            synchronized (writeLock) {
+                inFlightCommit = null;
+            }
+            commit.complete(null);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to commit " + batch.size() + " log entries", e);
+            // The published snapshot contains entries that never reached disk
+            cache.invalidate();
+            synchronized (writeLock) {
+                inFlightCommit = null;
+            }
+            commit.completeExceptionally(e);
+            throw e;
+        } finally {
+            writing = false;
+        }
+    }
+
+    /**
+     * Seal the journal file if it outgrew the retention policy's segment size, then drop
+     * segments beyond the policy's limits if a check is due. Must hold ioLock.
+     */
+    private void maintainSegmentsLocked() throws IOException {
+        boolean requested = retentionRequested;
+        retentionRequested = false;
+        if (!loaded) return;
+
+        RetentionPolicy policy = retention;
+        long now = System.currentTimeMillis();
+        boolean sealed = sealIfFullLocked(policy, now);
+        encodeSegmentsLocked();
+        if (sealed || requested || now - lastRetentionRun >= RETENTION_INTERVAL_MS) {
+            lastRetentionRun = now;
+            trimLocked(policy, now);
+        }
+    }
+
+    /**
+     * Turn the journal file into a sealed segment if it holds more entries, bytes or
+     * history than a segment should. Returns true if it did. Must hold ioLock.
+     */
+    private boolean sealIfFullLocked(RetentionPolicy policy, long now) throws IOException {
+        if (journalEntries == 0) return false;
+        long maxAge = policy.segmentAgeMillis();
+        boolean full = journalEntries >= policy.segmentEntries()
+                || journal.getFile().length() >= policy.segmentBytes()
+                || (maxAge > 0 && now - journalOldestTime >= maxAge);
+        if (!full) return false;
+
+        // A segment holds only live entries in the current format
+        if (deadRecords > 0 || compactRequested) compactLocked();
+        MessageLogSnapshot current;
+        synchronized (writeLock) {
+            current = cache.peek();
+            // Changed outside this process: the next read reloads and recounts
+            if (current == null || !current.matches(journal.getFile())) return false;
+        }
+        MessageLogColumns rows = current.getColumns();
+        long newest = Long.MIN_VALUE;
+        for (int i = sealedEntries; i < sealedEntries + journalEntries; i++) newest = Math.max(newest, rows.timeAt(i));
+
+        writing = true;
+        try {
+            File file = journal.seal(committedMaxId);
+            synchronized (writeLock) {
+                current = cache.peek();
+                if (current != null) cache.publish(current.withFileState(journal.getFile()));
+            }
+            segments.add(new Segment(file, committedMaxId, journalEntries, newest));
+        } finally {
+            writing = false;
+        }
+        Log.d(TAG, "Sealed " + journalEntries + " entries into segment " + segments.size());
+        sealedEntries += journalEntries;
+        journalEntries = 0;
+        journalOldestTime = Long.MAX_VALUE;
+        return true;
+    }
+
+    /**
+     * Rewrite segments still in the journal format in the compact one. Their rows and
+     * ids stay the same, so the snapshot is not touched. Must hold ioLock.
+     */
+    private void encodeSegmentsLocked() {
+        for (Segment segment : segments) {
+            if (MessageLogJournal.isCompact(segment.file)) continue;
+            try {
+                long before = segment.file.length();
+                segment.file = journal.encodeSegment(segment.file);
+                Log.d(TAG, "Encoded segment of " + segment.entries + " entries: " + before + " -> "
+                        + segment.file.length() + " bytes");
+            } catch (IOException e) {
+                // Still readable as it is; tried again on the next pass
+                Log.w(TAG, "Failed to encode segment " + segment.file, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop (or archive) the oldest segment while it has expired, or while the log would
+     * still be at the policy's entry or size limit without it, and remove the dropped
+     * rows from the snapshot. Must hold ioLock.
+     */
+    private void trimLocked(RetentionPolicy policy, long now) throws IOException {
+        if (policy.isUnlimited() || segments.isEmpty()) return;
+        MessageLogSnapshot base;
+        synchronized (writeLock) {
+            base = cache.peek();
+            if (base == null || !base.matches(journal.getFile())) return;
+        }
+
+        long bytes = journal.getFile().length();
+        for (Segment segment : segments) bytes += segment.file.length();
+        int entries = sealedEntries + journalEntries;
+        long cutoff = policy.maxAgeMillis > 0 ? now - policy.maxAgeMillis : Long.MIN_VALUE;
+
+        int removedRows = 0;
+        long removedMaxId = 0;
+        IOException failure = null;
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.get(0);
+            long length = oldest.file.length();
+            boolean over = oldest.newestTime < cutoff
+                    || (policy.maxEntries > 0 && entries - oldest.entries >= policy.maxEntries)
+                    || (policy.maxBytes > 0 && bytes - length >= policy.maxBytes);
+            if (!over) break;
+            try {
+                journal.dropSegment(oldest.file, policy.archive);
+            } catch (IOException e) {
+                failure = e;
+                break;
+            }
+            segments.remove(0);
+            entries -= oldest.entries;
+            bytes -= length;
+            sealedEntries -= oldest.entries;
+            removedRows += oldest.entries;
+            removedMaxId = oldest.maxId;
+        }
+
+        if (removedRows > 0) {
+            MessageLogColumns rows = base.getColumns();
+            if (removedRows > rows.size() || rows.idAt(removedRows - 1) > removedMaxId) {
+                // The snapshot does not line up with the segments; read the log again
+                Log.w(TAG, "Snapshot out of step with dropped segments, reloading");
+                synchronized (writeLock) {
+                    cache.invalidate();
+                }
+            } else {
+                // Built without writeLock: only appends can happen while we hold ioLock
+                MessageLogSnapshot trimmed = base.withoutFirst(removedRows, journal.getFile());
+                List<MessageLogManager.Entry> removed = new ArrayList<>(base.asList().subList(0, removedRows));
+                synchronized (writeLock) {
+                    MessageLogSnapshot current = cache.peek();
+                    if (current != null) {
+                        for (int i = base.size(); i < current.size(); i++) {
+                            trimmed = trimmed.withAppended(current.get(i));
+                        }
+                        cache.publish(trimmed);
+                    }
+                }
+                ChangeListener listener = changeListener;
+                if (listener != null) listener.onTrimmed(removed);
+                Log.d(TAG, "Retention " + (policy.archive ? "archived " : "dropped ") + removedRows + " entries");
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void startWriterLocked() {
+        if (writerThread != null) return;
+        writerThread = new Thread(this::runWriter, "MessageLogWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void runWriter() {
+        while (true) {
+            try {
+                boolean hasPending;
+                synchronized (writeLock) {
+                    while (pending.isEmpty() && !compactRequested && !retentionRequested) writeLock.wait();
+                    hasPending = !pending.isEmpty();
+                }
+                // Give a burst of entries a moment to collect into the same commit
+                if (hasPending) Thread.sleep(COMMIT_DELAY_MS);
+                synchronized (ioLock) {
+                    commitPendingLocked();
+                    if (compactRequested) compactLocked();
+                    maintainSegmentsLocked();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Failed commits are also reported through the commit future. A failed
+                // compaction leaves the old journal in place; it is retried after the next delete.
+                // Failed sealing or trimming is retried after the next commit.
+                Log.w(TAG, "Message log write failed", e);
+            }
+        }
+    }
+
+    private MessageLogSnapshot reloadLocked() {
+        try {
+            // Straight from the mapped files into columns, without an Entry per row
+            List<MappedMessageLog> logs = new ArrayList<>();
+            segments.clear();
+            sealedEntries = 0;
+            long maxId = 0;
+            for (File file : journal.listSegments()) {
+                MappedMessageLog segment = MappedMessageLog.open(file);
+                logs.add(segment);
+                long newest = Long.MIN_VALUE;
+                for (int i = 0; i < segment.size(); i++) newest = Math.max(newest, segment.timeAt(i));
+                segments.add(new Segment(file, MessageLogJournal.segmentMaxId(file), segment.size(), newest));
+                sealedEntries += segment.size();
+                maxId = Math.max(maxId, segment.getMaxId());
+            }
+            MappedMessageLog log = journal.map();
+            logs.add(log);
+            journalEntries = log.size();
+            journalOldestTime = Long.MAX_VALUE;
+            for (int i = 0; i < log.size(); i++) journalOldestTime = Math.min(journalOldestTime, log.timeAt(i));
+            committedMaxId = Math.max(maxId, log.getMaxId());
+
+            MessageLogColumns columns = MessageLogColumns.of(logs, pending.size());
+            // Entries still queued for the writer are not on disk yet but must stay visible
+            for (MessageLogManager.Entry e : pending) {
+                columns = columns.withAppended(e);
+            }
+            lastId = Math.max(lastId, committedMaxId);
+            deadRecords = log.getTombstoneCount() * 2;
+            if (log.getLegacyRecordCount() > 0) {
+                // Store the entries read from older formats in the current one
+                compactRequested = true;
+            }
+            // Check the retention limits against what was just loaded
+            retentionRequested = true;
+            startWriterLocked();
+            writeLock.notifyAll();
+            MessageLogSnapshot s = MessageLogSnapshot.of(columns, journal.getFile());
+            cache.publish(s);
+            loaded = true;
+            Log.d(TAG, "Loaded " + s.size() + " entries from disk (cache hits="
+                    + cache.getHitCount() + ", misses=" + cache.getMissCount() + ")");
+            ReloadListener listener = reloadListener;
+            if (listener != null) listener.onReload(s);
+            return s;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read message log", e);
+            cache.invalidate();
+            return MessageLogSnapshot.EMPTY;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.callbacklater;
+
+import java.util.Arrays;
+
+/**
+ * Time-sorted index over the cached message log.
+ *
+ * Keeps two parallel arrays: entry times in epoch millis, sorted ascending, and the
+ * position of each entry in the log list. Date-range queries become two binary
+ * searches followed by a walk over just the matching slice.
+ *
+ * Entries with equal times keep their log order. An index never changes once built;
+ * {@link #withAdded} returns a new one, so readers can use an index without locking
+ * while a writer derives the next version.
+ */
+public final class MessageLogTimeIndex {
+    static final MessageLogTimeIndex EMPTY = new MessageLogTimeIndex(new long[0], new int[0], 0);
+
+    private final long[] times;
+    private final int[] positions;
+    private final int size;
+
+    private MessageLogTimeIndex(long[] times, int[] positions, int size) {
+        this.times = times;
+        this.positions = positions;
+        this.size = size;
+    }
+
+    /**
+     * Build an index for the first `n` of `entryTimes`, where each entry's position is its
+     * index in the array.
+     */
+    public static MessageLogTimeIndex build(long[] entryTimes, int n) {
+        int[] positions = new int[Math.max(16, n)];
+        for (int i = 0; i < n; i++) positions[i] = i;
+        return build(entryTimes, positions, n);
+    }
+
+    /**
+     * Build an index over the `n` entries at `positions` (ascending) in `entryTimes`.
+     * Takes ownership of `positions`, which must have room for at least 16 entries.
+     */
+    static MessageLogTimeIndex build(long[] entryTimes, int[] positions, int n) {
+        long[] times = new long[positions.length];
+
+        boolean sorted = true;
+        for (int i = 0; i < n; i++) {
+            times[i] = entryTimes[positions[i]];
+            if (i > 0 && times[i] < times[i - 1]) sorted = false;
+        }
+        if (sorted) return new MessageLogTimeIndex(times, positions, n);
+
+        // Log written out of time order (clock changes): sort positions by time, stable.
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        final long[] unsorted = Arrays.copyOf(times, n);
+        final int[] unsortedPositions = Arrays.copyOf(positions, n);
+        Arrays.sort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+        for (int i = 0; i < n; i++) {
+            times[i] = unsorted[order[i]];
+            positions[i] = unsortedPositions[order[i]];
+        }
+        return new MessageLogTimeIndex(times, positions, n);
+    }
+
+    /**
+     * Index with the entry at log `position` and time `timeMillis` added. O(1) when entries
+     * arrive in time order, which is the normal case for appends: the new index then shares
+     * this one's arrays and only writes past this index's size.
+     *
+     * Must only be called on the newest index derived from a given build.
+     */
+    public MessageLogTimeIndex withAdded(long timeMillis, int position) {
+        int at = upperBound(timeMillis);
+        if (at == size && size < times.length) {
+            times[size] = timeMillis;
+            positions[size] = position;
+            return new MessageLogTimeIndex(times, positions, size + 1);
+        }
+
+        int capacity = size < times.length ? times.length : Math.max(16, size * 2);
+        long[] newTimes = new long[capacity];
+        int[] newPositions = new int[capacity];
+        System.arraycopy(times, 0, newTimes, 0, at);
+        System.arraycopy(positions, 0, newPositions, 0, at);
+        newTimes[at] = timeMillis;
+        newPositions[at] = position;
+        System.arraycopy(times, at, newTimes, at + 1, size - at);
+        System.arraycopy(positions, at, newPositions, at + 1, size - at);
+        return new MessageLogTimeIndex(newTimes, newPositions, size + 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long timeAt(int i) {
+        return times[i];
+    }
+
+    public int positionAt(int i) {
+        return positions[i];
+    }
+
+    /**
+     * First index whose time is >= `timeMillis` (or {@link #size()} if none).
+     */
+    public int lowerBound(long timeMillis) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < timeMillis) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * First index whose time is > `timeMillis` (or {@link #size()} if none).
+     */
+    public int upperBound(long timeMillis) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= timeMillis) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.callbacklater;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns phone numbers as they come from the call log, contacts, notifications and the
+ * message log into one canonical form, so the same number always gets the same key:
+ *
+ *   "+91 98765-43210", "098765 43210", "9876543210", "0091 98765 43210"
+ *       -> "+919876543210"   (E.164, with India as the default country)
+ *   "121"  -> "121"          (short codes have no international form; kept as digits)
+ *   "Bob"  -> null           (not a number, e.g. a WhatsApp display name)
+ *
+ * Numbers without a '+' or an international prefix are read as national numbers of the
+ * default country ("default_country" in the settings, else the device locale's, so that
+ * every process keys numbers the same way). Parsing is one pass over the chars, no
+ * regex. Results are memoized in a small LRU, since the same few numbers are
+ * normalized over and over.
+ *
+ * Changing the default country changes keys; see
+ * {@link MessageLogManager#setDefaultCountry}.
+ */
+public final class PhoneNumberNormalizer {
+    static final String PREFS_NAME = "call_prefs";
+    static final String KEY_DEFAULT_COUNTRY = "default_country";
+    private static final String FALLBACK_COUNTRY = "IN";
+
+    // Longest number read as a short code when written without a country code
+    private static final int MAX_SHORT_CODE_DIGITS = 6;
+    // E.164 allows at most 15 digits after the '+'
+    private static final int MAX_E164_DIGITS = 15;
+    private static final int CACHE_SIZE = 512;
+    // Cached stand-in for a null result
+    private static final String NOT_A_NUMBER = "";
+
+    /**
+     * Region, calling code, national trunk prefix, length of a national number without
+     * the trunk prefix (0 if it varies too much to use).
+     */
+    private static final String[][] REGIONS = {
+            {"IN", "91", "0", "10"},
+            {"US", "1", "1", "10"},
+            {"CA", "1", "1", "10"},
+            {"GB", "44", "0", "10"},
+            {"IE", "353", "0", "0"},
+            {"AU", "61", "0", "9"},
+            {"NZ", "64", "0", "0"},
+            {"DE", "49", "0", "0"},
+            {"FR", "33", "0", "9"},
+            {"IT", "39", "", "0"},
+            {"ES", "34", "", "9"},
+            {"NL", "31", "0", "9"},
+            {"AE", "971", "0", "9"},
+            {"SA", "966", "0", "9"},
+            {"QA", "974", "", "8"},
+            {"KW", "965", "", "8"},
+            {"OM", "968", "", "8"},
+            {"BH", "973", "", "8"},
+            {"SG", "65", "", "8"},
+            {"MY", "60", "0", "0"},
+            {"PK", "92", "0", "10"},
+            {"BD", "880", "0", "10"},
+            {"LK", "94", "0", "9"},
+            {"NP", "977", "0", "10"},
+            {"ZA", "27", "0", "9"},
+            {"NG", "234", "0", "10"},
+            {"KE", "254", "0", "9"},
+            {"BR", "55", "0", "0"},
+            {"MX", "52", "", "10"},
+            {"JP", "81", "0", "0"},
+            {"CN", "86", "0", "0"},
+            {"RU", "7", "8", "10"},
+    };
+
+    private static volatile PhoneNumberNormalizer defaultInstance;
+
+    private final String region;
+    private final String countryCode;
+    private final String trunkPrefix;
+    private final int nationalLength;
+    // Access order, least recently used first
+    private final LinkedHashMap<String, String> memo = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private long hits;
+    private long misses;
+
+    private PhoneNumberNormalizer(String[] region) {
+        this.region = region[0];
+        this.countryCode = region[1];
+        this.trunkPrefix = region[2];
+        this.nationalLength = Integer.parseInt(region[3]);
+    }
+
+    /**
+     * Normalizer for numbers from `regionCode` (ISO 3166 alpha-2, any case). Unknown
+     * regions fall back to {@link #FALLBACK_COUNTRY}.
+     */
+    public static PhoneNumberNormalizer forRegion(String regionCode) {
+        String code = regionCode == null ? "" : regionCode.trim().toUpperCase(Locale.ROOT);
+        for (String[] r : REGIONS) {
+            if (r[0].equals(code)) return new PhoneNumberNormalizer(r);
+        }
+        return forRegion(FALLBACK_COUNTRY);
+    }
+
+    static boolean isKnownRegion(String regionCode) {
+        String code = regionCode == null ? "" : regionCode.trim().toUpperCase(Locale.ROOT);
+        for (String[] r : REGIONS) {
+            if (r[0].equals(code)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Set up the process-wide normalizer for the default country from the settings.
+     * Called once as the process starts ({@link CallBackLaterApplication}), before
+     * anything keys a number.
+     */
+    static void init(Context ctx) {
+        setDefault(defaultCountry(ctx));
+    }
+
+    /**
+     * The process-wide normalizer.
+     *
+     * @throws IllegalStateException before {@link #init}: a normalizer for a guessed
+     *     country would make keys that do not match the saved ones
+     */
+    public static PhoneNumberNormalizer getDefault() {
+        PhoneNumberNormalizer n = defaultInstance;
+        if (n == null) throw new IllegalStateException("PhoneNumberNormalizer.init() has not run");
+        return n;
+    }
+
+    /**
+     * Switch the process-wide normalizer to `regionCode`. Callers go through
+     * {@link MessageLogManager#setDefaultCountry}, which also re-keys the log.
+     */
+    static synchronized PhoneNumberNormalizer setDefault(String regionCode) {
+        defaultInstance = forRegion(regionCode);
+        return defaultInstance;
+    }
+
+    /**
+     * The configured default country, or the locale's.
+     */
+    static String defaultCountry(Context ctx) {
+        SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String configured = prefs.getString(KEY_DEFAULT_COUNTRY, null);
+        return isKnownRegion(configured) ? configured.trim().toUpperCase(Locale.ROOT) : localeCountry();
+    }
+
+    private static String localeCountry() {
+        String country = Locale.getDefault().getCountry();
+        return isKnownRegion(country) ? country : FALLBACK_COUNTRY;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * Identifies the keys this normalizer produces, so keys saved under another default
+     * country can be recognized as stale.
+     */
+    public String keyFormat() {
+        return "e164:" + region;
+    }
+
+    /**
+     * Canonical form of `number`: E.164 ("+919876543210") for a phone number, the digits
+     * for a short code, or null if it is not a number at all (letters, or symbols other
+     * than the usual separators).
+     */
+    public String normalize(String number) {
+        if (number == null) return null;
+        String cached;
+        synchronized (memo) {
+            cached = memo.get(number);
+            if (cached != null) hits++;
+            else misses++;
+        }
+        if (cached == null) {
+            String result = parse(number);
+            cached = result == null ? NOT_A_NUMBER : result;
+            synchronized (memo) {
+                memo.put(number, cached);
+            }
+        }
+        return cached.isEmpty() ? null : cached;
+    }
+
+    /**
+     * Lookup key for `contact`: {@link #normalize} of it, or the trimmed text if it is
+     * not a number (a display name is its own key).
+     */
+    public String keyOf(String contact) {
+        if (contact == null) return "";
+        String normalized = normalize(contact);
+        return normalized != null ? normalized : contact.trim();
+    }
+
+    /**
+     * The number as WhatsApp's click-to-chat links want it: the E.164 digits without the
+     * '+'. Null if `number` is not a phone number.
+     */
+    public String waDigits(String number) {
+        String normalized = normalize(number);
+        return normalized != null && normalized.startsWith("+") ? normalized.substring(1) : null;
+    }
+
+    /**
+     * The number to dial or text: its E.164 form, or `number` unchanged if it has none.
+     */
+    public String dialable(String number) {
+        String normalized = normalize(number);
+        return normalized != null ? normalized : number;
+    }
+
+    public long getHitCount() {
+        synchronized (memo) {
+            return hits;
+        }
+    }
+
+    public long getMissCount() {
+        synchronized (memo) {
+            return misses;
+        }
+    }
+
+    private String parse(String number) {
+        int length = number.length();
+        char[] digits = new char[length];
+        int count = 0;
+        boolean plus = false;
+        for (int i = 0; i < length; i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits[count++] = c;
+            } else if (c == '+') {
+                // Only as the first symbol
+                if (plus || count > 0) return null;
+                plus = true;
+            } else if (!isSeparator(c)) {
+                return null;
+            }
+        }
+        if (count == 0) return null;
+
+        int start = 0;
+        if (!plus) {
+            if (startsWith(digits, count, "00")) {
+                plus = true;
+                start = 2;
+            } else if (countryCode.equals("1") && startsWith(digits, count, "011")) {
+                plus = true;
+                start = 3;
+            }
+        }
+        if (plus) {
+            int n = count - start;
+            if (n == 0 || n > MAX_E164_DIGITS) return null;
+            return "+" + new String(digits, start, n);
+        }
+
+        if (count <= MAX_SHORT_CODE_DIGITS) return new String(digits, 0, count);
+
+        int trunk = trunkPrefix.length();
+        int cc = countryCode.length();
+        String national;
+        if (nationalLength > 0 && count == nationalLength) {
+            national = new String(digits, 0, count);
+        } else if (trunk > 0 && startsWith(digits, count, trunkPrefix)
+                && (nationalLength == 0 || count - trunk == nationalLength)) {
+            national = new String(digits, trunk, count - trunk);
+        } else if (startsWith(digits, count, countryCode)
+                && (nationalLength == 0 || count - cc == nationalLength)) {
+            // Written with the country code but without the '+'
+            return count > MAX_E164_DIGITS ? null : "+" + new String(digits, 0, count);
+        } else {
+            national = new String(digits, 0, count);
+        }
+        if (cc + national.length() > MAX_E164_DIGITS) return null;
+        return "+" + countryCode + national;
+    }
+
+    private static boolean startsWith(char[] digits, int count, String prefix) {
+        if (count < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (digits[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isSeparator(char c) {
+        switch (c) {
+            case ' ':
+            case '-':
+            case '.':
+            case '(':
+            case ')':
+            case '/':
+            case '\u00A0': // no-break space
+            case '\u2010': // hyphen
+            case '\u2011': // non-breaking hyphen
+            case '\u2012': // figure dash
+            case '\u2013': // en dash
+            case '\u202A': // left-to-right embedding, around numbers in RTL text
+            case '\u202C': // pop directional formatting
+            case '\u200E': // left-to-right mark
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.callbacklater;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers "did we already reply to this number since time T?" with a single map lookup.
+ *
+ * Maps a normalized contact key (see {@link #keyFor(String, byte)}) to the time of the
+ * most recent log entry for it. Each channel family has its own keys, so a WhatsApp
+ * reply does not count as having replied by SMS. The map is mirrored into its own
+ * SharedPreferences file so it survives process death without having to load the
+ * message log; if that file is missing (first run after an upgrade) it is rebuilt from
+ * the log once.
+ *
+ * Lookups read a concurrent map without locking; updates are serialized on the index.
+ */
+public class ReplyDedupeIndex {
+    private static final String PREFS_NAME = "reply_dedupe_index";
+    private static final String KEY_BUILT = "__built";
+    // Key format the map was built with, see PhoneNumberNormalizer#keyFormat
+    private static final String KEY_FORMAT = "__key_format";
+
+    private final SharedPreferences prefs;
+    private volatile Map<String, Long> lastReply = new ConcurrentHashMap<>();
+
+    public ReplyDedupeIndex(Context ctx) {
+        prefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            if (e.getValue() instanceof Long) lastReply.put(e.getKey(), (Long) e.getValue());
+        }
+    }
+
+    /**
+     * Whether the index was loaded from disk. If not, {@link #rebuild} should be called.
+     */
+    public boolean isBuilt() {
+        return prefs.getBoolean(KEY_BUILT, false)
+                && PhoneNumberNormalizer.getDefault().keyFormat().equals(prefs.getString(KEY_FORMAT, null));
+    }
+
+    /**
+     * Replace the whole index with the contents of `entries`.
+     */
+    public synchronized void rebuild(List<MessageLogManager.Entry> entries) {
+        // Built off to the side and swapped in, so lookups never see a half-built map
+        Map<String, Long> rebuilt = new ConcurrentHashMap<>();
+        for (MessageLogManager.Entry e : entries) {
+            String key = keyFor(e.contact, e.channel);
+            if (key.isEmpty()) continue;
+            Long prev = rebuilt.get(key);
+            if (prev == null || e.timeMillis > prev) rebuilt.put(key, e.timeMillis);
+        }
+        lastReply = rebuilt;
+
+        SharedPreferences.Editor edit = prefs.edit().clear();
+        for (Map.Entry<String, Long> e : rebuilt.entrySet()) {
+            edit.putLong(e.getKey(), e.getValue());
+        }
+        edit.putBoolean(KEY_BUILT, true).putString(KEY_FORMAT, PhoneNumberNormalizer.getDefault().keyFormat()).apply();
+    }
+
+    /**
+     * Record a log entry for `contact` on `channel` at `timestampMillis`.
+     */
+    public synchronized void record(String contact, byte channel, long timestampMillis) {
+        String key = keyFor(contact, channel);
+        if (key.isEmpty()) return;
+        Long prev = lastReply.get(key);
+        if (prev != null && prev >= timestampMillis) return;
+        lastReply.put(key, timestampMillis);
+        prefs.edit().putLong(key, timestampMillis).apply();
+    }
+
+    /**
+     * Update the entry for `contact` on `channel` after one of its log entries was removed.
+     * `latestRemaining` is the time of its newest entry still in the log, or -1 if none.
+     */
+    public synchronized void removed(String contact, byte channel, long latestRemaining) {
+        String key = keyFor(contact, channel);
+        if (key.isEmpty()) return;
+
+        long latest = latestRemaining;
+        if (latest < 0) {
+            lastReply.remove(key);
+            prefs.edit().remove(key).apply();
+        } else {
+            lastReply.put(key, latest);
+            prefs.edit().putLong(key, latest).apply();
+        }
+    }
+
+    /**
+     * Time of the latest SMS reply to `contact`, or -1 if there is none.
+     */
+    public long lastReplyTime(String contact) {
+        return lastTime(contact, LogChannel.SMS_REPLY);
+    }
+
+    /**
+     * Time of the latest entry for `contact` on any channel with the same key prefix as
+     * `channel`, or -1 if there is none.
+     */
+    public long lastTime(String contact, byte channel) {
+        String key = keyFor(contact, channel);
+        if (key.isEmpty()) return -1;
+        Long t = lastReply.get(key);
+        return t == null ? -1 : t;
+    }
+
+    /**
+     * Lookup key for `contact` on `channel`: {@link #keyFor(String)} of the contact, tagged
+     * with the channel's {@link LogChannel#keyPrefix}.
+     */
+    static String keyFor(String contact, byte channel) {
+        String prefix = LogChannel.keyPrefix(channel);
+        String key = keyFor(contact);
+        return prefix.isEmpty() || key.isEmpty() ? key : prefix + key;
+    }
+
+    /**
+     * Normalized lookup key for a log contact: the number in E.164 (see
+     * {@link PhoneNumberNormalizer}), so formatting differences and a missing country code
+     * do not matter. Contacts that are not numbers (e.g. a WhatsApp display name) are
+     * kept as-is. A legacy "W:" tag is kept, which gives the same key as
+     * {@link #keyFor(String, byte)} for a WhatsApp channel.
+     */
+    static String keyFor(String contact) {
+        if (contact == null) return "";
+        boolean legacy = contact.startsWith("W:");
+        String normalized = PhoneNumberNormalizer.getDefault().normalize(legacy ? contact.substring(2) : contact);
+        if (normalized == null) return contact.trim();
+        return legacy ? "W:" + normalized : normalized;
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.callbacklater;
+
+import android.content.SharedPreferences;
+
+/**
+ * How much message log history to keep: at most {@link #maxEntries} entries, none older
+ * than {@link #maxAgeMillis}, and at most {@link #maxBytes} on disk. A limit of 0 is
+ * unlimited. Entries beyond a limit are deleted, or moved to an archive if
+ * {@link #archive} is set.
+ *
+ * Limits are enforced in the background by the {@link LogStore}, oldest entries first.
+ * The journal store drops whole sealed segments (see {@link MessageLogJournal}), and
+ * only once the rest of the log still meets the entry and size limits, so it may run
+ * over a limit by about one segment. Segments are sized from the limits below to keep
+ * that small.
+ *
+ * Stored in the app's settings ("call_prefs"), edited in {@link SettingsActivity}.
+ */
+public final class RetentionPolicy {
+    static final String KEY_MAX_ENTRIES = "retention_max_entries";
+    static final String KEY_MAX_AGE_DAYS = "retention_max_age_days";
+    static final String KEY_MAX_MEGABYTES = "retention_max_mb";
+    static final String KEY_ARCHIVE = "retention_archive";
+
+    static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long HOUR_MS = 60L * 60 * 1000;
+
+    // Segment size when no limit asks for smaller ones
+    static final int SEGMENT_MAX_ENTRIES = 8192;
+    static final long SEGMENT_MAX_BYTES = 1024 * 1024;
+    private static final int SEGMENT_MIN_ENTRIES = 256;
+    private static final long SEGMENT_MIN_BYTES = 16 * 1024;
+
+    public static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0, 0, false);
+
+    public final int maxEntries;
+    public final long maxAgeMillis;
+    public final long maxBytes;
+    public final boolean archive;
+
+    public RetentionPolicy(int maxEntries, long maxAgeMillis, long maxBytes, boolean archive) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.maxAgeMillis = Math.max(0, maxAgeMillis);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.archive = archive;
+    }
+
+    public static RetentionPolicy load(SharedPreferences prefs) {
+        return new RetentionPolicy(
+                prefs.getInt(KEY_MAX_ENTRIES, 0),
+                prefs.getInt(KEY_MAX_AGE_DAYS, 0) * DAY_MS,
+                prefs.getInt(KEY_MAX_MEGABYTES, 0) * 1024L * 1024,
+                prefs.getBoolean(KEY_ARCHIVE, false));
+    }
+
+    public void save(SharedPreferences.Editor edit) {
+        edit.putInt(KEY_MAX_ENTRIES, maxEntries)
+            .putInt(KEY_MAX_AGE_DAYS, (int) (maxAgeMillis / DAY_MS))
+            .putInt(KEY_MAX_MEGABYTES, (int) (maxBytes / (1024 * 1024)))
+            .putBoolean(KEY_ARCHIVE, archive);
+    }
+
+    public boolean isUnlimited() {
+        return maxEntries == 0 && maxAgeMillis == 0 && maxBytes == 0;
+    }
+
+    /**
+     * Entries after which the active journal is sealed into a segment: a quarter of the
+     * entry limit.
+     */
+    int segmentEntries() {
+        if (maxEntries == 0) return SEGMENT_MAX_ENTRIES;
+        return Math.max(SEGMENT_MIN_ENTRIES, Math.min(SEGMENT_MAX_ENTRIES, maxEntries / 4));
+    }
+
+    /**
+     * Journal size after which it is sealed, a quarter of the size limit.
+     */
+    long segmentBytes() {
+        if (maxBytes == 0) return SEGMENT_MAX_BYTES;
+        return Math.max(SEGMENT_MIN_BYTES, Math.min(SEGMENT_MAX_BYTES, maxBytes / 4));
+    }
+
+    /**
+     * Age of the active journal's oldest entry after which it is sealed, so entries
+     * logged slowly still end up in a segment that can expire. 0 if there is no age limit.
+     */
+    long segmentAgeMillis() {
+        if (maxAgeMillis == 0) return 0;
+        return Math.max(HOUR_MS, maxAgeMillis / 4);
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy(entries=" + maxEntries + ", ageMs=" + maxAgeMillis + ", bytes=" + maxBytes
+                + ", archive=" + archive + ")";
+    }
+}
@@ -2,19 +2,36 @@ package com.example.callbacklater;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Switch;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class SettingsActivity extends AppCompatActivity {
+    private static final String TAG = "SettingsActivity";
     private static final String PREFS_NAME = "call_prefs";
     private static final String KEY_AUTO_REPLY = "auto_reply_msg";
     private static final String KEY_WHITELIST_ONLY = "whitelist_only";
+    private static final long MINUTE_MS = 60 * 1000L;
+
+    private final ExecutorService importExecutor = Executors.newSingleThreadExecutor();
+    private final ActivityResultLauncher<String[]> pickBlocklist = registerForActivityResult(
+            new ActivityResultContracts.OpenDocument(), this::importBlocklist);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -23,22 +40,124 @@ public class SettingsActivity extends AppCompatActivity {
 
         final EditText etMessage = findViewById(R.id.et_auto_reply);
         final Switch swWhitelist = findViewById(R.id.sw_whitelist);
+        final EditText etEntries = findViewById(R.id.et_retention_entries);
+        final EditText etDays = findViewById(R.id.et_retention_days);
+        final EditText etMegabytes = findViewById(R.id.et_retention_mb);
+        final Switch swArchive = findViewById(R.id.sw_retention_archive);
+        final EditText etCountry = findViewById(R.id.et_default_country);
+        final EditText etVerdictMinutes = findViewById(R.id.et_spam_verdict_minutes);
+        TextView tvVerdictStats = findViewById(R.id.tv_spam_verdict_stats);
         Button btnSave = findViewById(R.id.btn_save_settings);
+        Button btnImportBlocklist = findViewById(R.id.btn_import_blocklist);
 
         final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         etMessage.setText(prefs.getString(KEY_AUTO_REPLY, "User is currently unavailable or sleeping. For urgent matters, please chat via What's App. Otherwise kindly return call at 4.00 pm or anytime thereafter."));
         swWhitelist.setChecked(prefs.getBoolean(KEY_WHITELIST_ONLY, false));
 
+        RetentionPolicy retention = RetentionPolicy.load(prefs);
+        etEntries.setText(String.valueOf(retention.maxEntries));
+        etDays.setText(String.valueOf(retention.maxAgeMillis / RetentionPolicy.DAY_MS));
+        etMegabytes.setText(String.valueOf(retention.maxBytes / (1024 * 1024)));
+        swArchive.setChecked(retention.archive);
+        final String country = PhoneNumberNormalizer.defaultCountry(this);
+        etCountry.setText(country);
+        // Rounded up, so a TTL under a minute does not show as 0 (cache off)
+        long verdictTtlMs = prefs.getLong(SpamVerdictCache.KEY_TTL_MS, SpamVerdictCache.DEFAULT_TTL_MS);
+        etVerdictMinutes.setText(String.valueOf((verdictTtlMs + MINUTE_MS - 1) / MINUTE_MS));
+        tvVerdictStats.setText(describeVerdictCache(SpamVerdictCache.getIfLoaded()));
+
+        btnImportBlocklist.setOnClickListener(v -> pickBlocklist.launch(new String[]{"text/*"}));
+
         btnSave.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                prefs.edit()
+                RetentionPolicy policy = new RetentionPolicy(
+                        parseLimit(etEntries),
+                        parseLimit(etDays) * RetentionPolicy.DAY_MS,
+                        parseLimit(etMegabytes) * 1024L * 1024,
+                        swArchive.isChecked());
+                SharedPreferences.Editor edit = prefs.edit()
                     .putString(KEY_AUTO_REPLY, etMessage.getText().toString())
-                    .putBoolean(KEY_WHITELIST_ONLY, swWhitelist.isChecked())
-                    .apply();
+                    .putBoolean(KEY_WHITELIST_ONLY, swWhitelist.isChecked());
+                String newCountry = etCountry.getText().toString().trim().toUpperCase(Locale.ROOT);
+                boolean countryChanged = PhoneNumberNormalizer.isKnownRegion(newCountry) && !newCountry.equals(country);
+                if (countryChanged) edit.putString(PhoneNumberNormalizer.KEY_DEFAULT_COUNTRY, newCountry);
+                long verdictTtl = parseVerdictTtl(etVerdictMinutes);
+                edit.putLong(SpamVerdictCache.KEY_TTL_MS, verdictTtl);
+                policy.save(edit);
+                edit.apply();
+                MessageLogManager.setRetentionPolicy(SettingsActivity.this, policy);
+                SpamVerdictCache.setTtlIfLoaded(verdictTtl);
+                if (countryChanged) applyDefaultCountry(getApplicationContext(), newCountry);
                 Toast.makeText(SettingsActivity.this, "Settings saved", Toast.LENGTH_SHORT).show();
                 finish();
             }
         });
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        importExecutor.shutdown();
+    }
+
+    /**
+     * Read the picked file into the spam blocklist (see {@link SpamBlocklist} for the
+     * format) off the main thread.
+     */
+    private void importBlocklist(Uri uri) {
+        if (uri == null) return;
+        importExecutor.execute(() -> {
+            String message;
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                if (in == null) throw new IOException("Cannot open " + uri);
+                SpamBlocklist list = SpamBlocklist.importFrom(getApplicationContext(), in);
+                message = "Imported " + list.exactCount() + " numbers and " + list.prefixCount()
+                        + " prefixes (" + list.memoryBytes() / 1024 + " KB)";
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to import spam blocklist", e);
+                message = "Failed to import spam list";
+            }
+            String result = message;
+            runOnUiThread(() -> Toast.makeText(this, result, Toast.LENGTH_LONG).show());
+        });
+    }
+
+    /**
+     * Re-key everything keyed by normalized number for the new default country, off the
+     * main thread: the message log, then the in-memory sets and caches.
+     */
+    private void applyDefaultCountry(Context app, String country) {
+        importExecutor.execute(() -> {
+            MessageLogManager.setDefaultCountry(app, country);
+            SpamBlocklist.unload();
+            SpamVerdictCache.invalidateAllIfLoaded();
+            ContactNumberSet.get(app).reload();
+            Log.i(TAG, "Default country is now " + country);
+        });
+    }
+
+    private static String describeVerdictCache(SpamVerdictCache cache) {
+        if (cache == null || cache.getHitCount() + cache.getMissCount() == 0) return "No calls checked yet";
+        return cache.size() + " numbers remembered; " + Math.round(cache.getHitRate() * 100)
+                + "% of calls answered from memory";
+    }
+
+    // Minutes, 0 = check every call; empty or invalid input means the default
+    private static long parseVerdictTtl(EditText field) {
+        try {
+            return Math.max(0, Integer.parseInt(field.getText().toString().trim())) * MINUTE_MS;
+        } catch (NumberFormatException e) {
+            return SpamVerdictCache.DEFAULT_TTL_MS;
+        }
+    }
+
+    // Empty or invalid input means no limit
+    private static int parseLimit(EditText field) {
+        try {
+            return Math.max(0, Integer.parseInt(field.getText().toString().trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
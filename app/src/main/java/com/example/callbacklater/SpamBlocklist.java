@@ -0,0 +1,380 @@
+package com.example.callbacklater;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * On-device list of spam numbers and number ranges, checked while a call is ringing.
+ *
+ * List format, one rule per line; '#' starts a comment:
+ *   +91 98765 43210     exact number, in any format {@link PhoneNumberNormalizer} reads
+ *   098765 43210        the same number, written nationally (default country)
+ *   +91 140*            every number starting with these digits (a telemarketer range);
+ *                       written with the country code, the '+' or "00" being optional
+ * Rules and callers' numbers are both normalized, so they match however either is written.
+ *
+ * Exact numbers are held as a sorted long[] (8 bytes each), with a Bloom filter of
+ * {@link #BLOOM_BITS_PER_NUMBER} bits per number in front, so most numbers that are not
+ * on the list are rejected after a few bit tests without a binary search. Prefixes
+ * are held in a digit trie laid out in preorder in two arrays: a node's children follow
+ * it, each one's subtree ending where the next sibling starts. That is 5 bytes per node
+ * with no per-node objects; shared leading digits are stored once, and a prefix under a
+ * shorter one is dropped. A lookup walks at most one node per digit of the number.
+ *
+ * The list is read from a file imported by the user ({@link #importFrom}), or if there
+ * is none from the one bundled in the app's assets. Lookups are thread safe.
+ */
+public final class SpamBlocklist {
+    private static final String TAG = "SpamBlocklist";
+
+    static final String FILE_NAME = "spam_blocklist.txt";
+    static final int BLOOM_BITS_PER_NUMBER = 10;
+    private static final int BLOOM_HASHES = 7;
+    // A leading 1 keeps leading zeros, so "0123" and "123" stay different numbers
+    private static final int MAX_EXACT_DIGITS = 17;
+
+    // Matches nothing, so it never needs a normalizer
+    static final SpamBlocklist EMPTY = new Builder(null).build();
+
+    private static volatile SpamBlocklist instance;
+
+    private final PhoneNumberNormalizer normalizer;
+    private final long[] numbers;
+    private final long[] bloom;
+    // Trie in preorder: edge digit of each node ('0'..'9', with TERMINAL set if a
+    // prefix ends there) and the index just past its subtree
+    private final byte[] nodeDigits;
+    private final int[] subtreeEnds;
+    private final int prefixCount;
+
+    private static final byte TERMINAL = (byte) 0x80;
+
+    private SpamBlocklist(PhoneNumberNormalizer normalizer, long[] numbers, long[] bloom, byte[] nodeDigits,
+                          int[] subtreeEnds, int prefixCount) {
+        this.normalizer = normalizer;
+        this.numbers = numbers;
+        this.bloom = bloom;
+        this.nodeDigits = nodeDigits;
+        this.subtreeEnds = subtreeEnds;
+        this.prefixCount = prefixCount;
+    }
+
+    /**
+     * The list in use, loaded on first use. Reads a file, so call it off the main thread
+     * the first time.
+     */
+    public static SpamBlocklist get(Context ctx) {
+        SpamBlocklist list = instance;
+        if (list != null) return list;
+        synchronized (SpamBlocklist.class) {
+            if (instance == null) instance = load(ctx);
+            return instance;
+        }
+    }
+
+    /**
+     * Drop the list in use, so the next {@link #get} reads it again, e.g. because the
+     * default country changed.
+     */
+    static void unload() {
+        instance = null;
+    }
+
+    private static SpamBlocklist load(Context ctx) {
+        long start = System.nanoTime();
+        File imported = new File(ctx.getFilesDir(), FILE_NAME);
+        SpamBlocklist list;
+        try {
+            if (imported.exists()) {
+                InputStream in = new FileInputStream(imported);
+                try {
+                    list = parse(in);
+                } finally {
+                    in.close();
+                }
+            } else {
+                InputStream in = ctx.getAssets().open(FILE_NAME);
+                try {
+                    list = parse(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load spam blocklist", e);
+            return EMPTY;
+        }
+        Log.i(TAG, "Loaded " + list + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return list;
+    }
+
+    /**
+     * Replace the imported list with the contents of `in`, and use it from now on. The
+     * old list stays in use if `in` cannot be read. Cached spam verdicts are dropped.
+     */
+    public static SpamBlocklist importFrom(Context ctx, InputStream in) throws IOException {
+        File target = new File(ctx.getFilesDir(), FILE_NAME);
+        File tmp = new File(ctx.getFilesDir(), FILE_NAME + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+        } finally {
+            out.close();
+        }
+        SpamBlocklist list;
+        InputStream copy = new FileInputStream(tmp);
+        try {
+            list = parse(copy);
+        } finally {
+            copy.close();
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + target);
+        }
+        instance = list;
+        SpamVerdictCache.invalidateAllIfLoaded();
+        return list;
+    }
+
+    static SpamBlocklist parse(InputStream in) throws IOException {
+        return parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    static SpamBlocklist parse(Reader reader) throws IOException {
+        return parse(reader, PhoneNumberNormalizer.getDefault());
+    }
+
+    static SpamBlocklist parse(Reader reader, PhoneNumberNormalizer normalizer) throws IOException {
+        Builder builder = new Builder(normalizer);
+        BufferedReader in = new BufferedReader(reader, 64 * 1024);
+        String line;
+        while ((line = in.readLine()) != null) {
+            builder.addRule(line);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Whether `number` is on the list, exactly or by prefix. Short codes are only
+     * matched exactly; prefixes are international.
+     */
+    public boolean contains(String number) {
+        if (numbers.length == 0 && nodeDigits.length == 0) return false;
+        String normalized = normalizer.normalize(number);
+        if (normalized == null) return false;
+        boolean international = normalized.startsWith("+");
+        return (international && matchesPrefix(normalized)) || containsExact(normalized);
+    }
+
+    private boolean containsExact(String number) {
+        long key = 1;
+        int digits = 0;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') continue;
+            if (++digits > MAX_EXACT_DIGITS) return false;
+            key = key * 10 + (c - '0');
+        }
+        if (digits == 0 || !mightContain(key)) return false;
+        return Arrays.binarySearch(numbers, key) >= 0;
+    }
+
+    private boolean matchesPrefix(String number) {
+        if (nodeDigits.length == 0) return false;
+        int node = 0;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') continue;
+            int child = node + 1;
+            int end = subtreeEnds[node];
+            while (child < end && (nodeDigits[child] & ~TERMINAL) != c) {
+                if ((nodeDigits[child] & ~TERMINAL) > c) return false;
+                child = subtreeEnds[child];
+            }
+            if (child >= end) return false;
+            if ((nodeDigits[child] & TERMINAL) != 0) return true;
+            node = child;
+        }
+        return false;
+    }
+
+    private boolean mightContain(long key) {
+        if (bloom.length == 0) return false;
+        long bits = (long) bloom.length * 64;
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    public int exactCount() {
+        return numbers.length;
+    }
+
+    public int prefixCount() {
+        return prefixCount;
+    }
+
+    /**
+     * Bytes held by the list's arrays.
+     */
+    public long memoryBytes() {
+        return numbers.length * 8L + bloom.length * 8L + nodeDigits.length + subtreeEnds.length * 4L;
+    }
+
+    @Override
+    public String toString() {
+        return exactCount() + " numbers, " + prefixCount() + " prefixes (" + nodeDigits.length + " trie nodes), "
+                + memoryBytes() / 1024 + " KB";
+    }
+
+    /**
+     * Collects rules, then builds the compact arrays in one go.
+     */
+    static final class Builder {
+        private final PhoneNumberNormalizer normalizer;
+        private long[] numbers = new long[1024];
+        private int numberCount;
+        private final List<String> prefixes = new ArrayList<>();
+
+        /**
+         * `normalizer` reads exact numbers here, and callers' numbers in the built list.
+         */
+        Builder(PhoneNumberNormalizer normalizer) {
+            this.normalizer = normalizer;
+        }
+
+        /**
+         * Add one line of the list format (see the class comment). Comments, blank lines
+         * and lines without digits are skipped.
+         */
+        void addRule(String line) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            StringBuilder digits = new StringBuilder(line.length());
+            boolean prefix = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c >= '0' && c <= '9') digits.append(c);
+                else if (c == '*') prefix = true;
+            }
+            if (digits.length() == 0) return;
+            if (prefix) {
+                // International prefix: an explicit "00" is the same as a '+'
+                String p = digits.indexOf("00") == 0 ? digits.substring(2) : digits.toString();
+                if (!p.isEmpty()) prefixes.add(p);
+                return;
+            }
+            String normalized = normalizer.normalize(line);
+            if (normalized != null) {
+                digits.setLength(0);
+                digits.append(normalized, normalized.startsWith("+") ? 1 : 0, normalized.length());
+            }
+            if (digits.length() <= MAX_EXACT_DIGITS) {
+                if (numberCount == numbers.length) numbers = Arrays.copyOf(numbers, numberCount * 2);
+                numbers[numberCount++] = Long.parseLong("1" + digits);
+            } else {
+                Log.w(TAG, "Skipping number longer than " + MAX_EXACT_DIGITS + " digits: " + line.trim());
+            }
+        }
+
+        SpamBlocklist build() {
+            long[] sorted = Arrays.copyOf(numbers, numberCount);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (n == 0 || sorted[n - 1] != sorted[i]) sorted[n++] = sorted[i];
+            }
+            sorted = Arrays.copyOf(sorted, n);
+
+            long[] bloom = new long[(int) ((n * (long) BLOOM_BITS_PER_NUMBER + 63) / 64)];
+            long bits = (long) bloom.length * 64;
+            for (long key : sorted) {
+                long h1 = mix(key);
+                long h2 = mix(h1) | 1;
+                for (int i = 0; i < BLOOM_HASHES; i++) {
+                    long bit = Math.floorMod(h1 + i * h2, bits);
+                    bloom[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+
+            Collections.sort(prefixes);
+            return buildTrie(sorted, bloom);
+        }
+
+        /**
+         * Lay the sorted prefixes out as a preorder trie. Consecutive prefixes share
+         * their common leading digits; the nodes past that point are closed (their
+         * subtree ends set) before new ones are opened.
+         */
+        private SpamBlocklist buildTrie(long[] sorted, long[] bloom) {
+            byte[] digits = new byte[16];
+            int[] ends = new int[16];
+            int size = 1; // the root
+            // Open nodes from the root down, and the prefix they spell
+            int[] path = new int[32];
+            String previous = "";
+            int kept = 0;
+            String terminal = null;
+            for (String p : prefixes) {
+                // Covered by a shorter prefix already on the list
+                if (terminal != null && p.startsWith(terminal)) continue;
+                int common = 0;
+                while (common < previous.length() && common < p.length()
+                        && previous.charAt(common) == p.charAt(common)) {
+                    common++;
+                }
+                for (int depth = previous.length(); depth > common; depth--) {
+                    ends[path[depth]] = size;
+                }
+                if (p.length() + 1 > path.length) path = Arrays.copyOf(path, p.length() + 1);
+                for (int depth = common + 1; depth <= p.length(); depth++) {
+                    if (size == digits.length) {
+                        digits = Arrays.copyOf(digits, size * 2);
+                        ends = Arrays.copyOf(ends, size * 2);
+                    }
+                    digits[size] = (byte) p.charAt(depth - 1);
+                    path[depth] = size++;
+                }
+                digits[path[p.length()]] |= TERMINAL;
+                terminal = p;
+                previous = p;
+                kept++;
+            }
+            for (int depth = previous.length(); depth > 0; depth--) {
+                ends[path[depth]] = size;
+            }
+            ends[0] = size;
+            if (kept == 0) size = 0;
+            return new SpamBlocklist(normalizer, sorted, bloom, Arrays.copyOf(digits, size),
+                    Arrays.copyOf(ends, size), kept);
+        }
+    }
+}
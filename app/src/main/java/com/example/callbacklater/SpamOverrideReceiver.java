@@ -0,0 +1,57 @@
+package com.example.callbacklater;
+
+import android.app.NotificationManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Handles the "Not spam" action of the blocked spam call notification: the number is
+ * never classified as spam again, and its cached verdict is dropped so that takes
+ * effect on its next call.
+ */
+public class SpamOverrideReceiver extends BroadcastReceiver {
+    private static final String TAG = "SpamOverrideReceiver";
+
+    static final String ACTION_NOT_SPAM = "com.example.callbacklater.action.NOT_SPAM";
+    static final String EXTRA_PHONE_NUMBER = "phoneNumber";
+
+    private static final String PREFS_NAME = "call_prefs";
+    // Verdict cache keys of the numbers the user marked as not spam
+    private static final String KEY_NOT_SPAM = "not_spam_numbers";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (intent == null || !ACTION_NOT_SPAM.equals(intent.getAction())) return;
+        String number = intent.getStringExtra(EXTRA_PHONE_NUMBER);
+        String key = SpamVerdictCache.keyFor(number);
+        if (key.isEmpty()) return;
+
+        markNotSpam(context, key);
+        SpamVerdictCache.get(context).invalidate(key);
+        Log.i(TAG, "Marked " + number + " as not spam");
+
+        NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (nm != null) nm.cancel(EnhancedCallReceiver.SPAM_NOTIFICATION_ID);
+    }
+
+    static boolean isMarkedNotSpam(Context context, String key) {
+        return prefs(context).getStringSet(KEY_NOT_SPAM, new HashSet<String>()).contains(key);
+    }
+
+    private static void markNotSpam(Context context, String key) {
+        SharedPreferences prefs = prefs(context);
+        // The returned set must not be modified
+        Set<String> keys = new HashSet<>(prefs.getStringSet(KEY_NOT_SPAM, new HashSet<String>()));
+        if (keys.add(key)) prefs.edit().putStringSet(KEY_NOT_SPAM, keys).apply();
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
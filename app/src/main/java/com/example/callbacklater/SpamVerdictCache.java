@@ -0,0 +1,218 @@
+package com.example.callbacklater;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of spam verdicts, keyed by normalized number (see {@link #keyFor}),
+ * so a number that rings again is not classified again.
+ *
+ * A verdict is kept for {@link #getTtlMillis} after it was worked out (set in
+ * {@link SettingsActivity}), so changes to the inputs the cache cannot see (a new
+ * blocklist version, a contact added) are picked up within that time. Changes it can
+ * see invalidate explicitly: the user marking a number as not spam drops that number's
+ * verdict; importing a blocklist or changing the default country drops them all.
+ * At most {@link #getMaxEntries} verdicts are kept. When that many are, expired ones go
+ * first, then the least recently used.
+ *
+ * Times are passed in by the caller, as for {@link CallStateTracker}. Thread safe.
+ */
+public final class SpamVerdictCache {
+    static final int DEFAULT_MAX_ENTRIES = 256;
+    static final long DEFAULT_TTL_MS = 6 * 60 * 60 * 1000L; // 6 hours
+
+    private static final String PREFS_NAME = "call_prefs";
+    static final String KEY_TTL_MS = "spam_verdict_ttl_ms";
+
+    private static volatile SpamVerdictCache instance;
+
+    private static final class Verdict {
+        final boolean spam;
+        final long expiresAtMillis;
+
+        Verdict(boolean spam, long expiresAtMillis) {
+            this.spam = spam;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final int maxEntries;
+    private volatile long ttlMillis;
+    // Access order: iteration starts at the least recently used
+    private final LinkedHashMap<String, Verdict> verdicts;
+
+    private long hits;
+    private long misses;
+    private long expirations;
+    private long evictions;
+    private long invalidations;
+
+    SpamVerdictCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.verdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+                if (size() <= SpamVerdictCache.this.maxEntries) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * The process-wide cache, with the TTL from the "spam_verdict_ttl_ms" setting.
+     */
+    public static SpamVerdictCache get(Context ctx) {
+        SpamVerdictCache cache = instance;
+        if (cache != null) return cache;
+        synchronized (SpamVerdictCache.class) {
+            if (instance == null) {
+                SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+                instance = new SpamVerdictCache(DEFAULT_MAX_ENTRIES, prefs.getLong(KEY_TTL_MS, DEFAULT_TTL_MS));
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * The process-wide cache if it was created, else null.
+     */
+    static SpamVerdictCache getIfLoaded() {
+        return instance;
+    }
+
+    /**
+     * Use `ttlMillis` for the process-wide cache from now on, if it was created; it
+     * reads the setting when it is.
+     */
+    static void setTtlIfLoaded(long ttlMillis) {
+        SpamVerdictCache cache = instance;
+        if (cache != null) cache.setTtlMillis(ttlMillis);
+    }
+
+    /**
+     * Drop every verdict in the process-wide cache, if it was created.
+     */
+    static void invalidateAllIfLoaded() {
+        SpamVerdictCache cache = instance;
+        if (cache != null) cache.invalidateAll();
+    }
+
+    /**
+     * Cache key of `number`: its normalized form (see {@link PhoneNumberNormalizer}).
+     * Empty if it is not a number.
+     */
+    public static String keyFor(String number) {
+        String normalized = PhoneNumberNormalizer.getDefault().normalize(number);
+        return normalized == null ? "" : normalized;
+    }
+
+    /**
+     * The cached verdict for `key`, or null if there is none or it has expired.
+     */
+    public synchronized Boolean get(String key, long nowMillis) {
+        Verdict v = verdicts.get(key);
+        if (v != null && nowMillis >= v.expiresAtMillis) {
+            verdicts.remove(key);
+            expirations++;
+            v = null;
+        }
+        if (v == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return v.spam;
+    }
+
+    public synchronized void put(String key, boolean spam, long nowMillis) {
+        // Make room from expired verdicts rather than evicting a live one
+        if (verdicts.size() >= maxEntries && !verdicts.containsKey(key)) purgeExpired(nowMillis);
+        verdicts.put(key, new Verdict(spam, nowMillis + ttlMillis));
+    }
+
+    /**
+     * Drop the verdict for `key`, e.g. because the user overrode it.
+     */
+    public synchronized void invalidate(String key) {
+        if (verdicts.remove(key) != null) invalidations++;
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations += verdicts.size();
+        verdicts.clear();
+    }
+
+    /**
+     * Drop expired verdicts. Lookups skip them anyway; this only frees their memory.
+     */
+    public synchronized void purgeExpired(long nowMillis) {
+        for (Iterator<Verdict> it = verdicts.values().iterator(); it.hasNext(); ) {
+            if (nowMillis >= it.next().expiresAtMillis) {
+                it.remove();
+                expirations++;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return verdicts.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Change the TTL. Verdicts already cached keep the one they were stored with; a
+     * shorter TTL drops them, so it holds right away.
+     */
+    public synchronized void setTtlMillis(long ttlMillis) {
+        if (ttlMillis < this.ttlMillis) invalidateAll();
+        this.ttlMillis = ttlMillis;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * Share of lookups answered from the cache, 0 before the first lookup.
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return verdicts.size() + "/" + maxEntries + " verdicts, " + hits + " hits, " + misses + " misses ("
+                + Math.round(getHitRate() * 100) + "% hit rate), " + expirations + " expired, "
+                + evictions + " evicted, " + invalidations + " invalidated";
+    }
+}
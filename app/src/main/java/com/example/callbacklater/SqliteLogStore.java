@@ -0,0 +1,580 @@
+package com.example.callbacklater;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LogStore} backed by an SQLite table.
+ *
+ * Table: messages(id, contact, normalized_contact, time, channel, direction), where
+ * normalized_contact is {@link ReplyDedupeIndex#keyFor(String, byte)} of the contact and
+ * channel, time is epoch millis, and channel and direction are {@link LogChannel} values.
+ * Indexed on (normalized_contact, time) for per-number lookups, on (channel, time) for
+ * channel filters, and on (time) for date ranges and newest-first paging. Queries name
+ * the index they use, see {@link #compile}.
+ *
+ * Version 1 had no channel or direction; upgrading adds them and moves the legacy "W:"
+ * contact prefix into the channel. Version 3 adds meta(key, value), which records the
+ * {@link PhoneNumberNormalizer#keyFormat} normalized_contact was computed with; when
+ * the database is opened with another one (an upgrade, or a new default country), the
+ * column is recomputed.
+ *
+ * Writes go through a single background thread so callers on the main thread never
+ * wait for a commit; reads run on the calling thread against the write-ahead log.
+ *
+ * The {@link RetentionPolicy} is enforced on the same thread, queued behind the adds,
+ * by deleting the oldest rows in one transaction. Archived rows are written as a
+ * compact segment (see {@link MessageLogSegment}) to the archive directory next to the
+ * database (message_log.db.archive/), like archived journal segments.
+ */
+public class SqliteLogStore implements LogStore {
+    private static final String TAG = "SqliteLogStore";
+    static final String TABLE = "messages";
+    private static final String[] COLUMNS = {"id", "contact", "time", "channel", "direction"};
+    private static final int DB_VERSION = 3;
+    private static final String META_TABLE = "meta";
+    private static final String META_KEY_FORMAT = "contact_key_format";
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context ctx, String name) {
+            super(ctx, name, null, DB_VERSION);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "contact TEXT NOT NULL, "
+                    + "normalized_contact TEXT NOT NULL, "
+                    + "time INTEGER NOT NULL, "
+                    + "channel INTEGER NOT NULL DEFAULT 0, "
+                    + "direction INTEGER NOT NULL DEFAULT 0)");
+            db.execSQL("CREATE INDEX idx_messages_contact_time ON " + TABLE + " (normalized_contact, time)");
+            db.execSQL("CREATE INDEX idx_messages_time ON " + TABLE + " (time)");
+            db.execSQL("CREATE INDEX idx_messages_channel_time ON " + TABLE + " (channel, time)");
+            createMetaTable(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN channel INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN direction INTEGER NOT NULL DEFAULT 0");
+                // normalized_contact already carries the "W:" tag, which is the WhatsApp key prefix
+                db.execSQL("UPDATE " + TABLE + " SET channel = " + LogChannel.WHATSAPP_MISSED_CALL
+                        + ", direction = " + LogChannel.INCOMING + ", contact = substr(contact, 3)"
+                        + " WHERE substr(contact, 1, 2) = 'W:'");
+                db.execSQL("CREATE INDEX idx_messages_channel_time ON " + TABLE + " (channel, time)");
+            }
+            if (oldVersion < 3) {
+                // No key format recorded, so the keys are recomputed on open
+                createMetaTable(db);
+            }
+        }
+
+        private static void createMetaTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + META_TABLE + " (key TEXT PRIMARY KEY, value TEXT)");
+        }
+    }
+
+    private final Helper helper;
+    private final File databaseFile;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SqliteLogWriter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile RetentionPolicy retention = RetentionPolicy.UNLIMITED;
+    private volatile ReloadListener reloadListener;
+    private volatile TrimListener trimListener;
+    // Only used on the writer thread
+    private long lastRetentionRun = 0;
+
+    public SqliteLogStore(Context ctx, String name) {
+        helper = new Helper(ctx, name);
+        databaseFile = ctx.getDatabasePath(name);
+        writer.execute(() -> {
+            try {
+                SQLiteDatabase db = helper.getWritableDatabase();
+                if (!PhoneNumberNormalizer.getDefault().keyFormat().equals(keyFormat(db))) rekey(db);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to check contact key format", e);
+            }
+        });
+    }
+
+    @Override
+    public Future<Void> add(String contact, long timeMillis, byte channel, byte direction) {
+        String c = contact == null ? "" : contact;
+        return writer.submit(() -> {
+            SQLiteStatement insert = helper.getWritableDatabase().compileStatement(
+                    "INSERT INTO " + TABLE + " (contact, normalized_contact, time, channel, direction)"
+                            + " VALUES (?, ?, ?, ?, ?)");
+            try {
+                insert.bindString(1, c);
+                insert.bindString(2, ReplyDedupeIndex.keyFor(c, channel));
+                insert.bindLong(3, timeMillis);
+                insert.bindLong(4, channel);
+                insert.bindLong(5, direction);
+                insert.executeInsert();
+            } finally {
+                insert.close();
+            }
+            if (System.currentTimeMillis() - lastRetentionRun >= MessageLogStore.RETENTION_INTERVAL_MS) {
+                // Queued behind this add, so its future completes first
+                writer.execute(this::trimQuietly);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Insert `entries` keeping their ids, in one transaction. Used when migrating from
+     * another store.
+     */
+    void insertWithIds(List<MessageLogManager.Entry> entries) throws IOException {
+        await(writer.submit(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO " + TABLE + " (id, contact, normalized_contact, time, channel, direction)"
+                            + " VALUES (?, ?, ?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (MessageLogManager.Entry e : entries) {
+                    String c = e.contact == null ? "" : e.contact;
+                    insert.bindLong(1, e.id);
+                    insert.bindString(2, c);
+                    insert.bindString(3, ReplyDedupeIndex.keyFor(c, e.channel));
+                    insert.bindLong(4, e.timeMillis);
+                    insert.bindLong(5, e.channel);
+                    insert.bindLong(6, e.direction);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+            return null;
+        }));
+    }
+
+    @Override
+    public Future<Void> flush() {
+        // The writer runs tasks in order, so this completes after everything queued before it
+        return writer.submit(() -> null);
+    }
+
+    @Override
+    public boolean delete(MessageLogManager.Entry entry) throws IOException {
+        return await(writer.submit(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            if (entry.id > 0) {
+                return db.delete(TABLE, "id = ?", new String[] {Long.toString(entry.id)}) > 0;
+            }
+            return db.delete(TABLE, "id = (SELECT id FROM " + TABLE + " WHERE contact = ? AND time = ? ORDER BY id LIMIT 1)",
+                    new String[] {entry.contact == null ? "" : entry.contact, Long.toString(entry.timeMillis)}) > 0;
+        }));
+    }
+
+    @Override
+    public LogQuery.Result query(LogQuery query) {
+        Compiled compiled = compile(query);
+        SQLiteDatabase db = helper.getReadableDatabase();
+        String page = " LIMIT " + query.limit + " OFFSET " + query.offset;
+        if (query.countOnly) {
+            String sql = query.offset == 0 && query.limit == Integer.MAX_VALUE
+                    ? "SELECT COUNT(*)" + compiled.from
+                    : "SELECT COUNT(*) FROM (SELECT 1" + compiled.from + page + ")";
+            return LogQuery.Result.ofCount((int) DatabaseUtils.longForQuery(db, sql, compiled.args), compiled.plan);
+        }
+
+        String order = query.newestFirst ? " ORDER BY time DESC, id DESC" : " ORDER BY time ASC, id ASC";
+        Cursor c = db.rawQuery("SELECT id, contact, time, channel, direction" + compiled.from + order + page,
+                compiled.args);
+        try {
+            List<MessageLogManager.Entry> out = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                out.add(entryAt(c));
+            }
+            return LogQuery.Result.ofEntries(out, compiled.plan);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public LogQuery.Plan explain(LogQuery query) {
+        return compile(query).plan;
+    }
+
+    /**
+     * A query as SQL: the FROM and WHERE clauses, their arguments, and the plan.
+     */
+    private static class Compiled {
+        String from;
+        String[] args;
+        LogQuery.Plan plan;
+    }
+
+    /**
+     * Push every filter of `query` down into SQL and pick the index for it, named with
+     * INDEXED BY so the plan reported is the plan run:
+     *   exact contact:      (normalized_contact, time), one key per selected channel family
+     *   channel filter:     (channel, time)
+     *   time range, cursor: (time)
+     *   otherwise:          no filter to search by, the table is scanned
+     * A substring contact filter cannot use an index and is checked on the rows found.
+     * SQLite's statistics are not consulted, so no row estimate is given.
+     */
+    private static Compiled compile(LogQuery query) {
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<>();
+        String index = null;
+        LogQuery.Access access;
+        String detail;
+
+        if (query.hasContact() && query.exactContact) {
+            Set<String> keys = new LinkedHashSet<>();
+            for (byte c = 0; c < LogChannel.COUNT; c++) {
+                if (LogChannel.matches(query.channels, c)) keys.add(ReplyDedupeIndex.keyFor(query.contact, c));
+            }
+            where.append("normalized_contact IN (");
+            for (String key : keys) {
+                if (!args.isEmpty()) where.append(", ");
+                where.append('?');
+                args.add(key);
+            }
+            where.append(")");
+            index = "idx_messages_contact_time";
+        } else if (query.hasContact()) {
+            String digits = ContactSearchIndex.digitQuery(query.contact);
+            if (digits != null) {
+                // Digits are contiguous in the normalized contact, whatever the formatting was
+                where.append("normalized_contact LIKE ?");
+                args.add("%" + digits + "%");
+            } else {
+                where.append("contact LIKE ? ESCAPE '\\'");
+                args.add("%" + escapeLike(query.contact) + "%");
+            }
+        }
+        if (query.channels != LogChannel.ALL) {
+            if (where.length() > 0) where.append(" AND ");
+            where.append("channel IN (");
+            for (byte c = 0; c < LogChannel.COUNT; c++) {
+                if (!LogChannel.matches(query.channels, c)) continue;
+                if (where.charAt(where.length() - 1) != '(') where.append(", ");
+                where.append(c);
+            }
+            where.append(")");
+            if (index == null) index = "idx_messages_channel_time";
+        }
+        if (query.startTimeMillis != null) {
+            if (where.length() > 0) where.append(" AND ");
+            where.append("time >= ?");
+            args.add(Long.toString(query.startTimeMillis));
+        }
+        if (query.endTimeMillis != null) {
+            if (where.length() > 0) where.append(" AND ");
+            where.append("time <= ?");
+            args.add(Long.toString(query.endTimeMillis));
+        }
+        if (query.afterTimeMillis != null) {
+            // Rows after the previous page's last one in ORDER BY order; the plain bound on
+            // time is what an index can seek on
+            if (where.length() > 0) where.append(" AND ");
+            where.append(query.newestFirst ? "time <= ? AND (time < ? OR id < ?)" : "time >= ? AND (time > ? OR id > ?)");
+            args.add(Long.toString(query.afterTimeMillis));
+            args.add(Long.toString(query.afterTimeMillis));
+            args.add(Long.toString(query.afterId));
+        }
+        if (index == null && (query.startTimeMillis != null || query.endTimeMillis != null
+                || query.afterTimeMillis != null)) {
+            index = "idx_messages_time";
+        }
+
+        if (index == null) {
+            access = LogQuery.Access.FULL_SCAN;
+            detail = "SCAN " + TABLE;
+        } else {
+            access = index.equals("idx_messages_contact_time") ? LogQuery.Access.CONTACT_INDEX : LogQuery.Access.TIME_INDEX;
+            detail = "SEARCH " + TABLE + " USING INDEX " + index;
+        }
+
+        Compiled compiled = new Compiled();
+        compiled.from = " FROM " + TABLE + (index == null ? "" : " INDEXED BY " + index)
+                + (where.length() == 0 ? "" : " WHERE " + where);
+        compiled.args = args.toArray(new String[0]);
+        compiled.plan = new LogQuery.Plan(access, -1, detail);
+        return compiled;
+    }
+
+    @Override
+    public int count() {
+        return (int) DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), TABLE);
+    }
+
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        Cursor c = helper.getReadableDatabase().rawQuery(
+                "SELECT id, contact, time, channel, direction FROM " + TABLE + " ORDER BY id", null);
+        try {
+            while (c.moveToNext()) {
+                visitor.visit(entryAt(c));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public long latestTimeFor(String contact, byte channel) {
+        Cursor c = helper.getReadableDatabase().rawQuery(
+                "SELECT MAX(time) FROM " + TABLE + " WHERE normalized_contact = ?",
+                new String[] {ReplyDedupeIndex.keyFor(contact, channel)});
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public int copyTo(WritableByteChannel target) throws IOException {
+        // Runs on the writer so nothing is written while the file is copied
+        return await(writer.submit(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            // Move everything from the write-ahead log into the main file first
+            db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null).close();
+            int count = (int) DatabaseUtils.queryNumEntries(db, TABLE);
+
+            FileInputStream in = new FileInputStream(databaseFile);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                long position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+            } finally {
+                in.close();
+            }
+            return count;
+        }));
+    }
+
+    @Override
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        retention = policy;
+        writer.execute(this::trimQuietly);
+    }
+
+    @Override
+    public Future<Void> rekeyContacts() {
+        return writer.submit(() -> {
+            rekey(helper.getWritableDatabase());
+            ReloadListener listener = reloadListener;
+            if (listener != null) {
+                List<MessageLogManager.Entry> all = new ArrayList<>();
+                forEach(all::add);
+                listener.onReload(all);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void setReloadListener(ReloadListener listener) {
+        // The database is only changed through this store, so this is only called after
+        // rekeyContacts
+        reloadListener = listener;
+    }
+
+    @Override
+    public void setTrimListener(TrimListener listener) {
+        trimListener = listener;
+    }
+
+    private static String keyFormat(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT value FROM " + META_TABLE + " WHERE key = ?", new String[] {META_KEY_FORMAT});
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Recompute normalized_contact for every row with the current key format, in one
+     * transaction. Runs on the writer thread.
+     */
+    private static void rekey(SQLiteDatabase db) {
+        long start = System.nanoTime();
+        String format = PhoneNumberNormalizer.getDefault().keyFormat();
+        SQLiteStatement update = db.compileStatement(
+                "UPDATE " + TABLE + " SET normalized_contact = ? WHERE id = ?");
+        int rows = 0;
+        db.beginTransaction();
+        try {
+            Cursor c = db.rawQuery("SELECT id, contact, channel FROM " + TABLE, null);
+            try {
+                while (c.moveToNext()) {
+                    update.bindString(1, ReplyDedupeIndex.keyFor(c.getString(1), (byte) c.getInt(2)));
+                    update.bindLong(2, c.getLong(0));
+                    update.executeUpdateDelete();
+                    rows++;
+                }
+            } finally {
+                c.close();
+            }
+            ContentValues meta = new ContentValues();
+            meta.put("key", META_KEY_FORMAT);
+            meta.put("value", format);
+            db.insertWithOnConflict(META_TABLE, null, meta, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
+        Log.i(TAG, "Re-keyed " + rows + " contacts as " + format + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Delete (or archive) the oldest rows beyond the retention policy's limits. Runs on
+     * the writer thread. Returns the rows removed.
+     */
+    List<MessageLogManager.Entry> trim() throws IOException {
+        RetentionPolicy policy = retention;
+        long now = System.currentTimeMillis();
+        lastRetentionRun = now;
+        List<MessageLogManager.Entry> removed = new ArrayList<>();
+        if (policy.isUnlimited()) return removed;
+
+        SQLiteDatabase db = helper.getWritableDatabase();
+        int count = (int) DatabaseUtils.queryNumEntries(db, TABLE);
+        int keep = policy.maxEntries > 0 ? policy.maxEntries : Integer.MAX_VALUE;
+        if (policy.maxBytes > 0 && count > 0) {
+            // Pages in use, not the file size: deleted rows leave free pages behind
+            long usedBytes = (pragma(db, "page_count") - pragma(db, "freelist_count")) * pragma(db, "page_size");
+            if (usedBytes > policy.maxBytes) {
+                keep = (int) Math.min(keep, policy.maxBytes * count / usedBytes);
+            }
+        }
+
+        // The oldest rows by id beyond `keep`, and every row older than the age limit
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<>();
+        if (count > keep) {
+            where.append("id <= (SELECT id FROM " + TABLE + " ORDER BY id DESC LIMIT 1 OFFSET ?)");
+            args.add(Integer.toString(keep));
+        }
+        if (policy.maxAgeMillis > 0) {
+            if (where.length() > 0) where.append(" OR ");
+            where.append("time < ?");
+            args.add(Long.toString(now - policy.maxAgeMillis));
+        }
+        if (where.length() == 0) return removed;
+
+        String[] whereArgs = args.toArray(new String[0]);
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(TABLE, COLUMNS, where.toString(), whereArgs, null, null, "id");
+            try {
+                while (c.moveToNext()) removed.add(entryAt(c));
+            } finally {
+                c.close();
+            }
+            if (!removed.isEmpty()) {
+                if (policy.archive) archive(removed);
+                db.delete(TABLE, where.toString(), whereArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return removed;
+    }
+
+    private void trimQuietly() {
+        try {
+            List<MessageLogManager.Entry> removed = trim();
+            if (removed.isEmpty()) return;
+            TrimListener listener = trimListener;
+            if (listener != null) listener.onTrimmed(removed);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to apply retention policy", e);
+        }
+    }
+
+    private void archive(List<MessageLogManager.Entry> removed) throws IOException {
+        File dir = new File(databaseFile.getPath() + ".archive");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        long maxId = removed.get(removed.size() - 1).id;
+        MessageLogSegment.write(new File(dir, String.format(Locale.US, "%019d.segment", maxId)), removed);
+    }
+
+    private static long pragma(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + name, null);
+    }
+
+    /**
+     * Finish queued writes and close the database. The store cannot be used afterwards.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        helper.close();
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static MessageLogManager.Entry entryAt(Cursor c) {
+        return new MessageLogManager.Entry(c.getLong(0), c.getString(1), c.getLong(2),
+                (byte) c.getInt(3), (byte) c.getInt(4));
+    }
+
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.callbacklater;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.TextView;
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows the running totals kept by {@link MessageLogStats}. Nothing here reads the log
+ * itself, except the one-off rebuild on first use.
+ */
+public class StatisticsActivity extends AppCompatActivity {
+    private static final int TOP_CONTACTS = 10;
+    private static final int RECENT_DAYS = 14;
+    private static final int BAR_WIDTH = 20;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private TextView tvTotals;
+    private TextView tvContacts;
+    private TextView tvHours;
+    private TextView tvDays;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_statistics);
+
+        tvTotals = findViewById(R.id.tv_totals);
+        tvContacts = findViewById(R.id.tv_contacts);
+        tvHours = findViewById(R.id.tv_hours);
+        tvDays = findViewById(R.id.tv_days);
+        tvTotals.setText("Loading…");
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // The first call may have to rebuild the totals from the log
+        loader.execute(() -> {
+            MessageLogStats.Summary summary = MessageLogManager.getStatistics(getApplicationContext());
+            mainHandler.post(() -> {
+                if (!isFinishing()) show(summary);
+            });
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        loader.shutdownNow();
+    }
+
+    private void show(MessageLogStats.Summary summary) {
+        // Replies first, then what came in (missed calls, blocked numbers) on lines of their own
+        StringBuilder totals = new StringBuilder().append(summary.sent()).append(" replies sent");
+        for (byte direction : new byte[]{LogChannel.OUTGOING, LogChannel.INCOMING}) {
+            for (byte c = 0; c < summary.perChannel.length; c++) {
+                if (LogChannel.directionOf(c) != direction) continue;
+                totals.append('\n').append(LogChannel.label(c)).append(": ").append(summary.count(c));
+            }
+        }
+        tvTotals.setText(totals);
+
+        StringBuilder contacts = new StringBuilder();
+        int n = Math.min(TOP_CONTACTS, summary.perContact.size());
+        for (int i = 0; i < n; i++) {
+            Map.Entry<String, Integer> e = summary.perContact.get(i);
+            if (i > 0) contacts.append('\n');
+            contacts.append(e.getValue()).append("  ").append(e.getKey());
+        }
+        tvContacts.setText(n == 0 ? "None yet" : contacts);
+
+        int maxHour = 0;
+        for (int count : summary.perHour) maxHour = Math.max(maxHour, count);
+        StringBuilder hours = new StringBuilder();
+        for (int h = 0; h < 24; h++) {
+            if (h > 0) hours.append('\n');
+            if (h < 10) hours.append('0');
+            hours.append(h).append("  ");
+            appendBar(hours, summary.perHour[h], maxHour);
+            hours.append(' ').append(summary.perHour[h]);
+        }
+        tvHours.setText(hours);
+
+        // Newest days first
+        List<Map.Entry<Long, Integer>> days = new ArrayList<>(summary.perDay.entrySet());
+        StringBuilder recent = new StringBuilder();
+        for (int i = days.size() - 1; i >= 0 && i >= days.size() - RECENT_DAYS; i--) {
+            Map.Entry<Long, Integer> e = days.get(i);
+            if (recent.length() > 0) recent.append('\n');
+            // Epoch days are already in local time, so format them as UTC midnight
+            recent.append(LogTimeFormat.formatDisplay(e.getKey() * DAY_MS, UTC), 0, 10)
+                    .append("  ").append(e.getValue());
+        }
+        tvDays.setText(days.isEmpty() ? "None yet" : recent);
+    }
+
+    private static void appendBar(StringBuilder sb, int count, int max) {
+        int width = max == 0 ? 0 : (int) Math.round((double) count * BAR_WIDTH / max);
+        if (count > 0 && width == 0) width = 1;
+        for (int i = 0; i < width; i++) sb.append('█');
+    }
+}
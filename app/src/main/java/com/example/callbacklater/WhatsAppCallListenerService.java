@@ -15,13 +15,9 @@ import androidx.core.app.NotificationCompat;
 
 import com.example.callbacklater.MessageLogManager;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 public class WhatsAppCallListenerService extends NotificationListenerService {
     private static final String TAG = "WhatsAppCallListenerService";
     private static final String WHATSAPP_PACKAGE = "com.whatsapp";
-    private static final String WHATSAPP_CALL_REGEX = "(\\+?\\d[\\d\\s-]{5,}\\d)";
     private static final long SMS_SEND_WINDOW_MS = 5000; // 5 seconds window to send message after notification
     private static final int NOTIFICATION_ID = 1;
     private static final String CHANNEL_ID = "whatsapp_call_listener_channel";
@@ -66,90 +62,55 @@ public class WhatsAppCallListenerService extends NotificationListenerService {
 
     @Override
     public void onNotificationPosted(StatusBarNotification sbn) {
+        // Every app's notifications come through here: reject the rest before allocating
         if (sbn == null) return;
         if (!WHATSAPP_PACKAGE.equals(sbn.getPackageName())) return;
 
         Notification notification = sbn.getNotification();
-        if (notification == null) return;
+        if (notification == null || notification.extras == null) return;
+        String channelId = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? notification.getChannelId() : null;
+        if (!CallNotificationMatcher.isCallNotification(notification.category, channelId)) return;
 
         try {
-            CharSequence title = notification.extras.getCharSequence(Notification.EXTRA_TITLE);
             CharSequence text = notification.extras.getCharSequence(Notification.EXTRA_TEXT);
+            if (!CallNotificationMatcher.isMissedCall(CallNotificationMatcher.get().classify(text))) return;
 
-            if (title == null || text == null) {
+            CharSequence title = notification.extras.getCharSequence(Notification.EXTRA_TITLE);
+            if (title == null) {
                 Log.w(TAG, "W: Notification missing required fields");
                 return;
             }
 
-            String titleStr = title.toString();
-            String textStr = text.toString().toLowerCase();
-
-            // Detect WhatsApp call patterns
-            boolean isCall = titleStr.contains("WhatsApp") ||
-                    textStr.contains("calling") ||
-                    textStr.contains("missed call");
-
-            if (!isCall) return;
-
-            // Extract call type and status
-            boolean isMissedCall = textStr.contains("missed call");
-            boolean isAudioCall = textStr.contains("audio call") ||
-                    textStr.contains("voice call");
-            boolean isVideoCall = textStr.contains("video call");
-
-            if (isMissedCall && (isAudioCall || isVideoCall)) {
-                String senderNameOrNumber = extractPhoneNumberFromNotification(notification);
-                if (senderNameOrNumber == null || senderNameOrNumber.isEmpty()) {
-                    senderNameOrNumber = titleStr; // fallback to title as sender identifier
-                }
+            String senderNameOrNumber = extractPhoneNumber(text, title);
+            if (senderNameOrNumber == null || senderNameOrNumber.isEmpty()) {
+                senderNameOrNumber = title.toString(); // fallback to title as sender identifier
+            }
 
-                Log.i(TAG, "W: Missed WhatsApp call detected from: " + senderNameOrNumber);
-                long now = System.currentTimeMillis();
-                String contactWithTag = "W:" + senderNameOrNumber;
+            Log.i(TAG, "W: Missed WhatsApp call detected from: " + senderNameOrNumber);
+            long now = System.currentTimeMillis();
 
-                // Log the missed call
-                MessageLogManager.addEntry(getApplicationContext(), contactWithTag, now);
-                Log.i(TAG, "W: Logged WhatsApp missed call entry for: " + contactWithTag);
+            // Log the missed call
+            MessageLogManager.addEntry(getApplicationContext(), senderNameOrNumber, now,
+                    LogChannel.WHATSAPP_MISSED_CALL);
+            Log.i(TAG, "W: Logged WhatsApp missed call entry for: " + senderNameOrNumber);
 
-                // Send message to WhatsApp chat interface with auto-reply
-                String autoReply = getApplicationContext().getSharedPreferences("call_prefs", Context.MODE_PRIVATE)
-                        .getString("auto_reply_msg", "User is currently unavailable or sleeping. For urgent matters, please chat via What's App. Otherwise kindly return call at 4.00 pm or anytime thereafter.");
-                sendWhatsAppMessage(senderNameOrNumber, autoReply);
-            }
+            // Send message to WhatsApp chat interface with auto-reply
+            String autoReply = getApplicationContext().getSharedPreferences("call_prefs", Context.MODE_PRIVATE)
+                    .getString("auto_reply_msg", "User is currently unavailable or sleeping. For urgent matters, please chat via What's App. Otherwise kindly return call at 4.00 pm or anytime thereafter.");
+            sendWhatsAppMessage(senderNameOrNumber, autoReply);
         } catch (Exception e) {
             Log.e(TAG, "W: Error processing WhatsApp notification", e);
         }
     }
 
-    private String extractPhoneNumberFromNotification(Notification notification) {
-        if (notification == null) return null;
-
-        try {
-            // Try to extract from text first
-            CharSequence text = notification.extras.getCharSequence(Notification.EXTRA_TEXT);
-            if (text != null) {
-                String textStr = text.toString().trim();
-                if (!textStr.isEmpty()) {
-                    Pattern pattern = Pattern.compile(WHATSAPP_CALL_REGEX);
-                    Matcher matcher = pattern.matcher(textStr);
-                    if (matcher.find()) {
-                        return matcher.group(1).replaceAll("[\\s-]", "");
-                    }
-                }
-            }
-
-            // Try to extract from title if text doesn't contain number
-            CharSequence title = notification.extras.getCharSequence(Notification.EXTRA_TITLE);
-            if (title != null) {
-                String titleStr = title.toString().trim();
-                if (!titleStr.isEmpty() && titleStr.matches(WHATSAPP_CALL_REGEX)) {
-                    return titleStr.replaceAll("[\\s-]", "");
-                }
-            }
-        } catch (Exception e) {
-            Log.w(TAG, "W: Error extracting phone number from notification", e);
-        }
-        return null;
+    /**
+     * The caller's number from the notification text, or the title if that is only a
+     * number (WhatsApp shows a number as the title when the caller is not a contact).
+     */
+    private String extractPhoneNumber(CharSequence text, CharSequence title) {
+        String number = CallNotificationMatcher.findPhoneNumber(text, false);
+        if (number == null) number = CallNotificationMatcher.findPhoneNumber(title, true);
+        return number == null ? null : PhoneNumberNormalizer.getDefault().dialable(number);
     }
 
     private void sendWhatsAppMessage(String phoneNumber, String message) {
@@ -160,9 +121,9 @@ public class WhatsAppCallListenerService extends NotificationListenerService {
 
         try {
             Context context = getApplicationContext();
-            // Normalize phone number to digits only removing spaces, dashes, or other chars except plus sign
-            String normalizedNumber = phoneNumber.replaceAll("[^\\d+]", "");
-            String encodedNumber = Uri.encode(normalizedNumber);
+            // wa.me wants the E.164 digits without the '+'; a name opens the chat picker
+            String waDigits = PhoneNumberNormalizer.getDefault().waDigits(phoneNumber);
+            String encodedNumber = Uri.encode(waDigits != null ? waDigits : "");
             String encodedMessage = Uri.encode(message);
             Intent intent = new Intent(Intent.ACTION_VIEW);
             Uri uri = Uri.parse("https://wa.me/" + encodedNumber + "?text=" + encodedMessage);
@@ -174,7 +135,8 @@ public class WhatsAppCallListenerService extends NotificationListenerService {
                 Log.i(TAG, "W: Opened WhatsApp chat interface for number: " + encodedNumber + " with message: " + message);
                 // Record the sent message in the message log
                 try {
-                    MessageLogManager.addEntry(context, "W:" + phoneNumber, System.currentTimeMillis());
+                    MessageLogManager.addEntry(context, phoneNumber, System.currentTimeMillis(),
+                            LogChannel.WHATSAPP_REPLY);
                 } catch (Exception e) {
                     Log.w(TAG, "W: Failed to log sent message", e);
                 }
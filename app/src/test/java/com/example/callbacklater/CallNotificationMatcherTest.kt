@@ -0,0 +1,59 @@
+package com.example.callbacklater
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class CallNotificationMatcherTest {
+    private val matcher = CallNotificationMatcher.get()
+
+    @Test
+    fun missedCalls_areClassifiedInEveryLanguage() {
+        val audio = CallNotificationMatcher.MISSED or CallNotificationMatcher.AUDIO
+        val video = CallNotificationMatcher.MISSED or CallNotificationMatcher.VIDEO
+        assertEquals(audio, matcher.classify("Missed voice call"))
+        assertEquals(audio, matcher.classify(" 2 MISSED VOICE CALLS "))
+        assertEquals(video, matcher.classify("Missed\u00A0video call"))
+        assertEquals(video, matcher.classify("Videollamada perdida"))
+        assertEquals(audio, matcher.classify("Verpasster Sprachanruf"))
+        assertEquals(video, matcher.classify("Appel vidéo manqué"))
+        assertEquals(audio, matcher.classify("Panggilan suara tak terjawab"))
+        assertEquals(video, matcher.classify("Пропущенный видеозвонок"))
+        assertEquals(audio, matcher.classify("मिस्ड वॉइस कॉल"))
+        assertTrue(CallNotificationMatcher.isMissedCall(matcher.classify("Missed voice call")))
+    }
+
+    @Test
+    fun chatMessages_areNotMissedCalls() {
+        for (text in listOf("Sorry I missed the meeting, can we do a video call?", "Persa la videochiamata?",
+                "I had a missed voice call from you", "Missed voice call?", "Hi, call me back",
+                "Incoming voice call", "2", "")) {
+            assertEquals(text, 0, matcher.classify(text))
+        }
+        assertEquals(0, matcher.classify(null))
+        assertEquals(0, CallNotificationMatcher("de").classify("Missed voice call"))
+    }
+
+    @Test
+    fun onlyCallNotifications_areLookedAt() {
+        assertTrue(CallNotificationMatcher.isCallNotification("call", "individual_chat_defaults"))
+        assertTrue(CallNotificationMatcher.isCallNotification("missed_call", null))
+        assertTrue(CallNotificationMatcher.isCallNotification(null, "missed_Calls"))
+        assertTrue(CallNotificationMatcher.isCallNotification(null, null))
+        assertFalse(CallNotificationMatcher.isCallNotification("msg", "individual_chat_defaults"))
+        assertFalse(CallNotificationMatcher.isCallNotification("msg", null))
+    }
+
+    @Test
+    fun findPhoneNumber_takesTheFirstNumberOrAWholeTitle() {
+        assertEquals("+91 98765-43210",
+            CallNotificationMatcher.findPhoneNumber("Missed call from +91 98765-43210", false))
+        assertEquals("9876543", CallNotificationMatcher.findPhoneNumber("12 then 9876543 then 1234567", false))
+        assertNull(CallNotificationMatcher.findPhoneNumber("Missed voice call", false))
+        assertNull(CallNotificationMatcher.findPhoneNumber("123-45", false))
+
+        assertEquals("+91 98765 43210", CallNotificationMatcher.findPhoneNumber("  +91 98765 43210 ", true))
+        assertNull(CallNotificationMatcher.findPhoneNumber("Bob +91 98765 43210", true))
+        assertNull(CallNotificationMatcher.findPhoneNumber("+91 98765 43210 (2)", true))
+    }
+}
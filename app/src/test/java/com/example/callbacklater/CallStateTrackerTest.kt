@@ -0,0 +1,104 @@
+package com.example.callbacklater
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class CallStateTrackerTest {
+    private class MemoryCheckpoint : CallStateTracker.Checkpoint {
+        var saved = ""
+        var saves = 0
+
+        override fun load() = saved
+
+        override fun save(state: String) {
+            saved = state
+            saves++
+        }
+    }
+
+    private val noCallLog = CallStateTracker.CallLogLookup { null }
+
+    @Test
+    fun unansweredCall_isMissedOnIdle() {
+        val tracker = CallStateTracker(MemoryCheckpoint())
+
+        assertNotNull(tracker.onRinging("+911", 1_000L))
+        assertEquals(listOf("+911"), tracker.onIdle(noCallLog).map { it.number })
+        assertEquals(0, tracker.size())
+    }
+
+    @Test
+    fun answeredCall_isNotMissed() {
+        val tracker = CallStateTracker(MemoryCheckpoint())
+
+        tracker.onRinging("+911", 1_000L)
+        tracker.onOffhook()
+        assertTrue(tracker.onIdle(noCallLog).isEmpty())
+    }
+
+    @Test
+    fun duplicateRinging_withAndWithoutNumber_isOneCall() {
+        val checkpoint = MemoryCheckpoint()
+        val tracker = CallStateTracker(checkpoint)
+
+        assertNotNull(tracker.onRinging(null, 1_000L))
+        val call = tracker.onRinging("+911", 1_050L)
+        assertEquals(1_000L, call!!.ringTimeMillis)
+        assertNull(tracker.onRinging("+911", 1_100L))
+        assertNull(tracker.onRinging(null, 1_100L))
+        assertEquals(2, checkpoint.saves)
+        assertEquals(listOf("+911"), tracker.onIdle(noCallLog).map { it.number })
+    }
+
+    private fun trackerWithWaitingCall(): CallStateTracker {
+        val tracker = CallStateTracker(MemoryCheckpoint())
+        tracker.onRinging("+911", 1_000L)
+        tracker.onOffhook()
+        val waiting = tracker.onRinging("+912", 2_000L)
+        assertTrue(waiting!!.waiting)
+        // The waiting call stops ringing; the broadcasts cannot tell whether it was taken
+        tracker.onOffhook()
+        return tracker
+    }
+
+    @Test
+    fun waitingCall_missedPerCallLog_isMissed() {
+        val tracker = trackerWithWaitingCall()
+
+        assertEquals(listOf("+912"), tracker.onIdle { it.number == "+912" }.map { it.number })
+    }
+
+    @Test
+    fun waitingCall_answeredPerCallLog_isNotMissed() {
+        val asked = mutableListOf<String>()
+        val tracker = trackerWithWaitingCall()
+
+        assertTrue(tracker.onIdle { asked.add(it.number); false }.isEmpty())
+        // Only the waiting call needs the call log
+        assertEquals(listOf("+912"), asked)
+    }
+
+    @Test
+    fun waitingCall_notInCallLog_isNotMissed() {
+        assertTrue(trackerWithWaitingCall().onIdle(noCallLog).isEmpty())
+    }
+
+    @Test
+    fun state_survivesANewProcess() {
+        val checkpoint = MemoryCheckpoint()
+        CallStateTracker(checkpoint).apply {
+            onRinging("+911", 1_000L)
+            onOffhook()
+            onRinging("+91 2,3", 2_000L)
+        }
+
+        val restored = CallStateTracker(checkpoint)
+        assertEquals(2, restored.size())
+        // Rang during the answered call: a waiting call, which the call log says was missed
+        val missed = restored.onIdle { it.waiting }
+        assertEquals(listOf("+91 2,3"), missed.map { it.number })
+        assertEquals(2_000L, missed[0].ringTimeMillis)
+        assertEquals("", checkpoint.saved)
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.callbacklater
+
+import org.junit.Before
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class ContactNumberSetTest {
+    @Before
+    fun setUp() {
+        PhoneNumberNormalizer.setDefault("IN")
+    }
+
+    @Test
+    fun keyFor_matchesTheSameNumberWithAndWithoutCountryCode() {
+        assertEquals(ContactNumberSet.keyFor("+91 98765-43210"), ContactNumberSet.keyFor("098765 43210"))
+        assertEquals("+919876543210", ContactNumberSet.keyFor("(987) 654-3210"))
+        assertNotEquals(ContactNumberSet.keyFor("+919876543210"), ContactNumberSet.keyFor("+919876543211"))
+    }
+
+    @Test
+    fun keyFor_keepsShortNumbersWhole_andDropsNumbersWithoutDigits() {
+        assertEquals("121", ContactNumberSet.keyFor("121"))
+        assertEquals("", ContactNumberSet.keyFor("Unknown"))
+        assertEquals("", ContactNumberSet.keyFor(null))
+        assertEquals(setOf("121", "+919876543210"),
+            ContactNumberSet.keysOf(listOf("+91 98765 43210", "09876543210", "121", "Unknown")))
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.callbacklater
+
+import org.junit.Before
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class ContactSearchIndexTest {
+    @Before
+    fun setUp() {
+        PhoneNumberNormalizer.setDefault("IN")
+    }
+
+    private fun indexOf(vararg contacts: String): Pair<ContactSearchIndex, List<MessageLogManager.Entry>> {
+        val entries = contacts.mapIndexed { i, c -> MessageLogManager.Entry(i + 1L, c, 1_000L * i) }
+        val index = ContactSearchIndex()
+        index.rebuild(entries)
+        return index to entries
+    }
+
+    @Test
+    fun digitQuery_ignoresFormatting() {
+        val (index, _) = indexOf("+91 98765-43210", "+919876543210", "09876543210", "+14155550000")
+
+        assertEquals(3, index.search("98765").size)
+        assertEquals(3, index.search("987 65").size)
+        assertEquals(3, index.search("(98765)").size)
+        assertEquals(1, index.search("+1 415").size)
+    }
+
+    @Test
+    fun textQuery_isCaseInsensitiveSubstring() {
+        val (index, _) = indexOf("Alice Smith", "Bob", "Bobby Tables")
+
+        assertEquals(listOf("Alice Smith"), index.search("SMI"))
+        assertEquals(2, index.search("BOB").size)
+        assertTrue(index.search("carol").isEmpty())
+    }
+
+    @Test
+    fun removeAndReAdd_keepsPostingsInStep() {
+        val (index, entries) = indexOf("Alice Smith", "Alice Smith", "Bob")
+
+        index.remove(entries[0])
+        assertEquals(listOf("Alice Smith"), index.search("alice"))
+        index.remove(entries[1])
+        assertTrue(index.search("alice").isEmpty())
+
+        index.add(MessageLogManager.Entry(10L, "Alice Smith", 5_000L))
+        assertEquals(listOf("Alice Smith"), index.search("alice"))
+    }
+
+    @Test
+    fun exact_findsEveryFormattingOfTheNumberWithTheirIds() {
+        val (index, entries) = indexOf("+91 98765-43210", "Bob", "+919876543210", "+9198765432101", "+91 98765-43210")
+
+        val contacts = index.exact("+91-98765-43210")
+        assertEquals(setOf("+91 98765-43210", "+919876543210"), contacts.toSet())
+        assertEquals(3, index.entryCount(contacts))
+        assertArrayEquals(longArrayOf(1, 3, 5), index.idsOf(contacts))
+
+        index.removeAll(listOf(entries[0], entries[1], entries[2]))
+        assertEquals(listOf("+91 98765-43210"), index.exact("+919876543210"))
+        assertArrayEquals(longArrayOf(5), index.idsOf(index.exact("+919876543210")))
+        assertTrue(index.search("bob").isEmpty())
+    }
+}
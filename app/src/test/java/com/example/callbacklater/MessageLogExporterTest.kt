@@ -0,0 +1,60 @@
+package com.example.callbacklater
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+import java.io.ByteArrayOutputStream
+
+class MessageLogExporterTest {
+    private val entries = listOf(
+        MessageLogManager.Entry(1L, "+91 98765,43210", 0L),
+        MessageLogManager.Entry(2L, "\"Bob\"", 1_700_000_000_000L,
+            LogChannel.WHATSAPP_MISSED_CALL, LogChannel.INCOMING)
+    )
+
+    private fun write(format: MessageLogExporter.Format): String {
+        val out = ByteArrayOutputStream()
+        MessageLogExporter(format, false).writeEntries(entries, out, null)
+        return out.toString("UTF-8")
+    }
+
+    @Test
+    fun csv_quotesFieldsThatNeedIt() {
+        assertEquals(
+            "time,contact,channel,direction\n" +
+                "1970-01-01T00:00:00Z,\"+91 98765,43210\",sms_reply,outgoing\n" +
+                "2023-11-14T22:13:20Z,\"\"\"Bob\"\"\",whatsapp_missed_call,incoming\n",
+            write(MessageLogExporter.Format.CSV)
+        )
+    }
+
+    @Test
+    fun ndjson_writesOneEscapedObjectPerLine() {
+        val lines = write(MessageLogExporter.Format.NDJSON).trimEnd('\n').split('\n')
+        assertEquals(2, lines.size)
+        assertEquals("{\"contact\":\"\\\"Bob\\\"\",\"time\":\"2023-11-14T22:13:20Z\",\"timeMillis\":1700000000000," +
+            "\"channel\":\"whatsapp_missed_call\",\"direction\":\"incoming\"}", lines[1])
+    }
+
+    @Test
+    fun pages_areWrittenAsOneDocument() {
+        val pages = mutableListOf(entries.subList(0, 1), entries.subList(1, 2))
+        val source = object : MessageLogExporter.EntryPages {
+            override fun total() = entries.size
+            override fun next(): List<MessageLogManager.Entry> = if (pages.isEmpty()) emptyList() else pages.removeAt(0)
+        }
+        val out = ByteArrayOutputStream()
+
+        val count = MessageLogExporter(MessageLogExporter.Format.CSV, false).writeEntries(source, out, null)
+        assertEquals(2, count)
+        assertEquals(write(MessageLogExporter.Format.CSV), out.toString("UTF-8"))
+    }
+
+    @Test(expected = MessageLogExporter.CancelledException::class)
+    fun cancel_stopsTheExport() {
+        val exporter = MessageLogExporter(MessageLogExporter.Format.CSV, false)
+        exporter.cancel()
+        exporter.writeEntries(entries, ByteArrayOutputStream(), null)
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.callbacklater
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import org.junit.Assert.*
+
+import java.io.File
+import java.io.RandomAccessFile
+
+/**
+ * The compact segment format of [MessageLogSegment], and how [MessageLogJournal] and
+ * [MessageLogStore] move segments into it.
+ */
+class MessageLogSegmentTest {
+    @get:Rule
+    val tmp = TemporaryFolder()
+
+    private fun entries(count: Int) = (0 until count).map {
+        val channel = (it % LogChannel.COUNT).toByte()
+        MessageLogManager.Entry(it + 1L, "+9198765" + (10_000 + it % 300), 1_700_000_000_000L + it * 37_000L,
+                channel, LogChannel.directionOf(channel))
+    }
+
+    private fun assertSameEntries(expected: List<MessageLogManager.Entry>, actual: List<MessageLogManager.Entry>) {
+        assertEquals(expected.size, actual.size)
+        for (i in expected.indices) {
+            val e = expected[i]
+            val a = actual[i]
+            assertEquals(e.id, a.id)
+            assertEquals(e.contact, a.contact)
+            assertEquals(e.timeMillis, a.timeMillis)
+            assertEquals(e.channel, a.channel)
+            assertEquals(e.direction, a.direction)
+        }
+    }
+
+    @Test
+    fun roundTrip_keepsEveryField() {
+        val expected = entries(3000) + listOf(
+                MessageLogManager.Entry(5000, "Zoë ✓", 5L, LogChannel.WHATSAPP_REPLY, LogChannel.OUTGOING),
+                MessageLogManager.Entry(5001, "", -7L, LogChannel.SPAM_BLOCKED, LogChannel.INCOMING))
+        val file = File(tmp.root, "test.segment")
+        MessageLogSegment.write(file, expected)
+
+        val log = MappedMessageLog.open(file)
+        assertTrue(log.isCompact)
+        assertEquals(5001L, log.maxId)
+        assertSameEntries(expected, (0 until log.size()).map { log.entryAt(it) })
+        assertTrue("${file.length()} bytes", file.length() < expected.size * 8L)
+    }
+
+    @Test
+    fun corruptBlock_losesOnlyThatBlock() {
+        val expected = entries(3000)
+        val file = File(tmp.root, "test.segment")
+        MessageLogSegment.write(file, expected)
+        RandomAccessFile(file, "rw").use {
+            it.seek(it.length() / 2)
+            val b = it.read()
+            it.seek(it.length() / 2)
+            it.write(b xor 0xFF)
+        }
+
+        val log = MappedMessageLog.open(file)
+        assertEquals(expected.size - MessageLogSegment.BLOCK_ENTRIES, log.size())
+        val byId = expected.associateBy { it.id }
+        assertSameEntries((0 until log.size()).map { byId.getValue(log.idAt(it)) },
+                (0 until log.size()).map { log.entryAt(it) })
+    }
+
+    @Test
+    fun store_encodesJournalFormatSegmentsAndBacksThemUpAsAJournal() {
+        val file = File(tmp.root, "message_log.journal")
+        val journal = MessageLogJournal(file)
+        journal.rewrite(entries(2000))
+        journal.seal(2000)
+        assertFalse(MessageLogJournal.isCompact(journal.listSegments().single()))
+
+        val store = MessageLogStore(journal)
+        assertEquals(2000, store.snapshot().size())
+        store.enforceRetention()
+        assertTrue(MessageLogJournal.isCompact(journal.listSegments().single()))
+
+        store.add(MessageLogManager.Entry("+91tail", 1L))
+        assertTrue(store.delete(store.snapshot().get(5)))
+        val expected = store.snapshot().asList()
+        assertSameEntries(expected, MessageLogStore(MessageLogJournal(file)).snapshot().asList())
+
+        val backup = File(tmp.root, "backup.journal")
+        backup.outputStream().use { assertEquals(2000, store.copyJournalTo(it.channel)) }
+        assertSameEntries(expected, MessageLogJournal(backup).readAll())
+    }
+
+    @Test
+    fun interruptedEncode_keepsTheCompactCopy() {
+        val journal = MessageLogJournal(File(tmp.root, "message_log.journal"))
+        journal.rewrite(entries(100))
+        val sealed = journal.seal(100)
+        val copy = sealed.readBytes()
+        journal.encodeSegment(sealed)
+        // As if the process died before the journal-format file was removed
+        sealed.writeBytes(copy)
+
+        assertTrue(MessageLogJournal.isCompact(journal.listSegments().single()))
+        assertFalse(sealed.exists())
+        assertSameEntries(entries(100), journal.readAll())
+    }
+}
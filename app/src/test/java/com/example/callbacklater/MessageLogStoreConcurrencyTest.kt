@@ -0,0 +1,148 @@
+package com.example.callbacklater
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import org.junit.Assert.*
+
+import java.io.File
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Hammers [MessageLogStore] with concurrent writers and lock-free readers and checks
+ * that no entry is lost and no reader ever sees a half-published snapshot.
+ */
+class MessageLogStoreConcurrencyTest {
+    @get:Rule
+    val tmp = TemporaryFolder()
+
+    private val writers = 4
+    private val entriesPerWriter = 500
+    private val readers = 4
+
+    @Test
+    fun concurrentReadersAndWriters_noLostEntriesNoTornSnapshots() {
+        val file = File(tmp.root, "message_log.journal")
+        val store = MessageLogStore(MessageLogJournal(file))
+
+        val start = CountDownLatch(1)
+        val writersDone = AtomicBoolean(false)
+        val failures = ConcurrentLinkedQueue<String>()
+
+        val writerThreads = (0 until writers).map { w ->
+            Thread {
+                start.await()
+                for (i in 0 until entriesPerWriter) {
+                    store.enqueue(MessageLogManager.Entry("+91$w-$i", 1_700_000_000_000L + i * 1000L + w))
+                }
+            }
+        }
+
+        val readerThreads = (0 until readers).map {
+            Thread {
+                start.await()
+                var lastSize = 0
+                while (!writersDone.get()) {
+                    val snapshot = store.snapshot()
+                    val size = snapshot.size()
+                    if (size < lastSize) failures.add("snapshot shrank from $lastSize to $size")
+                    lastSize = size
+
+                    val index = snapshot.timeIndex
+                    if (index.size() != size) failures.add("time index has ${index.size()} entries, snapshot $size")
+                    for (i in 0 until size) {
+                        if (snapshot.get(i) == null) failures.add("null entry at $i of $size")
+                        if (i > 0 && index.timeAt(i) < index.timeAt(i - 1)) failures.add("time index out of order at $i")
+                        val pos = index.positionAt(i)
+                        if (pos < 0 || pos >= size) failures.add("time index points outside snapshot: $pos of $size")
+                    }
+                }
+            }
+        }
+
+        (writerThreads + readerThreads).forEach { it.start() }
+        start.countDown()
+        writerThreads.forEach { it.join(TimeUnit.SECONDS.toMillis(60)) }
+        writersDone.set(true)
+        readerThreads.forEach { it.join(TimeUnit.SECONDS.toMillis(60)) }
+
+        assertTrue(failures.take(10).joinToString("\n"), failures.isEmpty())
+
+        store.flush().get(30, TimeUnit.SECONDS)
+        val expected = writers * entriesPerWriter
+        assertEquals(expected, store.snapshot().size())
+
+        // Everything must also have reached the journal
+        val reloaded = MessageLogStore(MessageLogJournal(file)).snapshot()
+        assertEquals(expected, reloaded.size())
+        val contacts = reloaded.asList().map { it.contact }.toSet()
+        for (w in 0 until writers) {
+            for (i in 0 until entriesPerWriter) {
+                assertTrue("missing +91$w-$i", contacts.contains("+91$w-$i"))
+            }
+        }
+    }
+
+    @Test
+    fun enqueueBurst_isVisibleAtOnceAndCommittedTogether() {
+        val file = File(tmp.root, "message_log.journal")
+        val store = MessageLogStore(MessageLogJournal(file))
+
+        // A caller redialling five times in quick succession
+        var last: Future<Void>? = null
+        for (i in 0 until 5) {
+            last = store.enqueue(MessageLogManager.Entry("+919876543210", 1_000L * i))
+        }
+        assertEquals(5, store.snapshot().size())
+
+        last!!.get(10, TimeUnit.SECONDS)
+        assertTrue(store.flush().isDone)
+        assertTrue("expected one commit per batch, got ${store.commitCount}", store.commitCount < 5)
+        assertEquals(5, MessageLogStore(MessageLogJournal(file)).snapshot().size())
+    }
+
+    @Test
+    fun delete_publishesSnapshotWithoutEntry() {
+        val store = MessageLogStore(MessageLogJournal(File(tmp.root, "message_log.journal")))
+        val keep = MessageLogManager.Entry("+911111111111", 1_000L)
+        val drop = MessageLogManager.Entry("+912222222222", 2_000L)
+        store.add(keep)
+        store.add(drop)
+
+        val before = store.snapshot()
+        assertTrue(store.delete(drop))
+
+        // The old snapshot is unchanged; the new one no longer has the entry
+        assertEquals(2, before.size())
+        val after = store.snapshot()
+        assertEquals(1, after.size())
+        assertEquals(keep.contact, after.get(0).contact)
+    }
+
+    @Test
+    fun delete_removesOnlyTheEntryWithThatId_andSurvivesCompaction() {
+        val file = File(tmp.root, "message_log.journal")
+        val store = MessageLogStore(MessageLogJournal(file))
+        // Two identical entries, e.g. the same number auto-replied twice within a millisecond
+        store.add(MessageLogManager.Entry("+911111111111", 1_000L))
+        store.add(MessageLogManager.Entry("+911111111111", 1_000L))
+        for (i in 0 until 100) store.add(MessageLogManager.Entry("+91$i", 2_000L + i))
+
+        val second = store.snapshot().get(1)
+        assertTrue(store.delete(second))
+        assertEquals(101, store.snapshot().size())
+        assertEquals(1L, store.snapshot().get(0).id)
+
+        val survivors = store.snapshot().asList().filterIndexed { i, _ -> i % 2 == 0 }.map { it.id }
+        store.snapshot().asList().filterIndexed { i, _ -> i % 2 == 1 }.forEach { store.delete(it) }
+        store.compact()
+
+        val reloaded = MessageLogStore(MessageLogJournal(file)).snapshot()
+        assertEquals(survivors, reloaded.asList().map { it.id })
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.callbacklater
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import org.junit.Assert.*
+
+import java.io.File
+
+/**
+ * Segment rotation and retention in [MessageLogStore]: limits drop whole sealed segments,
+ * oldest first, and what is left on disk matches the published snapshot.
+ */
+class MessageLogStoreRetentionTest {
+    @get:Rule
+    val tmp = TemporaryFolder()
+
+    private val day = 24L * 60 * 60 * 1000
+
+    private fun journal() = MessageLogJournal(File(tmp.root, "message_log.journal"))
+
+    @Test
+    fun entryLimit_dropsOldestSegmentsAndKeepsTheLimit() {
+        val store = MessageLogStore(journal())
+        store.setRetentionPolicy(RetentionPolicy(1000, 0, 0, false))
+        val now = System.currentTimeMillis()
+        for (i in 0 until 3000) {
+            store.enqueue(MessageLogManager.Entry("+91" + (i % 50), now + i))
+            if (i % 50 == 49) store.enforceRetention()
+        }
+        store.enforceRetention()
+
+        val kept = store.snapshot().asList().map { it.id }
+        assertTrue("kept ${kept.size}", kept.size in 1000 until 1000 + 2 * 300)
+        assertEquals(((3000 - kept.size + 1)..3000L).toList(), kept)
+        assertTrue(store.segmentCount > 0)
+        assertEquals(kept, MessageLogStore(journal()).snapshot().asList().map { it.id })
+    }
+
+    @Test
+    fun ageLimit_archivesExpiredSegmentsButNotTheJournal() {
+        val journal = journal()
+        val store = MessageLogStore(journal)
+        val old = System.currentTimeMillis() - 10 * day
+        for (i in 0 until 300) store.enqueue(MessageLogManager.Entry("+91$i", old + i))
+        store.enforceRetention()
+
+        store.setRetentionPolicy(RetentionPolicy(0, day, 0, true))
+        store.enforceRetention()
+        store.add(MessageLogManager.Entry("+91new", System.currentTimeMillis()))
+        store.enforceRetention()
+
+        assertEquals(listOf("+91new"), store.snapshot().asList().map { it.contact })
+        val archived = journal.archiveDir.listFiles()!!.flatMap { MessageLogJournal(it).readAll() }
+        assertEquals(300, archived.size)
+        assertEquals(1, MessageLogStore(journal()).snapshot().size())
+    }
+
+    @Test
+    fun deleteFromSealedSegment_survivesReload() {
+        val journal = journal()
+        val store = MessageLogStore(journal)
+        store.setRetentionPolicy(RetentionPolicy(1000, 0, 0, false))
+        for (i in 0 until 600) store.enqueue(MessageLogManager.Entry("+91$i", 1_000L + i))
+        store.enforceRetention()
+        store.add(MessageLogManager.Entry("+91tail", 5_000L))
+        assertEquals(1, journal.listSegments().size)
+
+        val target = store.snapshot().get(10)
+        assertTrue(store.delete(target))
+        val reloaded = MessageLogStore(journal()).snapshot().asList()
+        assertEquals(600, reloaded.size)
+        assertFalse(reloaded.any { it.id == target.id })
+    }
+
+    @Test
+    fun backupCopy_isOneJournalOfAllSegments() {
+        val store = MessageLogStore(journal())
+        store.setRetentionPolicy(RetentionPolicy(1000, 0, 0, false))
+        for (i in 0 until 700) {
+            store.enqueue(MessageLogManager.Entry("+91$i", 1_000L + i))
+            if (i % 100 == 99) store.enforceRetention()
+        }
+        store.enforceRetention()
+
+        val backup = File(tmp.root, "backup.journal")
+        backup.outputStream().use { assertEquals(700, store.copyJournalTo(it.channel)) }
+        assertEquals((1..700L).toList(), MessageLogJournal(backup).readAll().map { it.id })
+    }
+}
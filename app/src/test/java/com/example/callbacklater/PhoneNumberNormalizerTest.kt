@@ -0,0 +1,56 @@
+package com.example.callbacklater
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class PhoneNumberNormalizerTest {
+    private val india = PhoneNumberNormalizer.forRegion("IN")
+
+    @Test
+    fun everyFormatOfANumber_normalizesToE164() {
+        for (number in listOf("+91 98765-43210", "098765 43210", "9876543210", "0091 98765 43210",
+                "91 98765 43210", "+91 (98765) 43210", "\u202A+91 98765 43210\u202C")) {
+            assertEquals(number, "+919876543210", india.normalize(number))
+        }
+        assertEquals("+14155550000", india.normalize("+1 (415) 555-0000"))
+    }
+
+    @Test
+    fun shortCodesAndNames_areNotNumbers() {
+        assertEquals("121", india.normalize("121"))
+        assertNull(india.normalize("Bob"))
+        assertNull(india.normalize("1+23"))
+        assertNull(india.normalize("+"))
+        assertNull(india.normalize(null))
+        assertNull(india.normalize("+1234567890123456"))
+
+        assertEquals("Bob", india.keyOf(" Bob "))
+        assertEquals("919876543210", india.waDigits("098765 43210"))
+        assertNull(india.waDigits("121"))
+        assertEquals("Bob", india.dialable("Bob"))
+    }
+
+    @Test
+    fun nationalNumbers_useTheRegionsTrunkAndCountryCode() {
+        val us = PhoneNumberNormalizer.forRegion("us")
+        assertEquals("+14155550000", us.normalize("(415) 555-0000"))
+        assertEquals("+14155550000", us.normalize("1 415 555 0000"))
+        assertEquals("+442071234567", us.normalize("011 44 20 7123 4567"))
+        assertEquals("+442071234567", PhoneNumberNormalizer.forRegion("GB").normalize("020 7123 4567"))
+        assertEquals("e164:US", us.keyFormat())
+        assertEquals("IN", PhoneNumberNormalizer.forRegion("XX").region)
+    }
+
+    @Test
+    fun results_areMemoized() {
+        val normalizer = PhoneNumberNormalizer.forRegion("IN")
+        normalizer.normalize("098765 43210")
+        normalizer.normalize("098765 43210")
+        normalizer.normalize("Bob")
+        normalizer.normalize("Bob")
+
+        assertEquals(2L, normalizer.hitCount)
+        assertEquals(2L, normalizer.missCount)
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.callbacklater
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.io.StringReader
+
+class SpamBlocklistTest {
+    private val india = PhoneNumberNormalizer.forRegion("IN")
+
+    private fun parse(text: String) = SpamBlocklist.parse(StringReader(text.trimIndent()), india)
+
+    @Test
+    fun exactNumbers_matchInAnyFormat() {
+        val list = parse(
+            """
+            # comment
+            +91 98765 43210
+            0123  # trailing comment
+
+            """
+        )
+
+        assertEquals(2, list.exactCount())
+        assertTrue(list.contains("+919876543210"))
+        assertTrue(list.contains("91-98765-43210"))
+        assertTrue(list.contains("098765 43210"))
+        assertTrue(list.contains("0123"))
+        assertFalse(list.contains("123"))
+        assertFalse(list.contains("+91987654321"))
+        assertFalse(list.contains(""))
+        assertFalse(list.contains(null))
+    }
+
+    @Test
+    fun prefixes_matchEveryNumberUnderThem() {
+        val list = parse(
+            """
+            +91 140*
+            +91 1409*
+            +44 70*
+            +44 7*1
+            0033 6*
+            """
+        )
+
+        // 911409 is covered by 91140; "7*1" is read as the prefix 71
+        assertEquals(4, list.prefixCount())
+        assertTrue(list.contains("+91 140 555 0000"))
+        assertTrue(list.contains("+911409"))
+        assertTrue(list.contains("+44 7012"))
+        assertTrue(list.contains("+44 71"))
+        assertFalse(list.contains("+91 141 555 0000"))
+        assertFalse(list.contains("+9114"))
+        assertFalse(list.contains("+44 72"))
+        assertTrue(list.contains("+33 6 12 34 56 78"))
+        // A short code is not under an international prefix
+        assertFalse(list.contains("4470"))
+    }
+
+    @Test
+    fun manyNumbers_noFalseMatches_andBoundedMemory() {
+        val builder = SpamBlocklist.Builder(india)
+        for (i in 0 until 10_000) builder.addRule("+91 98${i.toString().padStart(8, '0')}")
+        val list = builder.build()
+
+        for (i in 0 until 10_000) assertTrue(list.contains("+9198${i.toString().padStart(8, '0')}"))
+        for (i in 10_000 until 20_000) assertFalse(list.contains("+9198${i.toString().padStart(8, '0')}"))
+        // 8 bytes per number plus the Bloom filter's bits
+        val bound = 10_000L * (8 + SpamBlocklist.BLOOM_BITS_PER_NUMBER / 8 + 1)
+        assertTrue("${list.memoryBytes()} bytes", list.memoryBytes() <= bound)
+    }
+
+    @Test
+    fun emptyList_matchesNothing() {
+        assertFalse(SpamBlocklist.EMPTY.contains("+919876543210"))
+        assertEquals(0L, SpamBlocklist.EMPTY.memoryBytes())
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.callbacklater
+
+import org.junit.Before
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class SpamVerdictCacheTest {
+    @Before
+    fun setUp() {
+        PhoneNumberNormalizer.setDefault("IN")
+    }
+
+    @Test
+    fun keyFor_isTheNormalizedNumber() {
+        assertEquals("+919876543210", SpamVerdictCache.keyFor("+91 98765-43210"))
+        assertEquals("+919876543210", SpamVerdictCache.keyFor("098765 43210"))
+        assertEquals("", SpamVerdictCache.keyFor("(0) 1+23"))
+        assertEquals("", SpamVerdictCache.keyFor("+"))
+        assertEquals("", SpamVerdictCache.keyFor(null))
+    }
+
+    @Test
+    fun verdict_isCachedUntilItExpires() {
+        val cache = SpamVerdictCache(4, 1_000L)
+
+        assertNull(cache.get("+911", 0L))
+        cache.put("+911", true, 0L)
+        assertEquals(true, cache.get("+911", 999L))
+        assertNull(cache.get("+911", 1_000L))
+        assertEquals(1L, cache.hitCount)
+        assertEquals(2L, cache.missCount)
+        assertEquals(1L, cache.expirationCount)
+        assertEquals(1.0 / 3, cache.hitRate, 1e-9)
+    }
+
+    @Test
+    fun leastRecentlyUsed_isEvictedFirst() {
+        val cache = SpamVerdictCache(2, 1_000L)
+        cache.put("+911", true, 0L)
+        cache.put("+912", false, 0L)
+        cache.get("+911", 1L)
+
+        cache.put("+913", false, 2L)
+        assertEquals(2, cache.size())
+        assertEquals(1L, cache.evictionCount)
+        assertNull(cache.get("+912", 3L))
+        assertEquals(true, cache.get("+911", 3L))
+    }
+
+    @Test
+    fun expiredVerdicts_makeRoomBeforeLiveOnes() {
+        val cache = SpamVerdictCache(2, 1_000L)
+        cache.put("+911", true, 0L)
+        cache.put("+912", false, 500L)
+
+        cache.put("+913", false, 1_200L)
+        assertEquals(0L, cache.evictionCount)
+        assertEquals(1L, cache.expirationCount)
+        assertEquals(false, cache.get("+912", 1_300L))
+    }
+
+    @Test
+    fun shorterTtl_dropsCachedVerdicts() {
+        val cache = SpamVerdictCache(4, 1_000L)
+        cache.put("+911", true, 0L)
+        cache.setTtlMillis(2_000L)
+        assertEquals(true, cache.get("+911", 1L))
+
+        cache.setTtlMillis(0L)
+        assertNull(cache.get("+911", 2L))
+        cache.put("+911", true, 3L)
+        assertNull(cache.get("+911", 3L))
+    }
+
+    @Test
+    fun invalidate_dropsTheVerdict() {
+        val cache = SpamVerdictCache(4, 1_000L)
+        cache.put("+911", true, 0L)
+        cache.put("+912", true, 0L)
+
+        cache.invalidate("+911")
+        assertNull(cache.get("+911", 1L))
+        assertEquals(true, cache.get("+912", 1L))
+        cache.invalidateAll()
+        assertEquals(0, cache.size())
+        assertEquals(2L, cache.invalidationCount)
+    }
+}